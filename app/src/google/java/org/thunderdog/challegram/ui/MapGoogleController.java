@@ -174,11 +174,15 @@ final class MapGoogleController extends MapController<MapView, MapGoogleControll
         imageFile = new ImageFile(tdlib, avatar);
         imageFile.setSwOnly(true);
         imageFile.setSize(ChatView.getDefaultAvatarCacheSize());
-        synchronized (ImageCache.getReferenceCounters()) {
-          Bitmap avatarBitmap = ImageCache.instance().getBitmap(imageFile);
-          if (U.isValidBitmap(avatarBitmap)) {
-            drawAvatar(c, avatarBitmap);
-            return;
+        Bitmap avatarBitmap = ImageCache.instance().getBitmapWithReference(imageFile);
+        if (avatarBitmap != null) {
+          try {
+            if (U.isValidBitmap(avatarBitmap)) {
+              drawAvatar(c, avatarBitmap);
+              return;
+            }
+          } finally {
+            ImageCache.instance().removeReference(imageFile, avatarBitmap);
           }
         }
       } else {
@@ -27,6 +27,7 @@ import androidx.interpolator.view.animation.FastOutSlowInInterpolator;
 
 import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.charts.data.ChartData;
+import org.thunderdog.challegram.charts.data.ChartDownsampler;
 import org.thunderdog.challegram.charts.view_data.ChartBottomSignatureData;
 import org.thunderdog.challegram.charts.view_data.ChartHorizontalLinesData;
 import org.thunderdog.challegram.charts.view_data.LegendSignatureView;
@@ -1127,7 +1128,7 @@ public abstract class BaseChartView<T extends ChartData, L extends LineViewData>
         int maxValue = 0;
         for (int j = 0; j < linesSize; j++) {
             if (!lines.get(j).enabled) continue;
-            int lineMax = lines.get(j).line.segmentTree.rMaxQ(startXIndex, endXIndex);
+            int lineMax = lines.get(j).line.minMaxTable.rMaxQ(startXIndex, endXIndex);
             if (lineMax > maxValue)
                 maxValue = lineMax;
         }
@@ -1140,13 +1141,32 @@ public abstract class BaseChartView<T extends ChartData, L extends LineViewData>
         int minValue = Integer.MAX_VALUE;
         for (int j = 0; j < linesSize; j++) {
             if (!lines.get(j).enabled) continue;
-            int lineMin = lines.get(j).line.segmentTree.rMinQ(startXIndex, endXIndex);
+            int lineMin = lines.get(j).line.minMaxTable.rMinQ(startXIndex, endXIndex);
             if (lineMin < minValue)
                 minValue = lineMin;
         }
         return minValue;
     }
 
+    protected int[] sampledIndexes = new int[0];
+
+    /**
+     * Picks indexes within {@code [start, end]} worth drawing, so that about one point per pixel gets drawn.
+     * Result is written to {@link #sampledIndexes}.
+     *
+     * @param fullWidthPx Width all points of the chart take at the current zoom level.
+     *                    Picked points don't depend on {@code start} and {@code end}, so they stay the same while panning.
+     * @return Number of picked indexes.
+     */
+    protected int sampleIndexes(int[] y, int start, int end, float fullWidthPx) {
+        int bucketSize = ChartDownsampler.bucketSize(chartData.xPercentage.length, fullWidthPx);
+        int maxCount = ChartDownsampler.maxCount(start, end, bucketSize);
+        if (sampledIndexes.length < maxCount) {
+            sampledIndexes = new int[maxCount];
+        }
+        return ChartDownsampler.downsample(chartData.xPercentage, y, start, end, bucketSize, sampledIndexes);
+    }
+
     public void setData(T chartData) {
         if (this.chartData != chartData) {
             invalidate();
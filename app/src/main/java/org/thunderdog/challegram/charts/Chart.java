@@ -5,10 +5,12 @@ import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
 import org.drinkless.tdlib.TdApi;
-import org.json.JSONException;
 import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.charts.data.ChartData;
 import org.thunderdog.challegram.charts.data.ChartDataUtil;
+import org.thunderdog.challegram.core.Background;
+import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.data.TD;
 import org.thunderdog.challegram.telegram.Tdlib;
 import org.thunderdog.challegram.tool.UI;
@@ -88,31 +90,50 @@ public class Chart implements BaseChartView.DateChangeListener {
     throw new IllegalStateException("type == " + type);
   }
 
+  private int graphVersion;
+
   private void setGraph (TdApi.StatisticalGraph graph) {
+    final int version = ++graphVersion;
     switch (graph.getConstructor()) {
       case TdApi.StatisticalGraphData.CONSTRUCTOR: {
-        boolean success = false;
-        try {
-          this.baseData = ChartDataUtil.create((TdApi.StatisticalGraphData) graph, type);
-          this.errorText = null;
-          success = true;
-        } catch (JSONException e) {
-          Log.e("Unable to parse statistics: %s", e, graph);
-        }
-        if (!success) {
-          return;
-        }
-        break;
+        // Large graphs take noticeable time to parse, data gets applied once it's ready
+        final TdApi.StatisticalGraphData data = (TdApi.StatisticalGraphData) graph;
+        final int type = this.type;
+        Background.instance().post(() -> {
+          ChartData parsedData;
+          try {
+            parsedData = ChartDataUtil.create(data, type);
+          } catch (Throwable t) {
+            Log.e("Unable to parse statistics: %s", t, graph);
+            parsedData = null;
+          }
+          final ChartData baseData = parsedData;
+          UI.post(() -> {
+            if (version == graphVersion) {
+              if (baseData != null) {
+                setData(baseData, null);
+              } else {
+                // Stop showing progress, otherwise chart stays loading forever
+                setData(null, Lang.getString(R.string.Error));
+              }
+            }
+          });
+        });
+        return;
       }
       case TdApi.StatisticalGraphError.CONSTRUCTOR: {
-        this.errorText = ((TdApi.StatisticalGraphError) graph).errorMessage;
-        this.baseData = null;
+        setData(null, ((TdApi.StatisticalGraphError) graph).errorMessage);
         break;
       }
       case TdApi.StatisticalGraphAsync.CONSTRUCTOR: {
         return;
       }
     }
+  }
+
+  private void setData (@Nullable ChartData baseData, @Nullable String errorText) {
+    this.baseData = baseData;
+    this.errorText = errorText;
     for (Listener listener : listeners) {
       listener.onChartDataChanged(this, this.baseData);
     }
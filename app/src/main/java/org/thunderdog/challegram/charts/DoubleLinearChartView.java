@@ -75,7 +75,9 @@ public class DoubleLinearChartView extends BaseChartView<DoubleLinearChartData,
                 int localStart = Math.max(0, startXIndex - additionalPoints);
                 int localEnd = Math.min(chartData.xPercentage.length - 1, endXIndex + additionalPoints);
 
-                for (int i = localStart; i <= localEnd; i++) {
+                int sampleCount = sampleIndexes(y, localStart, localEnd, fullWidth);
+                for (int s = 0; s < sampleCount; s++) {
+                    int i = sampledIndexes[s];
                     if (y[i] < 0) continue;
                     float xPoint = chartData.xPercentage[i] * fullWidth - offset;
                     float yPercentage = ((float) y[i] * chartData.linesK[k] - currentMinHeight) / (currentMaxHeight - currentMinHeight);
@@ -136,7 +138,9 @@ public class DoubleLinearChartView extends BaseChartView<DoubleLinearChartData,
                 int[] y = line.line.y;
 
                 line.chartPath.reset();
-                for (int i = 0; i < n; i++) {
+                int sampleCount = sampleIndexes(y, 0, n - 1, pickerWidth);
+                for (int s = 0; s < sampleCount; s++) {
+                    int i = sampledIndexes[s];
                     if (y[i] < 0) continue;
 
                     float xPoint = chartData.xPercentage[i] * pickerWidth;
@@ -273,7 +277,7 @@ public class DoubleLinearChartView extends BaseChartView<DoubleLinearChartData,
         int n = lines.size();
         int max = 0;
         for (int i = 0; i < n; i++) {
-            int localMax = lines.get(i).enabled ? (int) (chartData.lines.get(i).segmentTree.rMaxQ(startXIndex, endXIndex) * chartData.linesK[i]) : 0;
+            int localMax = lines.get(i).enabled ? (int) (chartData.lines.get(i).minMaxTable.rMaxQ(startXIndex, endXIndex) * chartData.linesK[i]) : 0;
             if (localMax > max) max = localMax;
         }
         return max;
@@ -286,7 +290,7 @@ public class DoubleLinearChartView extends BaseChartView<DoubleLinearChartData,
         int n = lines.size();
         int min = Integer.MAX_VALUE;
         for (int i = 0; i < n; i++) {
-            int localMin = lines.get(i).enabled ? (int) (chartData.lines.get(i).segmentTree.rMinQ(startXIndex, endXIndex) * chartData.linesK[i]) : Integer.MAX_VALUE;
+            int localMin = lines.get(i).enabled ? (int) (chartData.lines.get(i).minMaxTable.rMinQ(startXIndex, endXIndex) * chartData.linesK[i]) : Integer.MAX_VALUE;
             if (localMin < min) min = localMin;
         }
         return min;
@@ -46,7 +46,9 @@ public class LinearChartView extends BaseChartView<ChartData, LineViewData> {
 
                 int localStart = Math.max(0, startXIndex - additionalPoints);
                 int localEnd = Math.min(chartData.xPercentage.length - 1, endXIndex + additionalPoints);
-                for (int i = localStart; i <= localEnd; i++) {
+                int sampleCount = sampleIndexes(y, localStart, localEnd, fullWidth);
+                for (int s = 0; s < sampleCount; s++) {
+                    int i = sampledIndexes[s];
                     if (y[i] < 0) continue;
                     float xPoint = chartData.xPercentage[i] * fullWidth - offset;
                     float yPercentage = ((float) y[i] - currentMinHeight) / (currentMaxHeight - currentMinHeight);
@@ -125,7 +127,9 @@ public class LinearChartView extends BaseChartView<ChartData, LineViewData> {
                 int[] y = line.line.y;
 
                 line.chartPath.reset();
-                for (int i = 0; i < n; i++) {
+                int sampleCount = sampleIndexes(y, 0, n - 1, pickerWidth);
+                for (int s = 0; s < sampleCount; s++) {
+                    int i = sampledIndexes[s];
                     if (y[i] < 0) continue;
                     float xPoint = chartData.xPercentage[i] * pickerWidth;
                     float h = ANIMATE_PICKER_SIZES ? pickerMaxHeight : chartData.maxValue;
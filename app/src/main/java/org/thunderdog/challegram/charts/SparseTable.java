@@ -0,0 +1,125 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.charts;
+
+/**
+ * Answers range minimum and maximum queries in constant time.
+ *
+ * Level {@code k} holds min and max of every {@code 2^k} consecutive values, stored in flat arrays.
+ * Any range is covered by two overlapping blocks of the same level, so a query takes two lookups,
+ * which matters as queries run on every frame while the chart range is being dragged.
+ */
+public class SparseTable {
+  private static final int MIN_SIZE = 32;
+
+  private final int[] array;
+  private final int[] levelOffsets;
+  private final int[] min, max;
+
+  public SparseTable (int[] array) {
+    this.array = array;
+    int n = array.length;
+    if (n < MIN_SIZE) {
+      // Scanning few values is cheaper than building levels
+      this.levelOffsets = null;
+      this.min = this.max = null;
+      return;
+    }
+    final int levelCount = log2(n) + 1;
+    this.levelOffsets = new int[levelCount];
+    int size = 0;
+    for (int level = 1; level < levelCount; level++) {
+      levelOffsets[level] = size;
+      size += n - (1 << level) + 1;
+    }
+    this.min = new int[size];
+    this.max = new int[size];
+
+    // Level 0 is the array itself
+    int half = 1;
+    for (int level = 1; level < levelCount; level++) {
+      int offset = levelOffsets[level];
+      int count = n - (1 << level) + 1;
+      if (level == 1) {
+        for (int i = 0; i < count; i++) {
+          int a = array[i], b = array[i + 1];
+          min[offset + i] = Math.min(a, b);
+          max[offset + i] = Math.max(a, b);
+        }
+      } else {
+        int prevOffset = levelOffsets[level - 1];
+        for (int i = 0; i < count; i++) {
+          min[offset + i] = Math.min(min[prevOffset + i], min[prevOffset + i + half]);
+          max[offset + i] = Math.max(max[prevOffset + i], max[prevOffset + i + half]);
+        }
+      }
+      half <<= 1;
+    }
+  }
+
+  private static int log2 (int value) {
+    return 31 - Integer.numberOfLeadingZeros(value);
+  }
+
+  public int size () {
+    return array.length;
+  }
+
+  /**
+   * @return Maximum value within {@code [from, to]}, or {@link Integer#MIN_VALUE} if range is empty.
+   */
+  public int rMaxQ (int from, int to) {
+    if (from < 0) from = 0;
+    if (to > array.length - 1) to = array.length - 1;
+    if (from > to) {
+      return Integer.MIN_VALUE;
+    }
+    if (from == to) {
+      return array[from];
+    }
+    if (max == null) {
+      int result = Integer.MIN_VALUE;
+      for (int i = from; i <= to; i++) {
+        if (array[i] > result) result = array[i];
+      }
+      return result;
+    }
+    int level = log2(to - from + 1);
+    int offset = levelOffsets[level];
+    return Math.max(max[offset + from], max[offset + to - (1 << level) + 1]);
+  }
+
+  /**
+   * @return Minimum value within {@code [from, to]}, or {@link Integer#MAX_VALUE} if range is empty.
+   */
+  public int rMinQ (int from, int to) {
+    if (from < 0) from = 0;
+    if (to > array.length - 1) to = array.length - 1;
+    if (from > to) {
+      return Integer.MAX_VALUE;
+    }
+    if (from == to) {
+      return array[from];
+    }
+    if (min == null) {
+      int result = Integer.MAX_VALUE;
+      for (int i = from; i <= to; i++) {
+        if (array[i] < result) result = array[i];
+      }
+      return result;
+    }
+    int level = log2(to - from + 1);
+    int offset = levelOffsets[level];
+    return Math.min(min[offset + from], min[offset + to - (1 << level) + 1]);
+  }
+}
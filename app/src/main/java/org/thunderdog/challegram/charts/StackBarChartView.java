@@ -263,7 +263,7 @@ public class StackBarChartView extends BaseChartView<StackBarChartData, StackBar
             }
         }
 
-        chartData.ySumSegmentTree = new SegmentTree(chartData.ySum);
+        chartData.ySumMinMaxTable = new SparseTable(chartData.ySum);
         super.onCheckChanged();
     }
 
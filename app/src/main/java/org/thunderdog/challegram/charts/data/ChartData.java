@@ -4,10 +4,7 @@ import android.graphics.Color;
 
 import androidx.core.graphics.ColorUtils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.thunderdog.challegram.charts.SegmentTree;
+import org.thunderdog.challegram.charts.SparseTable;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -32,48 +29,33 @@ public class ChartData {
 
     protected long timeStep;
 
-    public ChartData(JSONObject jsonObject) throws JSONException {
-        JSONArray columns = jsonObject.getJSONArray("columns");
-
-        int n = columns.length();
-        for (int i = 0; i < columns.length(); i++) {
-            JSONArray a = columns.getJSONArray(i);
-            if (a.getString(0).equals("x")) {
-                int len = a.length() - 1;
-                x = new long[len];
-                for (int j = 0; j < len; j++) {
-                    x[j] = a.getLong(j + 1);
-                }
-            } else {
-                Line l = new Line();
-                lines.add(l);
-                int len = a.length() - 1;
-                l.id = a.getString(0);
-                l.y = new int[len];
-                for (int j = 0; j < len; j++) {
-                    l.y[j] = a.getInt(j + 1);
-                    if (l.y[j] > l.maxValue) l.maxValue = l.y[j];
-                    if (l.y[j] < l.minValue) l.minValue = l.y[j];
-                }
-            }
-
-            if (x.length > 1) {
-                timeStep = x[1] - x[0];
-            } else {
-                timeStep = 86400000L;
+    public ChartData(ChartDataReader.Result data) {
+        x = data.x;
+        for (int i = 0; i < data.lineIds.size(); i++) {
+            Line l = new Line();
+            lines.add(l);
+            l.id = data.lineIds.get(i);
+            l.y = data.lineValues.get(i);
+            for (int value : l.y) {
+                if (value > l.maxValue) l.maxValue = value;
+                if (value < l.minValue) l.minValue = value;
             }
-            measure();
         }
 
-        JSONObject colors = jsonObject.optJSONObject("colors");
-        JSONObject names = jsonObject.optJSONObject("names");
+        if (x.length > 1) {
+            timeStep = x[1] - x[0];
+        } else {
+            timeStep = 86400000L;
+        }
+        measure();
 
         Pattern colorPattern = Pattern.compile("(.*)(#.*)");
         for (int i = 0; i < lines.size(); i++) {
             Line line = lines.get(i);
 
-            if (colors != null) {
-                Matcher matcher = colorPattern.matcher(colors.getString(line.id));
+            String color = data.colors.get(line.id);
+            if (color != null) {
+                Matcher matcher = colorPattern.matcher(color);
                 if (matcher.matches()) {
                     String key = matcher.group(1);
                     if (key != null) {
@@ -85,8 +67,9 @@ public class ChartData {
                 }
             }
 
-            if (names != null) {
-                line.name = names.getString(line.id);
+            String name = data.names.get(line.id);
+            if (name != null) {
+                line.name = name;
             }
 
         }
@@ -114,7 +97,7 @@ public class ChartData {
             if (lines.get(i).maxValue > maxValue) maxValue = lines.get(i).maxValue;
             if (lines.get(i).minValue < minValue) minValue = lines.get(i).minValue;
 
-            lines.get(i).segmentTree = new SegmentTree(lines.get(i).y);
+            lines.get(i).minMaxTable = new SparseTable(lines.get(i).y);
         }
 
 
@@ -226,7 +209,7 @@ public class ChartData {
     public class Line {
         public int[] y;
 
-        public SegmentTree segmentTree;
+        public SparseTable minMaxTable;
         public String id;
         public String name;
         public int maxValue = 0;
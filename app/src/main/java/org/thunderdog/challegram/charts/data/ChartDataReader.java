@@ -0,0 +1,149 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.charts.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Streaming reader for {@link org.drinkless.tdlib.TdApi.StatisticalGraphData#jsonData}.
+ *
+ * Column values are written straight into primitive arrays through a shared growable buffer,
+ * without building intermediate {@link org.json.JSONArray} trees with boxed values.
+ */
+public final class ChartDataReader {
+  private static final String COLUMN_X = "x";
+
+  public static final class Result {
+    public long[] x;
+    public final List<String> lineIds = new ArrayList<>();
+    public final List<int[]> lineValues = new ArrayList<>();
+    public final HashMap<String, String> colors = new HashMap<>();
+    public final HashMap<String, String> names = new HashMap<>();
+  }
+
+  private long[] buffer = new long[256];
+
+  private ChartDataReader () { }
+
+  @WorkerThread
+  public static Result read (@NonNull String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      Result result = new ChartDataReader().readRoot(reader);
+      if (result.x == null) {
+        throw new IOException("Missing x column");
+      }
+      for (int[] values : result.lineValues) {
+        if (values.length != result.x.length) {
+          throw new IOException("Column size mismatch: " + values.length + " vs " + result.x.length);
+        }
+      }
+      return result;
+    } catch (IllegalStateException | NumberFormatException e) {
+      // Unexpected token or malformed number
+      throw new IOException(e);
+    }
+  }
+
+  private Result readRoot (JsonReader reader) throws IOException {
+    Result result = new Result();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "columns":
+          readColumns(reader, result);
+          break;
+        case "colors":
+          readStrings(reader, result.colors);
+          break;
+        case "names":
+          readStrings(reader, result.names);
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    return result;
+  }
+
+  private void readColumns (JsonReader reader, Result result) throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      reader.beginArray();
+      String id = reader.nextString();
+      int count = 0;
+      while (reader.hasNext()) {
+        if (count == buffer.length) {
+          buffer = Arrays.copyOf(buffer, count << 1);
+        }
+        buffer[count++] = nextValue(reader);
+      }
+      reader.endArray();
+      if (COLUMN_X.equals(id)) {
+        result.x = Arrays.copyOf(buffer, count);
+      } else {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+          values[i] = (int) buffer[i];
+        }
+        result.lineIds.add(id);
+        result.lineValues.add(values);
+      }
+    }
+    reader.endArray();
+  }
+
+  private static long nextValue (JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return 0;
+    }
+    // nextLong() fails on fractional values, which org.json used to truncate
+    return (long) reader.nextDouble();
+  }
+
+  private static void readStrings (JsonReader reader, HashMap<String, String> out) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return;
+    }
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      @Nullable String value;
+      if (reader.peek() == JsonToken.STRING) {
+        value = reader.nextString();
+      } else {
+        reader.skipValue();
+        value = null;
+      }
+      if (value != null) {
+        out.put(key, value);
+      }
+    }
+    reader.endObject();
+  }
+}
@@ -1,8 +1,10 @@
 package org.thunderdog.challegram.charts.data;
 
+import androidx.annotation.WorkerThread;
+
 import org.drinkless.tdlib.TdApi;
-import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.io.IOException;
 
 public class ChartDataUtil {
   public static final int TYPE_LINEAR = 0;
@@ -10,17 +12,18 @@ public class ChartDataUtil {
   public static final int TYPE_STACK_BAR = 2;
   public static final int TYPE_STACK_PIE = 4;
 
-  public static ChartData create (TdApi.StatisticalGraphData data, int type) throws JSONException {
-    JSONObject json = new JSONObject(data.jsonData);
+  @WorkerThread
+  public static ChartData create (TdApi.StatisticalGraphData data, int type) throws IOException {
+    ChartDataReader.Result result = ChartDataReader.read(data.jsonData);
     switch (type) {
       case TYPE_LINEAR:
-        return new ChartData(json);
+        return new ChartData(result);
       case TYPE_DOUBLE_LINEAR:
-        return new DoubleLinearChartData(json);
+        return new DoubleLinearChartData(result);
       case TYPE_STACK_BAR:
-        return new StackBarChartData(json);
+        return new StackBarChartData(result);
       case TYPE_STACK_PIE:
-        return new StackLinearChartData(json);
+        return new StackLinearChartData(result);
     }
     throw new IllegalArgumentException("type == " + type);
   }
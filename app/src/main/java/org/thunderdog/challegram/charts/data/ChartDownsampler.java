@@ -0,0 +1,129 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.charts.data;
+
+/**
+ * Picks points of a line to draw when there are more of them than pixels to draw on,
+ * using a variant of Largest-Triangle-Three-Buckets, which keeps peaks and valleys of the line visible.
+ *
+ * Buckets are anchored to a fixed grid starting at index 0, and each bucket is compared against
+ * averages of its neighbouring grid buckets instead of the previously selected point. This way the point
+ * picked within a bucket doesn't depend on the visible range, so the line doesn't flicker while panning.
+ */
+public final class ChartDownsampler {
+  private ChartDownsampler () { }
+
+  /**
+   * @param count Number of all points of the line
+   * @param widthPx Width all points of the line take
+   * @return Number of consecutive points forming a single bucket, 1 when all points fit.
+   */
+  public static int bucketSize (int count, float widthPx) {
+    if (count <= 1 || widthPx < 1f) {
+      return 1;
+    }
+    return Math.max(1, (int) Math.ceil((count - 1) / widthPx));
+  }
+
+  /**
+   * @return Maximum number of indices {@link #downsample} may select.
+   */
+  public static int maxCount (int start, int end, int bucketSize) {
+    int count = end - start + 1;
+    if (count <= 0) {
+      return 0;
+    }
+    return bucketSize <= 1 ? count : Math.min(count, (end - start) / bucketSize + 4);
+  }
+
+  /**
+   * Selects one index per grid bucket from {@code [start, end]} range.
+   * First and last indices are always selected.
+   *
+   * @param out Receives selected indices in ascending order. Must fit at least {@link #maxCount} items.
+   * @return Number of selected indices.
+   */
+  public static int downsample (float[] x, int[] y, int start, int end, int bucketSize, int[] out) {
+    int count = end - start + 1;
+    if (count <= 0) {
+      return 0;
+    }
+    if (bucketSize <= 1 || count <= 2) {
+      for (int i = 0; i < count; i++) {
+        out[i] = start + i;
+      }
+      return count;
+    }
+    final int length = Math.min(x.length, y.length);
+    int selected = 0;
+    out[selected++] = start;
+
+    final int firstBucket = (start + 1) / bucketSize;
+    final int lastBucket = (end - 1) / bucketSize;
+    for (int bucket = firstBucket; bucket <= lastBucket; bucket++) {
+      // Edge buckets may be cut by the range, the rest are always the same
+      int rangeStart = Math.max(bucket * bucketSize, start + 1);
+      int rangeEnd = Math.min((bucket + 1) * bucketSize, end);
+      if (rangeStart >= rangeEnd) {
+        continue;
+      }
+
+      // Average points of the previous and the next grid buckets, regardless of the range
+      float ax, ay;
+      if (bucket == 0) {
+        ax = x[0];
+        ay = y[0];
+      } else {
+        ax = ay = 0;
+        int prevStart = (bucket - 1) * bucketSize;
+        int prevEnd = bucket * bucketSize;
+        for (int i = prevStart; i < prevEnd; i++) {
+          ax += x[i];
+          ay += y[i];
+        }
+        ax /= bucketSize;
+        ay /= bucketSize;
+      }
+      float cx, cy;
+      int nextStart = (bucket + 1) * bucketSize;
+      if (nextStart >= length) {
+        cx = x[length - 1];
+        cy = y[length - 1];
+      } else {
+        cx = cy = 0;
+        int nextEnd = Math.min(nextStart + bucketSize, length);
+        for (int i = nextStart; i < nextEnd; i++) {
+          cx += x[i];
+          cy += y[i];
+        }
+        cx /= nextEnd - nextStart;
+        cy /= nextEnd - nextStart;
+      }
+
+      // Point of the current bucket forming the largest triangle with both averages
+      float maxArea = -1f;
+      int maxIndex = rangeStart;
+      for (int i = rangeStart; i < rangeEnd; i++) {
+        float area = Math.abs((ax - cx) * (y[i] - ay) - (ax - x[i]) * (cy - ay));
+        if (area > maxArea) {
+          maxArea = area;
+          maxIndex = i;
+        }
+      }
+      out[selected++] = maxIndex;
+    }
+
+    out[selected++] = end;
+    return selected;
+  }
+}
@@ -1,15 +1,13 @@
 package org.thunderdog.challegram.charts.data;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 
 public class DoubleLinearChartData extends ChartData {
 
     public float[] linesK;
 
 
-    public DoubleLinearChartData(JSONObject jsonObject) throws JSONException {
-        super(jsonObject);
+    public DoubleLinearChartData(ChartDataReader.Result data) {
+        super(data);
     }
 
     @Override
@@ -1,17 +1,15 @@
 package org.thunderdog.challegram.charts.data;
 
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.thunderdog.challegram.charts.SegmentTree;
+import org.thunderdog.challegram.charts.SparseTable;
 
 public class StackBarChartData extends ChartData {
 
     public int[] ySum;
-    public SegmentTree ySumSegmentTree;
+    public SparseTable ySumMinMaxTable;
 
-    public StackBarChartData(JSONObject jsonObject) throws JSONException {
-        super(jsonObject);
+    public StackBarChartData(ChartDataReader.Result data) {
+        super(data);
         init();
     }
 
@@ -27,11 +25,11 @@ public class StackBarChartData extends ChartData {
             }
         }
 
-        ySumSegmentTree = new SegmentTree(ySum);
+        ySumMinMaxTable = new SparseTable(ySum);
     }
 
     public int findMax(int start, int end) {
-        return ySumSegmentTree.rMaxQ(start, end);
+        return ySumMinMaxTable.rMaxQ(start, end);
     }
 
 }
@@ -1,8 +1,6 @@
 package org.thunderdog.challegram.charts.data;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.thunderdog.challegram.charts.SegmentTree;
+import org.thunderdog.challegram.charts.SparseTable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,14 +8,14 @@ import java.util.Arrays;
 public class StackLinearChartData extends ChartData {
 
     int[] ySum;
-    SegmentTree ySumSegmentTree;
+    SparseTable ySumMinMaxTable;
 
     public int[][] simplifiedY;
     public int simplifiedSize;
 
 
-    public StackLinearChartData(JSONObject jsonObject) throws JSONException {
-        super(jsonObject);
+    public StackLinearChartData(ChartDataReader.Result data) {
+        super(data);
 
         int n = lines.get(0).y.length;
         int k = lines.size();
@@ -29,7 +27,7 @@ public class StackLinearChartData extends ChartData {
                 ySum[i] += lines.get(j).y[i];
             }
         }
-        ySumSegmentTree = new SegmentTree(ySum);
+        ySumMinMaxTable = new SparseTable(ySum);
     }
 
     public StackLinearChartData(ChartData data, long d) {
@@ -90,8 +90,20 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
   private final MessagesController controller;
   private final Tdlib tdlib;
   private MessagesAdapter adapter;
+  private MessagesPrefetcher prefetcher;
   private LinearLayoutManager manager;
   private final RecyclerView.OnScrollListener listener;
+  private final View.OnAttachStateChangeListener attachListener = new View.OnAttachStateChangeListener() {
+    @Override
+    public void onViewAttachedToWindow (View v) { }
+
+    @Override
+    public void onViewDetachedFromWindow (View v) {
+      if (prefetcher != null) {
+        prefetcher.reset();
+      }
+    }
+  };
   private final MessagesSearchManagerMiddleware searchMiddleware;
 
   private final MessagesLoader loader;
@@ -131,6 +143,9 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
           MessagesManager.this.isScrolling = isScrolling;
           if (!isScrolling) {
             viewMessages(true);
+            if (prefetcher != null) {
+              prefetcher.onScrollIdle();
+            }
           }
         }
         if (newState == RecyclerView.SCROLL_STATE_IDLE) {
@@ -142,6 +157,9 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
       @Override
       public void onScrolled (RecyclerView recyclerView, int dx, int dy) {
         viewMessages(true);
+        if (prefetcher != null && manager != null && dy != 0) {
+          prefetcher.onScrolled(manager.findFirstVisibleItemPosition(), manager.findLastVisibleItemPosition(), dy);
+        }
         if (dy == 0) {
           saveScrollPosition();
           ((MessagesRecyclerView) recyclerView).showDateForcely();
@@ -553,6 +571,9 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
     }
     loader.reuse();
     messageViewer = null;
+    if (prefetcher != null) {
+      prefetcher.reset();
+    }
     adapter.clear(true);
     clearHeaderMessage();
     awaitingForPinnedMessages = false;
@@ -1580,9 +1601,12 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
   public void modifyRecycler (Context context, RecyclerView recyclerView, LinearLayoutManager manager) {
     this.manager = manager;
     this.adapter = new MessagesAdapter(context, this, this.controller);
+    this.prefetcher = new MessagesPrefetcher(tdlib, adapter);
 
     recyclerView.removeOnScrollListener(listener);
     recyclerView.addOnScrollListener(listener);
+    recyclerView.removeOnAttachStateChangeListener(attachListener);
+    recyclerView.addOnAttachStateChangeListener(attachListener);
     recyclerView.setAdapter(adapter);
   }
 
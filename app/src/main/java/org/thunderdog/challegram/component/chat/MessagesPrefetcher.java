@@ -0,0 +1,219 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.component.chat;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.data.TGMessage;
+import org.thunderdog.challegram.loader.ImageCache;
+import org.thunderdog.challegram.loader.ImageDecodeScheduler;
+import org.thunderdog.challegram.loader.ImageFile;
+import org.thunderdog.challegram.loader.ImageLoader;
+import org.thunderdog.challegram.loader.Watcher;
+import org.thunderdog.challegram.loader.WatcherReference;
+import org.thunderdog.challegram.loader.gif.GifFile;
+import org.thunderdog.challegram.telegram.Tdlib;
+import org.thunderdog.challegram.telegram.TdlibFilesManager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import me.vkryl.core.MathUtils;
+import me.vkryl.core.unit.ByteUnit;
+
+/**
+ * Warms image cache and TDLib downloads for messages that are about to be scrolled into view.
+ *
+ * Lookahead grows with scroll velocity, total size of in-flight prefetches is bounded
+ * by {@link #MEMORY_BUDGET}, and everything is cancelled once direction reverses,
+ * the chat is closed or the list is detached. Must be used on the UI thread.
+ */
+public class MessagesPrefetcher implements Watcher {
+  public interface Collector {
+    void addImage (@Nullable ImageFile file);
+    void addGif (@Nullable GifFile file);
+  }
+
+  private static final int MIN_LOOKAHEAD = 3;
+  private static final int MAX_LOOKAHEAD = 12;
+  private static final float VELOCITY_PER_MESSAGE = .75f; // px/ms per extra message
+  private static final long MEMORY_BUDGET = ByteUnit.MIB.toBytes(8);
+  private static final int DEFAULT_IMAGE_SIZE = 512;
+
+  private final Tdlib tdlib;
+  private final MessagesAdapter adapter;
+
+  private final HashMap<String, Request> requests = new HashMap<>();
+  private final SparseIntArray requestedDownloads = new SparseIntArray(); // file id -> message index
+  private int prefetchIndex;
+  private long usedBudget;
+
+  private int direction;
+  private int lastFirst = -1, lastLast = -1;
+  private long lastScrollTime;
+  private float velocity; // px/ms, smoothed
+
+  private static class Request {
+    final ImageFile file;
+    final WatcherReference reference;
+    final long estimatedSize;
+
+    Request (ImageFile file, WatcherReference reference, long estimatedSize) {
+      this.file = file;
+      this.reference = reference;
+      this.estimatedSize = estimatedSize;
+    }
+  }
+
+  public MessagesPrefetcher (Tdlib tdlib, MessagesAdapter adapter) {
+    this.tdlib = tdlib;
+    this.adapter = adapter;
+  }
+
+  public void onScrolled (int first, int last, int dy) {
+    if (first == -1 || last == -1 || dy == 0)
+      return;
+    final long now = SystemClock.uptimeMillis();
+    if (lastScrollTime != 0) {
+      long elapsed = Math.max(1, now - lastScrollTime);
+      float instant = Math.abs((float) dy / (float) elapsed);
+      velocity = velocity * .6f + instant * .4f;
+    }
+    lastScrollTime = now;
+
+    int newDirection;
+    if (lastFirst != -1 && (first != lastFirst || last != lastLast)) {
+      newDirection = Integer.signum((first + last) - (lastFirst + lastLast));
+    } else {
+      newDirection = direction;
+    }
+    lastFirst = first;
+    lastLast = last;
+    if (newDirection == 0)
+      return;
+    if (direction != 0 && newDirection != direction) {
+      cancel(first, last);
+    }
+    direction = newDirection;
+
+    int lookahead = MathUtils.clamp(MIN_LOOKAHEAD + (int) (velocity / VELOCITY_PER_MESSAGE), MIN_LOOKAHEAD, MAX_LOOKAHEAD);
+    int from = direction > 0 ? last + 1 : first - 1;
+    int count = adapter.getMessageCount();
+    for (int i = 0; i < lookahead; i++) {
+      int index = from + i * direction;
+      if (index < 0 || index >= count)
+        break;
+      TGMessage msg = adapter.getMessage(index);
+      if (msg != null && !prefetch(msg, index))
+        break;
+    }
+  }
+
+  public void onScrollIdle () {
+    velocity = 0;
+    lastScrollTime = 0;
+  }
+
+  private boolean budgetExceeded;
+
+  private final Collector collector = new Collector() {
+    @Override
+    public void addImage (@Nullable ImageFile file) {
+      if (file == null || budgetExceeded)
+        return;
+      final String key = file.toString();
+      if (requests.containsKey(key) || ImageCache.instance().contains(file))
+        return;
+      int size = file.getSize() != 0 ? file.getSize() : DEFAULT_IMAGE_SIZE;
+      long estimatedSize = (long) size * (long) size * 4L;
+      if (usedBudget + estimatedSize > MEMORY_BUDGET) {
+        budgetExceeded = true;
+        return;
+      }
+      WatcherReference reference = new WatcherReference(MessagesPrefetcher.this, ImageDecodeScheduler.PRIORITY_PREFETCH);
+      requests.put(key, new Request(file, reference, estimatedSize));
+      usedBudget += estimatedSize;
+      ImageLoader.instance().requestFile(file, reference);
+    }
+
+    @Override
+    public void addGif (@Nullable GifFile file) {
+      if (file == null)
+        return;
+      TdApi.File rawFile = file.getFile();
+      if (rawFile == null || TD.isFileLoaded(rawFile) || requestedDownloads.indexOfKey(rawFile.id) >= 0)
+        return;
+      requestedDownloads.put(rawFile.id, prefetchIndex);
+      tdlib.files().downloadFile(rawFile, TdlibFilesManager.PRIORITY_GIFS, null);
+    }
+  };
+
+  private boolean prefetch (TGMessage msg, int index) {
+    budgetExceeded = false;
+    prefetchIndex = index;
+    msg.collectPrefetchMedia(collector);
+    return !budgetExceeded;
+  }
+
+  @Override
+  public void imageLoaded (ImageFile file, boolean successful, Bitmap bitmap) {
+    // Called on ImageThread; bitmap is already in ImageCache, if it was cacheable
+    tdlib.ui().post(() -> {
+      Request request = requests.remove(file.toString());
+      if (request != null) {
+        usedBudget -= request.estimatedSize;
+      }
+    });
+  }
+
+  public void cancel () {
+    cancel(-1, -1);
+  }
+
+  /**
+   * Cancels all prefetches. Downloads of messages within {@code [first, last]} are kept,
+   * as they have already been scrolled into view.
+   */
+  private void cancel (int first, int last) {
+    if (!requests.isEmpty()) {
+      Iterator<Map.Entry<String, Request>> itr = requests.entrySet().iterator();
+      while (itr.hasNext()) {
+        Request request = itr.next().getValue();
+        itr.remove();
+        ImageLoader.instance().removeWatcher(request.reference);
+      }
+    }
+    usedBudget = 0;
+    for (int i = 0; i < requestedDownloads.size(); i++) {
+      int index = requestedDownloads.valueAt(i);
+      if (index < first || index > last) {
+        tdlib.files().cancelDownloadOrUploadFile(requestedDownloads.keyAt(i), false, false);
+      }
+    }
+    requestedDownloads.clear();
+    direction = 0;
+  }
+
+  public void reset () {
+    cancel();
+    lastFirst = lastLast = -1;
+    onScrollIdle();
+  }
+}
@@ -71,6 +71,8 @@ public class Config {
 
   public static final boolean NEED_TDLIB_CLEANUP = false;
 
+  public static final boolean TDLIB_CACHE_LOCKED_READS = false; // Restores dataLock for TdlibCache getters, to compare reader wait time
+
   public static final boolean FAKE_BACKGROUND_CONNECTION_STATE = true;
 
   public static final boolean NEED_SYSTEM_SYNC = true;
@@ -45,6 +45,7 @@ import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.BaseActivity;
 import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.U;
+import org.thunderdog.challegram.component.chat.MessagesPrefetcher;
 import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.loader.DoubleImageReceiver;
@@ -826,6 +827,15 @@ public class MediaWrapper implements FileProgressComponent.SimpleListener, FileP
     return targetGifFile != null;
   }
 
+  public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+    if (showPreview()) {
+      collector.addImage(previewFile);
+    }
+    if (showImage()) {
+      collector.addImage(targetImageFile);
+    }
+  }
+
   public boolean onTouchEvent (View view, MotionEvent e) {
     return fileProgress.onTouchEvent(view, e);
   }
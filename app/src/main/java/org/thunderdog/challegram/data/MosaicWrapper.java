@@ -23,6 +23,7 @@ import androidx.annotation.Dimension;
 import androidx.annotation.Nullable;
 
 import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.component.chat.MessagesPrefetcher;
 import org.thunderdog.challegram.loader.ComplexReceiver;
 import org.thunderdog.challegram.loader.DoubleImageReceiver;
 import org.thunderdog.challegram.loader.ImageReceiver;
@@ -133,6 +134,12 @@ public class MosaicWrapper implements FactorAnimator.Target, ComplexReceiver.Key
     return MOSAIC_NOT_CHANGED;
   }
 
+  public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+    for (MediaWrapper item : items) {
+      item.collectPrefetchMedia(collector);
+    }
+  }
+
   public MediaWrapper getSingularItem () {
     return items.get(0);
   }
@@ -3837,8 +3837,18 @@ public class TD {
   }
 
   public static boolean canDeleteFiles (Tdlib tdlib, TdApi.Message message) {
+    if (!isHeavyContent(message)) {
+      return false;
+    }
     List<TdApi.File> files = getFiles(message);
     if (files != null) {
+      for (TdApi.File file : files) {
+        if (canDeleteFile(message, file)) {
+          return true;
+        }
+      }
+      // Callers build menus synchronously, so file state is refreshed in place only when
+      // cached state doesn't allow deletion
       tdlib.files().syncFiles(files, 1000L);
       for (TdApi.File file : files) {
         if (canDeleteFile(message, file)) {
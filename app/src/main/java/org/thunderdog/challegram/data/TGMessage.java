@@ -63,6 +63,7 @@ import org.thunderdog.challegram.component.chat.MessageQuickActionSwipeHelper;
 import org.thunderdog.challegram.component.chat.MessageView;
 import org.thunderdog.challegram.component.chat.MessageViewGroup;
 import org.thunderdog.challegram.component.chat.MessagesManager;
+import org.thunderdog.challegram.component.chat.MessagesPrefetcher;
 import org.thunderdog.challegram.component.chat.ReplyComponent;
 import org.thunderdog.challegram.component.sticker.TGStickerObj;
 import org.thunderdog.challegram.config.Config;
@@ -4306,6 +4307,10 @@ public abstract class TGMessage implements InvalidateContentProvider, TdlibDeleg
     receiver.clear();
   }
 
+  public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+    // override in children
+  }
+
   public void invalidateMediaContent (ComplexReceiver receiver, long messageId) {
     receiver.clear();
   }
@@ -29,6 +29,7 @@ import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.component.chat.MessageView;
 import org.thunderdog.challegram.component.chat.MessagesManager;
+import org.thunderdog.challegram.component.chat.MessagesPrefetcher;
 import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.loader.ComplexReceiver;
@@ -797,6 +798,13 @@ public class TGMessageMedia extends TGMessage {
     mosaicWrapper.requestFiles(receiver, invalidate);
   }
 
+  @Override
+  public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+    if (mosaicWrapper != null) {
+      mosaicWrapper.collectPrefetchMedia(collector);
+    }
+  }
+
   @Override
   protected int getContentWidth () {
     int mosaicWidth = mosaicWrapper != null ? mosaicWrapper.getWidth() : 0;
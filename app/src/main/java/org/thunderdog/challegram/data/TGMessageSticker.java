@@ -28,6 +28,7 @@ import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.component.chat.MessageView;
 import org.thunderdog.challegram.component.chat.MessagesManager;
+import org.thunderdog.challegram.component.chat.MessagesPrefetcher;
 import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.emoji.Emoji;
@@ -193,6 +194,16 @@ public class TGMessageSticker extends TGMessage implements AnimatedEmojiListener
       receiver.getImageReceiver(key).requestFile(staticFile);
     }
 
+    public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+      if (sticker == null)
+        return;
+      if (preview != null && !hasAnimationEnded()) {
+        collector.addImage(preview);
+      }
+      collector.addImage(staticFile);
+      collector.addGif(animatedFile);
+    }
+
     public void setSize (int width, int height) {
       this.width = width;
       this.height = height;
@@ -752,6 +763,15 @@ public class TGMessageSticker extends TGMessage implements AnimatedEmojiListener
     }
   }
 
+  @Override
+  public void collectPrefetchMedia (MessagesPrefetcher.Collector collector) {
+    if (representation != null) {
+      for (Representation representation : representation) {
+        representation.collectPrefetchMedia(collector);
+      }
+    }
+  }
+
   private boolean isCaught;
   private float startX, startY;
 
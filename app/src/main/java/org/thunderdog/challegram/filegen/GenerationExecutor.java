@@ -0,0 +1,106 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.filegen;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.vkryl.core.MathUtils;
+
+/**
+ * Runs content generation tasks on a fixed number of threads.
+ *
+ * {@link ThreadPoolExecutor} only grows past its core size once the queue is full,
+ * so all threads are core threads here and time out when idle.
+ * Waiting tasks are ordered by priority, then by submission order.
+ */
+final class GenerationExecutor extends ThreadPoolExecutor {
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+    PRIORITY_EXPORT,
+    PRIORITY_COPY,
+    PRIORITY_PREVIEW
+  })
+  public @interface Priority { }
+
+  public static final int PRIORITY_EXPORT = 0; // language & theme exports
+  public static final int PRIORITY_COPY = 1; // file copies for upload
+  public static final int PRIORITY_PREVIEW = 2; // sticker previews, shown while waiting
+
+  private static final class Task implements Runnable, Comparable<Task> {
+    private final Runnable runnable;
+    private final @Priority int priority;
+    private final long sequence;
+
+    Task (Runnable runnable, int priority, long sequence) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run () {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo (Task other) {
+      if (priority != other.priority) {
+        return Integer.compare(other.priority, priority);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final AtomicLong nextSequence = new AtomicLong();
+
+  GenerationExecutor () {
+    this(MathUtils.clamp(Runtime.getRuntime().availableProcessors(), 2, 4));
+  }
+
+  private GenerationExecutor (int threadCount) {
+    super(threadCount, threadCount, 1, TimeUnit.MINUTES, new PriorityBlockingQueue<>(), newThreadFactory());
+    allowCoreThreadTimeOut(true);
+  }
+
+  private static ThreadFactory newThreadFactory () {
+    final AtomicInteger threadCount = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, "FileGenWorker-" + threadCount.incrementAndGet());
+      thread.setPriority(Thread.NORM_PRIORITY - 1);
+      return thread;
+    };
+  }
+
+  public void execute (@Priority int priority, @NonNull Runnable runnable) {
+    super.execute(new Task(runnable, priority, nextSequence.getAndIncrement()));
+  }
+
+  @Override
+  public void execute (@NonNull Runnable command) {
+    if (command instanceof Task) {
+      super.execute(command);
+    } else {
+      execute(PRIORITY_COPY, command);
+    }
+  }
+}
@@ -24,6 +24,7 @@ import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Xml;
 
 import androidx.annotation.AnyThread;
@@ -59,19 +60,19 @@ import org.thunderdog.challegram.unsorted.Settings;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -108,11 +109,11 @@ public final class TdlibFileGenerationManager {
     return _client;
   }
 
-  ThreadPoolExecutor getContentExecutor () {
+  GenerationExecutor getContentExecutor () {
     if (_contentExecutor == null) {
       synchronized (this) {
         if (_contentExecutor == null) {
-          _contentExecutor = new ThreadPoolExecutor(1, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+          _contentExecutor = new GenerationExecutor();
         }
       }
     }
@@ -615,11 +616,15 @@ public final class TdlibFileGenerationManager {
              Sink sink = Okio.sink(file);
              BufferedSink out = Okio.buffer(sink);) {
           long contentLength = responseBody.contentLength();
+          GenerationProgress progress = new GenerationProgress(conversionId, contentLength);
 
           long done;
-          while ((done = in.read(out.getBuffer(), 2048)) != -1) {
+          while ((done = in.read(out.getBuffer(), COPY_BUFFER_SIZE)) != -1) {
             totalDone += done;
-            tdlib.client().send(new TdApi.SetFileGenerationProgress(conversionId, contentLength, totalDone), tdlib.silentHandler());
+            if (progress.needReport(totalDone)) {
+              out.flush();
+              progress.report(totalDone);
+            }
           }
         } catch (IOException e) {
           error = true;
@@ -637,28 +642,58 @@ public final class TdlibFileGenerationManager {
 
   // Content input
 
-  private ThreadPoolExecutor _contentExecutor;
+  private GenerationExecutor _contentExecutor;
+
+  private static final int COPY_BUFFER_SIZE = (int) ByteUnit.KIB.toBytes(64);
+  private static final long TRANSFER_CHUNK_SIZE = ByteUnit.MIB.toBytes(4);
+  private static final long PROGRESS_INTERVAL_MS = 150;
+  private static final long PROGRESS_MIN_STEP = ByteUnit.KIB.toBytes(256);
+
+  /**
+   * Reports generation progress to TDLib at most every {@link #PROGRESS_INTERVAL_MS},
+   * and only once another percent (or {@link #PROGRESS_MIN_STEP}, when size is unknown) is ready.
+   */
+  private final class GenerationProgress {
+    private final long generationId, expectedSize, minStep;
+    private long lastReportTime, lastReportedSize;
+
+    GenerationProgress (long generationId, long expectedSize) {
+      this.generationId = generationId;
+      this.expectedSize = expectedSize;
+      this.minStep = expectedSize > 0 ? Math.max(1, expectedSize / 100) : PROGRESS_MIN_STEP;
+    }
+
+    boolean needReport (long totalDone) {
+      return totalDone - lastReportedSize >= minStep && SystemClock.uptimeMillis() - lastReportTime >= PROGRESS_INTERVAL_MS;
+    }
+
+    void report (long totalDone) {
+      lastReportTime = SystemClock.uptimeMillis();
+      lastReportedSize = totalDone;
+      tdlib.client().send(new TdApi.SetFileGenerationProgress(generationId, expectedSize, totalDone), tdlib.silentHandler());
+    }
+  }
 
   boolean copy (final long conversionId, final String sourcePath, final Source in, final String destinationPath, final long expectedSize, @Nullable AtomicBoolean isCancelled) {
     boolean ok = true;
     long totalDone = 0;
-    long lastDoneNotify = 0;
     boolean canceled = false;
+    GenerationProgress progress = new GenerationProgress(conversionId, expectedSize);
 
     File file = new File(destinationPath);
 
     try (Sink sink = Okio.sink(file)) {
       try (BufferedSink out = Okio.buffer(sink)) {
         long done;
-        while ((done = in.read(out.getBuffer(), 20480)) != -1) {
+        while ((done = in.read(out.getBuffer(), COPY_BUFFER_SIZE)) != -1) {
           if (canceled = (isCancelled != null && isCancelled.get())) {
             break;
           }
           totalDone += done;
-          if ((done == 0 && totalDone > 0) || totalDone - lastDoneNotify >= ByteUnit.KIB.toBytes(5)) {
+          if (progress.needReport(totalDone)) {
+            // TDLib may start reading the file before generation is finished, so data must be on disk before reporting it
             out.flush();
-            lastDoneNotify = totalDone;
-            tdlib.client().send(new TdApi.SetFileGenerationProgress(conversionId, expectedSize, totalDone), tdlib.silentHandler());
+            progress.report(totalDone);
           }
         }
         out.flush();
@@ -671,6 +706,48 @@ public final class TdlibFileGenerationManager {
     return ok && !canceled;
   }
 
+  /**
+   * Copies local file using {@link FileChannel#transferTo}, so data doesn't pass through Java buffers.
+   */
+  boolean copy (final long conversionId, final File sourceFile, final String destinationPath, @Nullable AtomicBoolean isCancelled) {
+    boolean ok = true;
+    boolean canceled = false;
+    final long startTime = SystemClock.uptimeMillis();
+    long totalDone = 0;
+
+    try (FileInputStream in = new FileInputStream(sourceFile);
+         FileOutputStream out = new FileOutputStream(destinationPath)) {
+      FileChannel inChannel = in.getChannel();
+      FileChannel outChannel = out.getChannel();
+      long size = inChannel.size();
+      GenerationProgress progress = new GenerationProgress(conversionId, size);
+      while (totalDone < size) {
+        if (canceled = (isCancelled != null && isCancelled.get())) {
+          break;
+        }
+        long done = inChannel.transferTo(totalDone, Math.min(TRANSFER_CHUNK_SIZE, size - totalDone), outChannel);
+        if (done <= 0) {
+          // File was truncated while copying
+          break;
+        }
+        totalDone += done;
+        if (progress.needReport(totalDone)) {
+          progress.report(totalDone);
+        }
+      }
+    } catch (IOException e) {
+      ok = false;
+      Log.e("Couldn't copy file for upload:%s", e, sourceFile.getPath());
+    }
+
+    if (ok && !canceled && Log.isEnabled(Log.TAG_VIDEO)) {
+      long elapsedMs = Math.max(1, SystemClock.uptimeMillis() - startTime);
+      Log.i(Log.TAG_VIDEO, "Copied %d bytes in %dms, %.1f MiB/s", totalDone, elapsedMs, (double) totalDone / (double) ByteUnit.MIB.toBytes(1) * 1000.0 / (double) elapsedMs);
+    }
+
+    return ok && !canceled;
+  }
+
   private void generateAnimatedStickerThumb (final String fromPath, final String conversion, final long generationId, final String destinationPath, boolean isVideo) {
     if (Thread.currentThread() != queue()) {
       queue().sendMessage(Message.obtain(
@@ -687,7 +764,7 @@ public final class TdlibFileGenerationManager {
       return;
     }
 
-    getContentExecutor().execute(() -> {
+    getContentExecutor().execute(GenerationExecutor.PRIORITY_PREVIEW, () -> {
       boolean success = false;
       try {
         Bitmap result;
@@ -721,13 +798,10 @@ public final class TdlibFileGenerationManager {
       return;
     }
 
-    getContentExecutor().execute(() -> {
+    getContentExecutor().execute(GenerationExecutor.PRIORITY_COPY, () -> {
       boolean success = false;
       try {
-        File file = new File(fromPath);
-        try (Source in = Okio.source(file)) {
-          success = copy(generationId, fromPath, in, destinationPath, file.length(), null);
-        }
+        success = copy(generationId, new File(fromPath), destinationPath, null);
       } catch (Throwable t) {
         Log.e("Cannot copy file, fromPath: %s", t, fromPath);
       }
@@ -760,7 +834,7 @@ public final class TdlibFileGenerationManager {
       return;
     }
 
-    getContentExecutor().execute(() -> {
+    getContentExecutor().execute(GenerationExecutor.PRIORITY_EXPORT, () -> {
       Arrays.sort(strings, (a, b) -> {
         int s1 = Lang.Pack.getStringSection(a);
         int s2 = Lang.Pack.getStringSection(b);
@@ -873,7 +947,7 @@ public final class TdlibFileGenerationManager {
       queue().sendMessage(Message.obtain(queue().getHandler(), TASK_EXPORT_THEME, BitwiseUtils.splitLongToFirstInt(conversionId), BitwiseUtils.splitLongToSecondInt(conversionId), new Object[] {themeId, flags, author, destinationPath}), 0);
       return;
     }
-    getContentExecutor().execute(() -> {
+    getContentExecutor().execute(GenerationExecutor.PRIORITY_EXPORT, () -> {
       boolean success = false;
       try (FileWriter os = new FileWriter(new File(destinationPath))) {
 
@@ -986,7 +1060,7 @@ public final class TdlibFileGenerationManager {
     int j = arg.indexOf('_');
     final long expectedSize = StringUtils.parseLong(j != -1 ? arg.substring(0, j) : arg);
 
-    getContentExecutor().execute(() -> {
+    getContentExecutor().execute(GenerationExecutor.PRIORITY_COPY, () -> {
       boolean success = false;
       try (InputStream stream = U.openInputStream(sourceUri)) {
         try (Source in = Okio.source(stream)) {
@@ -0,0 +1,281 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.filegen;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.core.BaseThread;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.vkryl.core.MathUtils;
+
+/**
+ * Limits the number of video transcodes running at once to what device codecs can handle.
+ *
+ * Each transcode holds a video decoder and a video encoder for its whole duration,
+ * and hardware codecs fail to start once their instance limit is reached,
+ * so capacity is derived from {@link MediaCodecInfo.CodecCapabilities#getMaxSupportedInstances()}.
+ *
+ * Videos sent together arrive as a burst of generation requests in the order they are sent.
+ * The first video of each burst is started ahead of jobs left over from previous bursts,
+ * so the first item of an album becomes ready as early as possible.
+ *
+ * All methods, except {@link #getStats()}, must be called on the {@link BaseThread} passed to the constructor.
+ * Queue and counters are guarded by the scheduler lock, so stats can be read from any thread.
+ */
+public final class TranscodeScheduler {
+  private static final long BURST_WINDOW_MS = 1500;
+
+  /**
+   * Single transcode. Implementations don't depend on the scheduler,
+   * so any codec backend, including a software one, can be scheduled.
+   */
+  interface Job {
+    /**
+     * @return {@code true}, if job was cancelled while waiting and doesn't need to be started.
+     */
+    boolean isCancelled ();
+
+    /**
+     * Starts transcoding. {@code onFinish} must be called once transcoding ends in any way.
+     * Calling it more than once or after a failed start is allowed.
+     */
+    void start (@NonNull Runnable onFinish) throws Throwable;
+  }
+
+  private static final class Ticket implements Comparable<Ticket> {
+    private final long generationId;
+    private final Job job;
+    private final boolean isLeading;
+    private final long sequence;
+    private final long queueTime;
+
+    Ticket (long generationId, Job job, boolean isLeading, long sequence) {
+      this.generationId = generationId;
+      this.job = job;
+      this.isLeading = isLeading;
+      this.sequence = sequence;
+      this.queueTime = SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public int compareTo (Ticket other) {
+      if (isLeading != other.isLeading) {
+        return isLeading ? -1 : 1;
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final BaseThread thread;
+  private final int maxConcurrency;
+  private final PriorityQueue<Ticket> pendingTickets = new PriorityQueue<>(); // guarded by this
+  private int runningCount; // guarded by this
+  private long nextSequence;
+  private long lastSubmitTime;
+
+  // Guarded by this
+  private int submittedCount, startedCount, finishedCount, skippedCount, peakRunningCount;
+  private long totalWaitMs, totalRunMs;
+
+  TranscodeScheduler (BaseThread thread, int maxConcurrency) {
+    this.thread = thread;
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+  }
+
+  public int getMaxConcurrency () {
+    return maxConcurrency;
+  }
+
+  public void submit (long generationId, @NonNull Job job) {
+    long now = SystemClock.uptimeMillis();
+    synchronized (this) {
+      boolean isLeading = submittedCount == 0 || now - lastSubmitTime >= BURST_WINDOW_MS;
+      lastSubmitTime = now;
+      submittedCount++;
+      pendingTickets.add(new Ticket(generationId, job, isLeading, nextSequence++));
+    }
+    startPending();
+  }
+
+  private void startPending () {
+    Ticket ticket;
+    while ((ticket = pollPending()) != null) {
+      start(ticket);
+    }
+  }
+
+  private synchronized Ticket pollPending () {
+    while (runningCount < maxConcurrency && !pendingTickets.isEmpty()) {
+      Ticket ticket = pendingTickets.poll();
+      if (!ticket.job.isCancelled()) {
+        return ticket;
+      }
+      skippedCount++;
+    }
+    return null;
+  }
+
+  private void start (Ticket ticket) {
+    final long startTime = SystemClock.uptimeMillis();
+    final long waitMs = startTime - ticket.queueTime;
+    final int runningCount, pendingCount;
+    synchronized (this) {
+      totalWaitMs += waitMs;
+      startedCount++;
+      runningCount = ++this.runningCount;
+      peakRunningCount = Math.max(peakRunningCount, runningCount);
+      pendingCount = pendingTickets.size();
+    }
+    if (Log.isEnabled(Log.TAG_VIDEO)) {
+      Log.i(Log.TAG_VIDEO, "Starting transcode, generationId:%d, leading:%b, waited:%dms, running:%d/%d, pending:%d", ticket.generationId, ticket.isLeading, waitMs, runningCount, maxConcurrency, pendingCount);
+    }
+    final AtomicBoolean isFinished = new AtomicBoolean();
+    Runnable onFinish = () -> {
+      if (!isFinished.getAndSet(true)) {
+        thread.post(() -> onFinished(ticket, startTime), 0);
+      }
+    };
+    try {
+      ticket.job.start(onFinish);
+    } catch (Throwable t) {
+      Log.e(Log.TAG_VIDEO, "Cannot start transcode, generationId:%d", t, ticket.generationId);
+      onFinish.run();
+    }
+  }
+
+  private void onFinished (Ticket ticket, long startTime) {
+    long runMs = SystemClock.uptimeMillis() - startTime;
+    final int runningCount, pendingCount;
+    synchronized (this) {
+      totalRunMs += runMs;
+      finishedCount++;
+      runningCount = --this.runningCount;
+      pendingCount = pendingTickets.size();
+    }
+    if (Log.isEnabled(Log.TAG_VIDEO)) {
+      Log.i(Log.TAG_VIDEO, "Transcode finished, generationId:%d, took:%dms, running:%d/%d, pending:%d", ticket.generationId, runMs, runningCount, maxConcurrency, pendingCount);
+    }
+    startPending();
+  }
+
+  // Capacity
+
+  private static final int MAX_CONCURRENCY = 8;
+
+  /**
+   * @return Number of transcodes that can run at once on this device.
+   */
+  public static int detectMaxConcurrency () {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      return 1;
+    }
+    int cpuLimit = MathUtils.clamp(Runtime.getRuntime().availableProcessors(), 1, MAX_CONCURRENCY);
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      // Instance limits are unknown, most devices can run at least two hardware codec pairs
+      return Math.min(cpuLimit, 2);
+    }
+    try {
+      int encoderLimit = getMaxSupportedInstances(MediaFormat.MIMETYPE_VIDEO_AVC, true);
+      int decoderLimit = getMaxSupportedInstances(MediaFormat.MIMETYPE_VIDEO_AVC, false);
+      int codecLimit = Math.min(encoderLimit, decoderLimit);
+      if (codecLimit > 0) {
+        return MathUtils.clamp(codecLimit, 1, cpuLimit);
+      }
+    } catch (Throwable t) {
+      Log.w(Log.TAG_VIDEO, "Cannot query codec capabilities", t);
+    }
+    return Math.min(cpuLimit, 2);
+  }
+
+  @RequiresApi(Build.VERSION_CODES.M)
+  private static int getMaxSupportedInstances (String mimeType, boolean isEncoder) {
+    MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+    int maxInstances = 0;
+    for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+      if (codecInfo.isEncoder() != isEncoder || !isHardwareAccelerated(codecInfo)) {
+        continue;
+      }
+      for (String supportedType : codecInfo.getSupportedTypes()) {
+        if (supportedType.equalsIgnoreCase(mimeType)) {
+          maxInstances = Math.max(maxInstances, codecInfo.getCapabilitiesForType(supportedType).getMaxSupportedInstances());
+          break;
+        }
+      }
+    }
+    return maxInstances;
+  }
+
+  private static boolean isHardwareAccelerated (MediaCodecInfo codecInfo) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      return codecInfo.isHardwareAccelerated();
+    }
+    String name = codecInfo.getName().toLowerCase();
+    return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+  }
+
+  // Stats
+
+  public static class Stats {
+    public int maxConcurrency;
+    public int submittedCount;
+    public int startedCount;
+    public int finishedCount;
+    public int skippedCount;
+    public int runningCount;
+    public int pendingCount;
+    public int peakRunningCount;
+    public long totalWaitMs;
+    public long totalRunMs;
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "slots = " + maxConcurrency +
+        ", submitted = " + submittedCount +
+        ", started = " + startedCount +
+        ", finished = " + finishedCount +
+        ", skipped = " + skippedCount +
+        ", running = " + runningCount +
+        ", pending = " + pendingCount +
+        ", peak = " + peakRunningCount +
+        ", wait = " + totalWaitMs + "ms" +
+        ", run = " + totalRunMs + "ms";
+    }
+  }
+
+  public synchronized Stats getStats () {
+    Stats stats = new Stats();
+    stats.maxConcurrency = maxConcurrency;
+    stats.submittedCount = submittedCount;
+    stats.startedCount = startedCount;
+    stats.finishedCount = finishedCount;
+    stats.skippedCount = skippedCount;
+    stats.runningCount = runningCount;
+    stats.pendingCount = pendingTickets.size();
+    stats.peakRunningCount = peakRunningCount;
+    stats.totalWaitMs = totalWaitMs;
+    stats.totalRunMs = totalRunMs;
+    return stats;
+  }
+}
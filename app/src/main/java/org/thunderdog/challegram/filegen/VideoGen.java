@@ -87,16 +87,11 @@ import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import kotlin.collections.ArrayDeque;
-import me.vkryl.core.MathUtils;
 import me.vkryl.core.StringUtils;
 import me.vkryl.core.lambda.RunnableData;
 import me.vkryl.core.lambda.RunnableLong;
 import me.vkryl.core.unit.ByteUnit;
-import okio.Okio;
-import okio.Source;
 
 public class VideoGen {
   public static final int MESSAGE_START_CONVERSION = 0;
@@ -331,35 +326,30 @@ public class VideoGen {
     awaitOrConvertVideo(sourcePath, destinationPath, info, entry, onProgress, onComplete, onCancel, onFailure);
   }
 
-  private final AtomicInteger runningVideoGenerations = new AtomicInteger();
-  private final ArrayDeque<Runnable> pendingVideoGenerations = new ArrayDeque<>();
+  private volatile TranscodeScheduler transcodeScheduler;
 
-  private int maxParallelVideoGenerations () {
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-      return MathUtils.clamp(Runtime.getRuntime().availableProcessors(), 1, 8);
-    } else {
-      return 1;
+  @WorkerThread
+  private void awaitOrConvertVideo (String sourcePath, String destinationPath, VideoGenerationInfo info, Entry entry, ProgressCallback onProgress, Runnable onComplete, RunnableData<String> onCancel, RunnableData<Throwable> onFailure) {
+    if (transcodeScheduler == null) {
+      transcodeScheduler = new TranscodeScheduler(queue, TranscodeScheduler.detectMaxConcurrency());
     }
-  }
+    transcodeScheduler.submit(info.getGenerationId(), new TranscodeScheduler.Job() {
+      @Override
+      public boolean isCancelled () {
+        return entry.canceled.get();
+      }
 
-  private void awaitOrConvertVideo (String sourcePath, String destinationPath, VideoGenerationInfo info, Entry entry, ProgressCallback onProgress, Runnable onComplete, RunnableData<String> onCancel, RunnableData<Throwable> onFailure) {
-    Runnable act = () -> {
-      runningVideoGenerations.incrementAndGet();
-      convertVideo(sourcePath, destinationPath, info, entry, onProgress, onComplete, onCancel, onFailure, () -> {
-        runningVideoGenerations.decrementAndGet();
-        queue.post(this::checkPostponedVideoGenerations, 0);
-      });
-    };
-    pendingVideoGenerations.add(act);
-    checkPostponedVideoGenerations();
+      @Override
+      public void start (@NonNull Runnable onFinish) {
+        convertVideo(sourcePath, destinationPath, info, entry, onProgress, onComplete, onCancel, onFailure, onFinish);
+      }
+    });
   }
 
-  private void checkPostponedVideoGenerations () {
-    int maxParallelOps = maxParallelVideoGenerations();
-    while (!pendingVideoGenerations.isEmpty() && runningVideoGenerations.get() < maxParallelOps) {
-      Runnable act = pendingVideoGenerations.removeFirst();
-      act.run();
-    }
+  @Nullable
+  public TranscodeScheduler.Stats getTranscodeStats () {
+    TranscodeScheduler scheduler = this.transcodeScheduler;
+    return scheduler != null ? scheduler.getStats() : null;
   }
 
   private void convertVideo (String sourcePath, String destinationPath, VideoGenerationInfo info, Entry entry, ProgressCallback onProgress, Runnable onComplete, RunnableData<String> onCancel, RunnableData<Throwable> onFailure, Runnable after) {
@@ -370,10 +360,12 @@ public class VideoGen {
         convertVideoComplex(sourcePath, destinationPath, info, entry, onProgress, onComplete, onCancel, onFailure, after);
       } else {
         onFailure.runWithData(new RuntimeException());
+        U.run(after);
       }
     } catch (Throwable t) {
       Log.e(t);
       onFailure.runWithData(t);
+      U.run(after);
     }
   }
 
@@ -680,10 +672,7 @@ public class VideoGen {
     tdlib.filegen().getContentExecutor().execute(() -> {
       boolean success = false;
       try {
-        File file = new File(sourcePath);
-        try (Source in = Okio.source(file)) {
-          success = tdlib.filegen().copy(generationId, sourcePath, in, destinationPath, file.length(), entry.canceled);
-        }
+        success = tdlib.filegen().copy(generationId, new File(sourcePath), destinationPath, entry.canceled);
       } catch (Throwable t) {
         Log.e("Cannot copy file, fromPath: %s", t, sourcePath);
       }
@@ -0,0 +1,279 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.U;
+import org.thunderdog.challegram.config.Config;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import me.vkryl.core.unit.ByteUnit;
+
+/**
+ * Pool of mutable bitmaps grouped by power-of-two allocation size classes.
+ *
+ * Bitmaps released by {@link ImageCache} are kept here instead of being recycled,
+ * and {@link ImageReader} borrows them through {@link BitmapFactory.Options#inBitmap}.
+ *
+ * Enabled only when arbitrary-size reuse is supported (KitKat+) and bitmaps
+ * are not pinned by {@link org.thunderdog.challegram.N#pinBitmapIfNeeded(Bitmap)}.
+ */
+public class BitmapPool {
+  private static volatile BitmapPool instance;
+
+  public static BitmapPool instance () {
+    if (instance == null) {
+      synchronized (BitmapPool.class) {
+        if (instance == null) {
+          instance = new BitmapPool(ByteUnit.MIB.toBytes(ENABLED ? 8 : 0));
+        }
+      }
+    }
+    return instance;
+  }
+
+  public static final boolean ENABLED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && !Config.PIN_BITMAP_ENABLED;
+
+  private static final int MIN_SIZE_CLASS = 12; // 4 KiB
+  private static final int MAX_SIZE_CLASS = 26; // 64 MiB
+  private static final int MAX_WASTE_FACTOR = 2; // Do not reuse bitmaps more than twice as large as needed
+
+  private final long maxSize;
+  // Bitmap does not override equals/hashCode, so lookups are identity-based and O(1)
+  private final LinkedHashSet<Bitmap>[] sizeClasses;
+  private final LinkedHashSet<Bitmap> insertionOrder = new LinkedHashSet<>();
+
+  private long size;
+  private long hitCount, missCount, putCount, rejectCount, evictionCount;
+
+  @SuppressWarnings("unchecked")
+  private BitmapPool (long maxSize) {
+    this.maxSize = maxSize;
+    this.sizeClasses = new LinkedHashSet[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new LinkedHashSet<>();
+    }
+  }
+
+  private static int sizeClassOf (long byteCount) {
+    int sizeClass = 64 - Long.numberOfLeadingZeros(Math.max(1, byteCount - 1));
+    return Math.max(MIN_SIZE_CLASS, sizeClass) - MIN_SIZE_CLASS;
+  }
+
+  private static int bytesPerPixel (Bitmap.Config config) {
+    if (config == null)
+      return 4;
+    switch (config) {
+      case ALPHA_8:
+        return 1;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+      default:
+        return 4;
+    }
+  }
+
+  private static int allocationByteCount (Bitmap bitmap) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+  }
+
+  // Borrow
+
+  /**
+   * @return Bitmap with enough capacity to hold {@code width}x{@code height} pixels in the given config,
+   * or {@code null} if there's none. Returned bitmap is not reconfigured and may contain garbage.
+   */
+  @Nullable
+  public Bitmap obtain (int width, int height, Bitmap.Config config) {
+    if (!ENABLED || width <= 0 || height <= 0)
+      return null;
+    final long requiredSize = (long) width * (long) height * (long) bytesPerPixel(config);
+    final int sizeClass = sizeClassOf(requiredSize);
+    if (sizeClass >= sizeClasses.length)
+      return null;
+    synchronized (this) {
+      for (int i = sizeClass; i < Math.min(sizeClasses.length, sizeClass + 2); i++) {
+        Iterator<Bitmap> itr = sizeClasses[i].iterator();
+        while (itr.hasNext()) {
+          Bitmap bitmap = itr.next();
+          int byteCount = allocationByteCount(bitmap);
+          if (byteCount >= requiredSize && byteCount <= requiredSize * MAX_WASTE_FACTOR) {
+            itr.remove();
+            insertionOrder.remove(bitmap);
+            size -= byteCount;
+            hitCount++;
+            return bitmap;
+          }
+        }
+      }
+      missCount++;
+    }
+    return null;
+  }
+
+  /**
+   * Same as {@link #obtain(int, int, Bitmap.Config)}, but returned bitmap
+   * has exact dimensions and is cleared, so it can be drawn into.
+   */
+  @Nullable
+  public Bitmap obtainCleared (int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = obtain(width, height, config);
+    if (bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      try {
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(0);
+      } catch (Throwable t) {
+        Log.w(Log.TAG_IMAGE_LOADER, "Cannot reconfigure pooled bitmap", t);
+        U.recycle(bitmap);
+        return null;
+      }
+    }
+    return bitmap;
+  }
+
+  /**
+   * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap suitable for decoding
+   * with the given options. {@code opts} must contain bounds obtained via {@code inJustDecodeBounds}.
+   *
+   * @return true, if pooled bitmap was assigned.
+   */
+  public boolean prepareOptions (BitmapFactory.Options opts) {
+    if (!ENABLED || opts.inPurgeable || opts.outWidth <= 0 || opts.outHeight <= 0)
+      return false;
+    int sampleSize = Math.max(1, opts.inSampleSize);
+    int width = (opts.outWidth + sampleSize - 1) / sampleSize;
+    int height = (opts.outHeight + sampleSize - 1) / sampleSize;
+    Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+    Bitmap bitmap = obtain(width, height, config);
+    opts.inMutable = true;
+    opts.inBitmap = bitmap;
+    return bitmap != null;
+  }
+
+  /**
+   * Must be called when decode with {@link #prepareOptions(BitmapFactory.Options)} has failed.
+   * Returns borrowed bitmap back to the pool and clears {@link BitmapFactory.Options#inBitmap},
+   * so decoding can be retried without reuse.
+   */
+  public void cancelOptions (BitmapFactory.Options opts) {
+    Bitmap bitmap = opts.inBitmap;
+    opts.inBitmap = null;
+    if (bitmap != null) {
+      release(bitmap);
+    }
+  }
+
+  // Release
+
+  /**
+   * Returns bitmap to the pool, or recycles it when it can't be reused.
+   */
+  public void release (@Nullable Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled())
+      return;
+    if (!ENABLED || !bitmap.isMutable() || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE)) {
+      U.recycle(bitmap);
+      return;
+    }
+    final int byteCount = allocationByteCount(bitmap);
+    final int sizeClass = sizeClassOf(byteCount);
+    if (sizeClass >= sizeClasses.length || byteCount > maxSize / 2) {
+      synchronized (this) {
+        rejectCount++;
+      }
+      U.recycle(bitmap);
+      return;
+    }
+    synchronized (this) {
+      if (!insertionOrder.add(bitmap))
+        return;
+      sizeClasses[sizeClass].add(bitmap);
+      size += byteCount;
+      putCount++;
+      trimToSize(maxSize);
+    }
+  }
+
+  private void trimToSize (long maxSize) {
+    Iterator<Bitmap> itr = insertionOrder.iterator();
+    while (size > maxSize && itr.hasNext()) {
+      Bitmap bitmap = itr.next();
+      itr.remove();
+      int byteCount = allocationByteCount(bitmap);
+      sizeClasses[sizeClassOf(byteCount)].remove(bitmap);
+      size -= byteCount;
+      evictionCount++;
+      U.recycle(bitmap);
+    }
+  }
+
+  public void clear () {
+    synchronized (this) {
+      trimToSize(-1);
+    }
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public long maxSize, size;
+    public int count;
+    public long hitCount, missCount, putCount, rejectCount, evictionCount;
+
+    public float reuseRate () {
+      long total = hitCount + missCount;
+      return total != 0 ? (float) hitCount / (float) total : 0f;
+    }
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "size = " + size + "/" + maxSize +
+        ", count = " + count +
+        ", hits = " + hitCount +
+        ", misses = " + missCount +
+        ", puts = " + putCount +
+        ", rejected = " + rejectCount +
+        ", evictions = " + evictionCount;
+    }
+  }
+
+  public synchronized Stats getStats () {
+    Stats stats = new Stats();
+    stats.maxSize = maxSize;
+    stats.size = size;
+    stats.count = insertionOrder.size();
+    stats.hitCount = hitCount;
+    stats.missCount = missCount;
+    stats.putCount = putCount;
+    stats.rejectCount = rejectCount;
+    stats.evictionCount = evictionCount;
+    return stats;
+  }
+
+  @Override
+  @NonNull
+  public String toString () {
+    return "BitmapPool { " + getStats() + " }";
+  }
+}
@@ -33,13 +33,26 @@ public class ImageActor implements ImageReader.Listener, AudioController.ApicLis
   private ImageFile file;
 
   private volatile boolean isCancelled;
+  private volatile @ImageDecodeScheduler.Priority int priority = ImageDecodeScheduler.PRIORITY_VISIBLE;
 
   public ImageActor (ImageFile file) {
     this.file = file;
   }
 
+  public @ImageDecodeScheduler.Priority int getPriority () {
+    return priority;
+  }
+
+  public void setPriority (@ImageDecodeScheduler.Priority int priority) {
+    if (this.priority != priority) {
+      this.priority = priority;
+      ImageDecodeScheduler.instance().onPriorityChanged(this, file);
+    }
+  }
+
   public void cancel () {
     this.isCancelled = true;
+    ImageDecodeScheduler.instance().onCancelled(this, file);
     if (cancellationSignal != null)
       cancellationSignal.cancel();
     if (file instanceof ImageApicFile) {
@@ -124,7 +137,8 @@ public class ImageActor implements ImageReader.Listener, AudioController.ApicLis
         }
       }
       if (file.shouldBeCached()) {
-        ImageCache.instance().putBitmap(file, (Bitmap) result);
+        // Reference is released by ImageLoader once result is delivered to all receivers
+        ImageCache.instance().putBitmapWithReference(file, (Bitmap) result);
       } else if (isCancelled) {
         Log.i(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap because associated actor is canceled and image should not be cached", file.toString());
         ((Bitmap) result).recycle();
@@ -138,6 +152,14 @@ public class ImageActor implements ImageReader.Listener, AudioController.ApicLis
     ImageLoader.instance().onResult(file, success, result);
   }
 
+  @Override
+  public void onImageLoadCancelled () {
+    if (!isCancelled) {
+      Log.i(Log.TAG_IMAGE_LOADER, "#%s: pending decode was superseded by another actor", file.toString());
+      cancel();
+    }
+  }
+
 
   // TDLib image loader
 
@@ -18,109 +18,260 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
-import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.thunderdog.challegram.Log;
-import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.tool.UI;
 
-import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.vkryl.core.unit.ByteUnit;
 
+/**
+ * Two-tier bitmap cache split into {@link #SHARD_COUNT} independently locked shards.
+ *
+ * Memory tier: access-ordered LRU, byte-budgeted by {@link ActivityManager#getMemoryClass()}.
+ * Budget is shared: a shard may grow past its equal share while the total size fits,
+ * so large bitmaps don't get evicted right after being put. Once total size is exceeded,
+ * shards above their share are trimmed, starting with the one that has grown.
+ * Reference tier: bitmaps currently displayed by any {@link ImageReceiver}, never evicted
+ * while their reference count is positive.
+ *
+ * Bitmap is returned to {@link BitmapPool} only once it is neither in the memory tier nor referenced.
+ * Bitmaps handed out without a reference, by {@link #getBitmap(ImageFile)} or {@link #markUnreferenced(ImageFile, Bitmap)},
+ * are never pooled, as holder may still draw them: they are left to the garbage collector instead.
+ */
 public class ImageCache {
-  private static ImageCache instance;
+  private static volatile ImageCache instance;
 
   public static ImageCache instance () {
     if (instance == null) {
-      instance = new ImageCache();
+      synchronized (ImageCache.class) {
+        if (instance == null) {
+          instance = new ImageCache();
+        }
+      }
     }
     return instance;
   }
 
-  public static HashMap<String, AtomicInteger> getReferenceCounters () {
-    return instance().getCounters();
+  private static final int SHARD_COUNT = 16; // Must be power of two
+
+  private static class Reference {
+    int count;
+    Bitmap bitmap;
+
+    Reference (Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
   }
 
-  private final HashMap<String, AtomicInteger> counters;
-  private final HashMap<String, Integer> rotations;
-  private final HashMap<String, WeakReference<Bitmap>> references;
-  private class BitmapLruCache extends LruCache<String, Bitmap> {
-    public BitmapLruCache (int maxSize) {
-      super(maxSize);
+  private static class Shard {
+    final int index;
+    final long maxSize; // Equal share of the total budget
+    final long totalMaxSize;
+    final AtomicLong totalSize;
+
+    final LinkedHashMap<String, Bitmap> memcache = new LinkedHashMap<>(16, .75f, true);
+    final HashMap<String, Integer> rotations = new HashMap<>();
+    final HashMap<String, Reference> references = new HashMap<>();
+    final Set<Bitmap> unreferencedBitmaps = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    long size;
+    long hitCount, referenceHitCount, missCount, putCount, evictionCount, recycleCount, dropCount;
+
+    Shard (int index, long maxSize, long totalMaxSize, AtomicLong totalSize) {
+      this.index = index;
+      this.maxSize = maxSize;
+      this.totalMaxSize = totalMaxSize;
+      this.totalSize = totalSize;
     }
 
-    @Override
-    protected int sizeOf (String key, Bitmap value) {
-      if (value == null || value.isRecycled())
-        return 1;
-      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) {
-        return value.getRowBytes() * value.getHeight();
-      } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
-        return value.getByteCount();
-      } else {
-        return value.getAllocationByteCount();
-      }
+    // Callers must hold shard lock
+
+    private void addSize (long delta) {
+      size += delta;
+      totalSize.addAndGet(delta);
     }
 
-    @Override
-    protected void entryRemoved (boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
-      if (!counters.containsKey(key)) {
+    private boolean isReferenced (String key) {
+      Reference reference = references.get(key);
+      return reference != null && reference.count > 0;
+    }
+
+    private void recycleIfUnused (String key, Bitmap bitmap, String reason) {
+      if (bitmap == null)
+        return;
+      Reference reference = references.get(key);
+      if (reference != null && reference.bitmap == bitmap)
+        return;
+      if (memcache.get(key) == bitmap)
+        return;
+      if (unreferencedBitmaps.remove(bitmap)) {
         if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
-          Log.v(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap in entryRemoved", key);
+          Log.v(Log.TAG_IMAGE_LOADER, "#%s: dropping unreferenced bitmap in %s", key, reason);
         }
-        U.recycle(oldValue);
+        dropCount++;
+        return;
+      }
+      if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+        Log.v(Log.TAG_IMAGE_LOADER, "#%s: releasing bitmap in %s", key, reason);
       }
+      BitmapPool.instance().release(bitmap);
+      recycleCount++;
+    }
+
+    void put (String key, Bitmap bitmap) {
+      Bitmap previous = memcache.put(key, bitmap);
+      putCount++;
+      final int bitmapSize = sizeOf(bitmap);
+      addSize(bitmapSize);
+      if (previous != null) {
+        addSize(-sizeOf(previous));
+        if (previous != bitmap) {
+          recycleIfUnused(key, previous, "put");
+        }
+      }
+      // Keep bitmap that was just put, unless it doesn't fit the whole cache
+      trimToBudget(bitmapSize <= totalMaxSize ? key : null);
     }
-  }
 
-  private final BitmapLruCache memcache;
+    Bitmap remove (String key) {
+      Bitmap removed = memcache.remove(key);
+      if (removed != null) {
+        addSize(-sizeOf(removed));
+        rotations.remove(key);
+        recycleIfUnused(key, removed, "remove");
+      }
+      return removed;
+    }
+
+    /**
+     * Evicts least recently used entries while this shard is above its share and total budget is exceeded.
+     */
+    void trimToBudget (@Nullable String keepKey) {
+      Iterator<Map.Entry<String, Bitmap>> itr = memcache.entrySet().iterator();
+      while (size > maxSize && totalSize.get() > totalMaxSize && itr.hasNext()) {
+        Map.Entry<String, Bitmap> entry = itr.next();
+        if (keepKey != null && keepKey.equals(entry.getKey())) {
+          continue;
+        }
+        evict(itr, entry, "trimToBudget");
+      }
+    }
 
-  private static final boolean ALLOW_REFERENCES = true;
+    void evictAll () {
+      Iterator<Map.Entry<String, Bitmap>> itr = memcache.entrySet().iterator();
+      while (itr.hasNext()) {
+        evict(itr, itr.next(), "evictAll");
+      }
+    }
+
+    private void evict (Iterator<Map.Entry<String, Bitmap>> itr, Map.Entry<String, Bitmap> entry, String reason) {
+      String key = entry.getKey();
+      Bitmap bitmap = entry.getValue();
+      itr.remove();
+      addSize(-sizeOf(bitmap));
+      evictionCount++;
+      if (!isReferenced(key)) {
+        rotations.remove(key);
+      }
+      recycleIfUnused(key, bitmap, reason);
+    }
+
+    int removeByPrefix (String prefix) {
+      int removedCount = 0;
+      Iterator<Map.Entry<String, Bitmap>> itr = memcache.entrySet().iterator();
+      while (itr.hasNext()) {
+        Map.Entry<String, Bitmap> entry = itr.next();
+        String key = entry.getKey();
+        if (key.startsWith(prefix)) {
+          Bitmap bitmap = entry.getValue();
+          itr.remove();
+          addSize(-sizeOf(bitmap));
+          if (!isReferenced(key)) {
+            rotations.remove(key);
+          }
+          recycleIfUnused(key, bitmap, "clearForAccount");
+          removedCount++;
+        }
+      }
+      return removedCount;
+    }
+  }
+
+  private final Shard[] shards;
+  private final long maxSize;
+  private final AtomicLong totalSize = new AtomicLong();
 
   private ImageCache () {
-    counters = new HashMap<>();
-    rotations = new HashMap<>();
-    memcache = new BitmapLruCache(getMemcacheSize());
-    references = new HashMap<>();
+    this.maxSize = getMemcacheSize();
+    this.shards = new Shard[SHARD_COUNT];
+    long shardSize = Math.max(1, maxSize / SHARD_COUNT);
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      shards[i] = new Shard(i, shardSize, maxSize, totalSize);
+    }
+  }
+
+  // Called without any shard lock held, so shards are locked one at a time
+  private void trimOtherShards (Shard exceptShard) {
+    for (Shard shard : shards) {
+      if (totalSize.get() <= maxSize)
+        break;
+      if (shard == exceptShard)
+        continue;
+      synchronized (shard) {
+        shard.trimToBudget(null);
+      }
+    }
   }
 
-  private boolean hasInMemcache (String key) {
-    return memcache.get(key) != null;
+  private Shard shardFor (String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return shards[h & (SHARD_COUNT - 1)];
   }
 
-  private int getMemcacheSize () {
+  private static long getMemcacheSize () {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-      int mib = Math.min(15, ((ActivityManager) UI.getAppContext().getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 7);
-      return (int) ByteUnit.MIB.toBytes(mib);
+      ActivityManager manager = (ActivityManager) UI.getAppContext().getSystemService(Context.ACTIVITY_SERVICE);
+      // 1/8 of heap, clamped to [4 MiB; 96 MiB]. Former fixed limit was 15 MiB.
+      int mib = Math.max(4, Math.min(96, manager.getMemoryClass() / 8));
+      return ByteUnit.MIB.toBytes(mib);
     } else {
-      return (int) ByteUnit.MIB.toBytes(3);
+      return ByteUnit.MIB.toBytes(3);
     }
   }
 
-  public HashMap<String, AtomicInteger> getCounters () {
-    return counters;
+  private static int sizeOf (Bitmap value) {
+    if (value == null || value.isRecycled())
+      return 1;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) {
+      return value.getRowBytes() * value.getHeight();
+    } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return value.getByteCount();
+    } else {
+      return value.getAllocationByteCount();
+    }
   }
 
+  // References
+
   public void addReference (ImageFile file, Bitmap bitmap) {
     if (file != null && bitmap != null) {
-      synchronized (counters) {
-        final String key = file.toString();
-        AtomicInteger count = counters.get(key);
-        if (count != null) {
-          count.incrementAndGet();
-        } else {
-          counters.put(key, count = new AtomicInteger(1));
-        }
-        if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
-          Log.v(Log.TAG_IMAGE_LOADER, "#%s: reference++: %d", key, count.get());
-        }
+      final String key = file.toString();
+      final Shard shard = shardFor(key);
+      synchronized (shard) {
+        addReferenceImpl(shard, key, bitmap);
       }
     } else {
       if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
@@ -131,30 +282,10 @@ public class ImageCache {
 
   public void removeReference (ImageFile file, Bitmap bitmap) {
     if (file != null && bitmap != null) {
-      synchronized (counters) {
-        String key = file.toString();
-
-        AtomicInteger count = counters.get(key);
-        if (count != null) {
-          int result = count.decrementAndGet();
-          if (result < 0)
-            throw new IllegalStateException("key:" + key);
-          if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
-            Log.v(Log.TAG_IMAGE_LOADER, "#%s: reference--: %d", key, result);
-          }
-          if (result == 0) {
-            counters.remove(key);
-            if (!hasInMemcache(key)) {
-              if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
-                Log.v(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap in removeReference", key);
-              }
-              U.recycle(bitmap);
-            }
-            if (ALLOW_REFERENCES) {
-              references.remove(key);
-            }
-          }
-        }
+      final String key = file.toString();
+      final Shard shard = shardFor(key);
+      synchronized (shard) {
+        removeReferenceImpl(shard, key, bitmap);
       }
     } else if (file == null) {
       if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
@@ -163,77 +294,284 @@ public class ImageCache {
     }
   }
 
+  /**
+   * Atomically moves reference from {@code oldFile} to {@code newFile}.
+   *
+   * Both shards are locked in the index order, so concurrent swaps cannot deadlock
+   * and other threads never observe the intermediate state.
+   */
+  public void replaceReference (@Nullable ImageFile oldFile, @Nullable Bitmap oldBitmap, @Nullable ImageFile newFile, @Nullable Bitmap newBitmap) {
+    final String oldKey = oldFile != null && oldBitmap != null ? oldFile.toString() : null;
+    final String newKey = newFile != null && newBitmap != null ? newFile.toString() : null;
+    if (oldKey == null || newKey == null) {
+      if (oldFile != null) {
+        removeReference(oldFile, oldBitmap);
+      }
+      if (newFile != null && newBitmap != null) {
+        addReference(newFile, newBitmap);
+      }
+      return;
+    }
+    final Shard oldShard = shardFor(oldKey);
+    final Shard newShard = shardFor(newKey);
+    final Shard first = oldShard.index <= newShard.index ? oldShard : newShard;
+    final Shard second = first == oldShard ? newShard : oldShard;
+    synchronized (first) {
+      synchronized (second) {
+        // Add before remove, so the same bitmap under the same key is never recycled in-between
+        addReferenceImpl(newShard, newKey, newBitmap);
+        removeReferenceImpl(oldShard, oldKey, oldBitmap);
+      }
+    }
+  }
+
+  private static void addReferenceImpl (Shard shard, String key, Bitmap bitmap) {
+    Reference reference = shard.references.get(key);
+    if (reference == null) {
+      reference = new Reference(bitmap);
+      shard.references.put(key, reference);
+    } else if (reference.bitmap != bitmap) {
+      reference.bitmap = bitmap;
+    }
+    reference.count++;
+    if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+      Log.v(Log.TAG_IMAGE_LOADER, "#%s: reference++: %d", key, reference.count);
+    }
+  }
+
+  private static void removeReferenceImpl (Shard shard, String key, Bitmap bitmap) {
+    Reference reference = shard.references.get(key);
+    if (reference == null)
+      return;
+    int result = --reference.count;
+    if (result < 0)
+      throw new IllegalStateException("key:" + key);
+    if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+      Log.v(Log.TAG_IMAGE_LOADER, "#%s: reference--: %d", key, result);
+    }
+    if (result == 0) {
+      shard.references.remove(key);
+      if (!shard.memcache.containsKey(key)) {
+        shard.rotations.remove(key);
+      }
+      shard.recycleIfUnused(key, bitmap, "removeReference");
+      if (reference.bitmap != bitmap) {
+        shard.recycleIfUnused(key, reference.bitmap, "removeReference");
+      }
+    }
+  }
+
   private static String getBitmapInfo (@Nullable Bitmap bitmap) {
     return bitmap != null ? (bitmap.isRecycled() ? "recycled" : bitmap.getWidth() + "x" + bitmap.getHeight()) : "null";
   }
 
+  // Memcache
+
   public void putBitmap (ImageFile file, Bitmap bitmap) {
     final String key = file.toString();
-    memcache.put(key, bitmap);
-    if (file.getRotation() != 0) {
-      rotations.put(key, file.getRotation());
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      if (file.getRotation() != 0) {
+        shard.rotations.put(key, file.getRotation());
+      }
+      shard.put(key, bitmap);
+    }
+    if (totalSize.get() > maxSize) {
+      trimOtherShards(shard);
+    }
+  }
+
+  /**
+   * Returned bitmap is not referenced, so once evicted it won't be reused by {@link BitmapPool}.
+   * Prefer {@link #getBitmapWithReference(ImageFile)} when bitmap is not needed for long.
+   */
+  /**
+   * Same as {@link #putBitmap(ImageFile, Bitmap)}, but takes a reference on the bitmap within the same lock,
+   * so it cannot be evicted and reused by {@link BitmapPool} before it reaches its receivers.
+   *
+   * Caller must release it with {@link #removeReference(ImageFile, Bitmap)}.
+   */
+  public void putBitmapWithReference (ImageFile file, Bitmap bitmap) {
+    final String key = file.toString();
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      if (file.getRotation() != 0) {
+        shard.rotations.put(key, file.getRotation());
+      }
+      // Put first, so bitmap previously referenced under the same key is not released by put
+      shard.put(key, bitmap);
+      addReferenceImpl(shard, key, bitmap);
+    }
+    if (totalSize.get() > maxSize) {
+      trimOtherShards(shard);
     }
-    if (ALLOW_REFERENCES) {
-      synchronized (counters) {
-        references.put(key, new WeakReference<>(bitmap));
+  }
+
+  /**
+   * Marks cached bitmap as handed out to a holder that doesn't take references,
+   * so once it leaves the cache it is never reused by {@link BitmapPool}.
+   *
+   * Must be called while bitmap is still cached or referenced by the caller.
+   */
+  public void markUnreferenced (ImageFile file, Bitmap bitmap) {
+    if (bitmap == null)
+      return;
+    final String key = file.toString();
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      Reference reference = shard.references.get(key);
+      if (shard.memcache.get(key) == bitmap || (reference != null && reference.bitmap == bitmap)) {
+        shard.unreferencedBitmaps.add(bitmap);
       }
     }
   }
 
   public Bitmap getBitmap (ImageFile file) {
     final String key = file.toString();
-    final Bitmap cached = memcache.get(key);
-    if (cached != null) {
-      Integer rotation = rotations.get(key);
-      if (rotation != null) {
-        file.setRotation(rotation);
-      }
-    }
-    if (ALLOW_REFERENCES && cached == null) {
-      synchronized (counters) {
-        final WeakReference<Bitmap> reference = references.get(key);
-        final Bitmap referenced = reference != null ? reference.get() : null;
-        if (referenced == null || referenced.isRecycled()) {
-          references.remove(key);
-        } else {
-          return referenced;
-        }
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      Bitmap bitmap = getBitmapImpl(shard, key, file);
+      if (bitmap != null) {
+        shard.unreferencedBitmaps.add(bitmap);
       }
+      return bitmap;
     }
-    return cached;
   }
 
-  @Override
-  @NonNull
-  public String toString () {
-    return "ImageCache { counters = " + counters.size() + ", memcache = " + memcache.size() + " }";
+  /**
+   * Checks whether bitmap is cached without side effects: neither hit/miss counters
+   * nor memory tier access order are affected, so it can be used for speculative probes.
+   */
+  public boolean contains (ImageFile file) {
+    final String key = file.toString();
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      if (shard.memcache.containsKey(key)) {
+        return true;
+      }
+      Reference reference = shard.references.get(key);
+      return reference != null && reference.count > 0 && reference.bitmap != null && !reference.bitmap.isRecycled();
+    }
   }
 
-  public void clear (boolean withMemcache) {
-    synchronized (counters) {
-      if (withMemcache) {
-        counters.clear();
+  /**
+   * Same as {@link #getBitmap(ImageFile)}, but takes a reference on the returned bitmap within the same lock,
+   * so it cannot be evicted and reused by {@link BitmapPool} while caller draws it.
+   *
+   * Caller must release it with {@link #removeReference(ImageFile, Bitmap)}.
+   */
+  @Nullable
+  public Bitmap getBitmapWithReference (ImageFile file) {
+    final String key = file.toString();
+    final Shard shard = shardFor(key);
+    synchronized (shard) {
+      Bitmap bitmap = getBitmapImpl(shard, key, file);
+      if (bitmap != null) {
+        addReferenceImpl(shard, key, bitmap);
       }
+      return bitmap;
     }
-    if (withMemcache) {
-      memcache.evictAll();
+  }
+
+  private static Bitmap getBitmapImpl (Shard shard, String key, ImageFile file) {
+    Bitmap bitmap = shard.memcache.get(key);
+    if (bitmap != null) {
+      shard.hitCount++;
+    } else {
+      Reference reference = shard.references.get(key);
+      if (reference != null && reference.count > 0 && reference.bitmap != null && !reference.bitmap.isRecycled()) {
+        bitmap = reference.bitmap;
+        shard.referenceHitCount++;
+      }
+    }
+    if (bitmap == null) {
+      shard.missCount++;
+      return null;
+    }
+    Integer rotation = shard.rotations.get(key);
+    if (rotation != null) {
+      file.setRotation(rotation);
+    }
+    return bitmap;
+  }
+
+  public void clear (boolean withMemcache) {
+    if (!withMemcache)
+      return;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        shard.references.clear();
+        shard.evictAll();
+        shard.rotations.clear();
+        shard.unreferencedBitmaps.clear();
+      }
     }
+    BitmapPool.instance().clear();
   }
 
   public void clearForAccount (int accountId) {
-    synchronized (counters) {
-      final String prefix = "account" + accountId + "_";
-      /*U.removeByPrefix(counters, prefix);
-      U.removeByPrefix(rotations, prefix);
-      if (ALLOW_REFERENCES) {
-        U.removeByPrefix(references, prefix);
-      }*/
-      Set<String> snapshot = memcache.snapshot().keySet();
-      for (String key : snapshot) {
-        if (key.startsWith(prefix)) {
-          memcache.remove(key);
-        }
+    final String prefix = "account" + accountId + "_";
+    int removedCount = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        removedCount += shard.removeByPrefix(prefix);
       }
     }
+    if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+      Log.i(Log.TAG_IMAGE_LOADER, "clearForAccount(%d): removed %d entries", accountId, removedCount);
+    }
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public long maxSize, size;
+    public int memcacheCount, referenceCount;
+    public long hitCount, referenceHitCount, missCount, putCount, evictionCount, recycleCount, dropCount;
+
+    public float hitRate () {
+      long total = hitCount + referenceHitCount + missCount;
+      return total != 0 ? (float) (hitCount + referenceHitCount) / (float) total : 0f;
+    }
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "size = " + size + "/" + maxSize +
+        ", memcache = " + memcacheCount +
+        ", references = " + referenceCount +
+        ", hits = " + hitCount + "+" + referenceHitCount +
+        ", misses = " + missCount +
+        ", puts = " + putCount +
+        ", evictions = " + evictionCount +
+        ", recycled = " + recycleCount +
+        ", dropped = " + dropCount;
+    }
+  }
+
+  public Stats getStats () {
+    Stats stats = new Stats();
+    stats.maxSize = maxSize;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        stats.size += shard.size;
+        stats.memcacheCount += shard.memcache.size();
+        stats.referenceCount += shard.references.size();
+        stats.hitCount += shard.hitCount;
+        stats.referenceHitCount += shard.referenceHitCount;
+        stats.missCount += shard.missCount;
+        stats.putCount += shard.putCount;
+        stats.evictionCount += shard.evictionCount;
+        stats.recycleCount += shard.recycleCount;
+        stats.dropCount += shard.dropCount;
+      }
+    }
+    return stats;
+  }
+
+  @Override
+  @NonNull
+  public String toString () {
+    return "ImageCache { " + getStats() + " }";
   }
 }
@@ -0,0 +1,282 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import me.vkryl.core.MathUtils;
+
+/**
+ * Pool of decode workers sized by the number of cores.
+ *
+ * Tasks are picked by priority ({@link #PRIORITY_VISIBLE} first), deduplicated by
+ * {@link ImageFile#toString()} and re-queued when {@link ImageActor#setPriority(int)}
+ * changes, e.g. when the last visible {@link WatcherReference} goes away.
+ * Cancelled actors are dropped from the queue without being decoded.
+ */
+public class ImageDecodeScheduler {
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+    PRIORITY_BACKGROUND,
+    PRIORITY_PREFETCH,
+    PRIORITY_VISIBLE
+  })
+  public @interface Priority { }
+
+  public static final int PRIORITY_BACKGROUND = 0;
+  public static final int PRIORITY_PREFETCH = 1;
+  public static final int PRIORITY_VISIBLE = 2;
+  private static final int PRIORITY_COUNT = 3;
+
+  private static volatile ImageDecodeScheduler instance;
+
+  public static ImageDecodeScheduler instance () {
+    if (instance == null) {
+      synchronized (ImageDecodeScheduler.class) {
+        if (instance == null) {
+          instance = new ImageDecodeScheduler();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static class Task {
+    final String key;
+    final ImageActor actor;
+    final ImageFile file;
+    final String path;
+    final ImageReader.Listener listener;
+    final long enqueueTime;
+    int priority;
+
+    Task (String key, ImageActor actor, ImageFile file, String path, ImageReader.Listener listener, int priority) {
+      this.key = key;
+      this.actor = actor;
+      this.file = file;
+      this.path = path;
+      this.listener = listener;
+      this.priority = priority;
+      this.enqueueTime = SystemClock.elapsedRealtime();
+    }
+  }
+
+  private class Worker extends Thread {
+    Worker (int index) {
+      super("ImageDecodeWorker-" + index);
+    }
+
+    @Override
+    public void run () {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        Task task;
+        try {
+          task = take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        try {
+          ImageReader.instance().readImage(task.actor, task.file, task.path, task.listener);
+        } catch (Throwable t) {
+          Log.e(Log.TAG_IMAGE_LOADER, "#%s: Decode task failed", t, task.key);
+          task.listener.onImageLoaded(false, null);
+        }
+      }
+    }
+  }
+
+  private final Object lock = new Object();
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<Task>[] queues = new ArrayDeque[PRIORITY_COUNT];
+  private final HashMap<String, Task> pending = new HashMap<>();
+  private final Worker[] workers;
+
+  // Metrics (guarded by lock)
+  private long submittedCount, executedCount, cancelledCount, deduplicatedCount, reprioritizedCount;
+  private long totalWaitMs, maxWaitMs;
+  private final long[] waitMsByPriority = new long[PRIORITY_COUNT];
+  private final long[] executedByPriority = new long[PRIORITY_COUNT];
+  private int maxQueueDepth;
+
+  private ImageDecodeScheduler () {
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<>();
+    }
+    int workerCount = MathUtils.clamp(Runtime.getRuntime().availableProcessors() - 1, 2, 4);
+    this.workers = new Worker[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      Worker worker = new Worker(i);
+      worker.setDaemon(true);
+      workers[i] = worker;
+      worker.start();
+    }
+  }
+
+  public static boolean isWorkerThread () {
+    return Thread.currentThread() instanceof Worker;
+  }
+
+  public int getWorkerCount () {
+    return workers.length;
+  }
+
+  public void submit (@NonNull ImageActor actor, @NonNull ImageFile file, String path, @NonNull ImageReader.Listener listener) {
+    final String key = file.toString();
+    final int priority = actor.getPriority();
+    final Task superseded;
+    synchronized (lock) {
+      Task existing = pending.get(key);
+      if (existing != null && existing.actor == actor) {
+        deduplicatedCount++;
+        if (priority > existing.priority) {
+          moveTask(existing, priority);
+        }
+        return;
+      }
+      if (existing != null) {
+        // Previous actor for the same key was superseded, decode only once for the new one
+        queues[existing.priority].remove(existing);
+        deduplicatedCount++;
+        superseded = existing;
+      } else {
+        superseded = null;
+      }
+      Task task = new Task(key, actor, file, path, listener, priority);
+      pending.put(key, task);
+      queues[priority].offerLast(task);
+      submittedCount++;
+      maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+      lock.notify();
+    }
+    if (superseded != null) {
+      // Not a failure: results for this key are delivered through the new task
+      superseded.listener.onImageLoadCancelled();
+    }
+  }
+
+  void onPriorityChanged (ImageActor actor, ImageFile file) {
+    final String key = file.toString();
+    synchronized (lock) {
+      Task task = pending.get(key);
+      if (task != null && task.actor == actor) {
+        int priority = actor.getPriority();
+        if (task.priority != priority) {
+          moveTask(task, priority);
+          reprioritizedCount++;
+        }
+      }
+    }
+  }
+
+  void onCancelled (ImageActor actor, ImageFile file) {
+    final String key = file.toString();
+    synchronized (lock) {
+      Task task = pending.get(key);
+      if (task != null && task.actor == actor) {
+        pending.remove(key);
+        queues[task.priority].remove(task);
+        cancelledCount++;
+      }
+    }
+  }
+
+  private void moveTask (Task task, int priority) {
+    queues[task.priority].remove(task);
+    task.priority = priority;
+    queues[priority].offerLast(task);
+  }
+
+  private Task take () throws InterruptedException {
+    synchronized (lock) {
+      while (true) {
+        for (int priority = PRIORITY_COUNT - 1; priority >= 0; priority--) {
+          Task task = queues[priority].pollFirst();
+          if (task == null)
+            continue;
+          pending.remove(task.key);
+          if (task.actor.isCancelled()) {
+            cancelledCount++;
+            continue;
+          }
+          long waitMs = SystemClock.elapsedRealtime() - task.enqueueTime;
+          executedCount++;
+          totalWaitMs += waitMs;
+          maxWaitMs = Math.max(maxWaitMs, waitMs);
+          waitMsByPriority[priority] += waitMs;
+          executedByPriority[priority]++;
+          return task;
+        }
+        lock.wait();
+      }
+    }
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public int workerCount;
+    public int[] queueDepth = new int[PRIORITY_COUNT];
+    public int maxQueueDepth;
+    public long submittedCount, executedCount, cancelledCount, deduplicatedCount, reprioritizedCount;
+    public long averageWaitMs, maxWaitMs;
+    public long[] averageWaitMsByPriority = new long[PRIORITY_COUNT];
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "workers = " + workerCount +
+        ", queue = " + queueDepth[PRIORITY_VISIBLE] + "/" + queueDepth[PRIORITY_PREFETCH] + "/" + queueDepth[PRIORITY_BACKGROUND] +
+        ", maxQueue = " + maxQueueDepth +
+        ", submitted = " + submittedCount +
+        ", executed = " + executedCount +
+        ", cancelled = " + cancelledCount +
+        ", deduplicated = " + deduplicatedCount +
+        ", reprioritized = " + reprioritizedCount +
+        ", wait = " + averageWaitMs + "ms avg, " + maxWaitMs + "ms max" +
+        ", waitByPriority = " + averageWaitMsByPriority[PRIORITY_VISIBLE] + "/" + averageWaitMsByPriority[PRIORITY_PREFETCH] + "/" + averageWaitMsByPriority[PRIORITY_BACKGROUND] + "ms";
+    }
+  }
+
+  public Stats getStats () {
+    Stats stats = new Stats();
+    stats.workerCount = workers.length;
+    synchronized (lock) {
+      for (int i = 0; i < PRIORITY_COUNT; i++) {
+        stats.queueDepth[i] = queues[i].size();
+        stats.averageWaitMsByPriority[i] = executedByPriority[i] != 0 ? waitMsByPriority[i] / executedByPriority[i] : 0;
+      }
+      stats.maxQueueDepth = maxQueueDepth;
+      stats.submittedCount = submittedCount;
+      stats.executedCount = executedCount;
+      stats.cancelledCount = cancelledCount;
+      stats.deduplicatedCount = deduplicatedCount;
+      stats.reprioritizedCount = reprioritizedCount;
+      stats.averageWaitMs = executedCount != 0 ? totalWaitMs / executedCount : 0;
+      stats.maxWaitMs = maxWaitMs;
+    }
+    return stats;
+  }
+}
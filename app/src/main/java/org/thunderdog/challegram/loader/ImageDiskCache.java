@@ -0,0 +1,397 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.U;
+import org.thunderdog.challegram.core.BaseThread;
+import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.telegram.TdlibAccount;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.vkryl.core.FileUtils;
+import me.vkryl.core.unit.ByteUnit;
+import tgx.td.Td;
+
+/**
+ * Second-level cache of already downsampled bitmaps, so cold starts
+ * do not need to decode and scale the original files again.
+ *
+ * Entry layout: header (magic, version, width, height, config, rotation,
+ * source file length and modification time, key) followed by raw pixels.
+ * Entries are read through a memory-mapped file straight into a bitmap
+ * borrowed from {@link BitmapPool}.
+ *
+ * Files live in per-account folders, so {@link #clearForAccount(int)} removes a single directory.
+ * Entries survive account restarts, and are only dropped on log out or when user clears storage.
+ */
+public class ImageDiskCache {
+  private static volatile ImageDiskCache instance;
+
+  public static ImageDiskCache instance () {
+    if (instance == null) {
+      synchronized (ImageDiskCache.class) {
+        if (instance == null) {
+          instance = new ImageDiskCache();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static final int MAGIC = 0x54475854; // "TGXT"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 * 6 + 8 * 2 + 2; // + key bytes
+
+  private static final int CONFIG_ARGB_8888 = 0;
+  private static final int CONFIG_RGB_565 = 1;
+
+  private static final int MAX_IMAGE_SIZE = 1280; // ImageFile.getSize() limit
+  private static final long MAX_ENTRY_SIZE = ByteUnit.MIB.toBytes(1);
+  private static final long MAX_SIZE = ByteUnit.MIB.toBytes(48);
+  private static final long MAX_PENDING_SIZE = ByteUnit.MIB.toBytes(4);
+
+  private final BaseThread writeThread = new BaseThread("ImageDiskCacheThread");
+  private final AtomicLong pendingSize = new AtomicLong();
+
+  // Access-ordered index: file path -> entry size
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, .75f, true);
+  private long size;
+  private boolean indexLoaded;
+
+  private long hitCount, missCount, writeCount, evictionCount, skipCount;
+
+  private ImageDiskCache () { }
+
+  public static File getCacheDir () {
+    return new File(TD.getCacheDir(false), "thumbs");
+  }
+
+  private static File getCacheDir (int accountId) {
+    return new File(getCacheDir(), Integer.toString(accountId));
+  }
+
+  // Eligibility
+
+  public static boolean isEligible (ImageFile file, @Nullable String path) {
+    if (path == null || file.accountId() == TdlibAccount.NO_ID) {
+      return false;
+    }
+    if (!(file.getClass() == ImageFile.class || file instanceof ImageFileRemote)) {
+      // Local, gallery, filtered and generated files either have unstable keys
+      // or are cheap enough to decode.
+      return false;
+    }
+    if (file.getClass() == ImageFile.class && Td.getId(file.getFile()) <= 0) {
+      return false;
+    }
+    int size = file.getSize();
+    return size > 0 && size <= MAX_IMAGE_SIZE &&
+      file.shouldBeCached() &&
+      !file.isPrivate() &&
+      !file.needHiRes() &&
+      file.getBytes() == null;
+  }
+
+  private static String toDiskKey (ImageFile file) {
+    String key = file.toString();
+    if (!file.isWebp() && file.shouldUseBlur() && file.needBlur()) {
+      key += "_blur" + file.getBlurRadius();
+    }
+    return key;
+  }
+
+  private static File toCacheFile (ImageFile file, String diskKey) {
+    return new File(getCacheDir(file.accountId()), U.md5(diskKey));
+  }
+
+  // Read
+
+  @Nullable
+  public Bitmap get (ImageFile file, String path) {
+    final String diskKey = toDiskKey(file);
+    final File cacheFile = toCacheFile(file, diskKey);
+    if (!cacheFile.exists()) {
+      onMiss(null);
+      return null;
+    }
+    final File sourceFile = new File(path);
+    final long ms = SystemClock.elapsedRealtime();
+    Bitmap bitmap = null;
+    boolean broken = false;
+    try (RandomAccessFile f = new RandomAccessFile(cacheFile, "r"); FileChannel channel = f.getChannel()) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        broken = true;
+      } else {
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int config = buffer.getInt();
+        int rotation = buffer.getInt();
+        long sourceLength = buffer.getLong();
+        long sourceModified = buffer.getLong();
+        int keyLength = buffer.getShort() & 0xffff;
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        if (!diskKey.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+          broken = true; // Hash collision, overwrite
+        } else if (sourceLength != sourceFile.length() || sourceModified != sourceFile.lastModified()) {
+          broken = true; // Source has changed
+        } else {
+          Bitmap.Config bitmapConfig = config == CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+          long pixelsSize = (long) width * height * (config == CONFIG_RGB_565 ? 2 : 4);
+          if (width <= 0 || height <= 0 || buffer.remaining() != pixelsSize) {
+            broken = true;
+          } else {
+            bitmap = BitmapPool.instance().obtainCleared(width, height, bitmapConfig);
+            if (bitmap == null) {
+              bitmap = Bitmap.createBitmap(width, height, bitmapConfig);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            if (rotation != 0) {
+              file.setRotation(rotation);
+            }
+          }
+        }
+      }
+    } catch (Throwable t) {
+      Log.w(Log.TAG_IMAGE_LOADER, "#%s: Cannot read cached thumbnail", t, file.toString());
+      if (bitmap != null) {
+        BitmapPool.instance().release(bitmap);
+        bitmap = null;
+      }
+      broken = true;
+    }
+    if (broken) {
+      remove(cacheFile);
+    }
+    if (bitmap != null) {
+      onHit(cacheFile);
+      if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+        Log.v(Log.TAG_IMAGE_LOADER, "#%s: loaded from disk cache in %dms", file.toString(), SystemClock.elapsedRealtime() - ms);
+      }
+    } else {
+      onMiss(broken ? null : cacheFile);
+    }
+    return bitmap;
+  }
+
+  // Write
+
+  public void put (ImageFile file, String path, Bitmap bitmap) {
+    if (!U.isValidBitmap(bitmap))
+      return;
+    final Bitmap.Config config = bitmap.getConfig();
+    final int configId;
+    if (config == Bitmap.Config.ARGB_8888) {
+      configId = CONFIG_ARGB_8888;
+    } else if (config == Bitmap.Config.RGB_565) {
+      configId = CONFIG_RGB_565;
+    } else {
+      return;
+    }
+    final int pixelsSize = bitmap.getRowBytes() * bitmap.getHeight();
+    if (pixelsSize > MAX_ENTRY_SIZE || bitmap.getRowBytes() != bitmap.getWidth() * (configId == CONFIG_RGB_565 ? 2 : 4))
+      return;
+
+    final String diskKey = toDiskKey(file);
+    final byte[] keyBytes = diskKey.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > 0xffff)
+      return;
+    final File sourceFile = new File(path);
+
+    // Pixels are copied synchronously: the bitmap may be released to BitmapPool
+    // and reused long before the write happens.
+    // Copies waiting for the write thread are capped, entries over the cap are just not cached.
+    final int entrySize = HEADER_SIZE + keyBytes.length + pixelsSize;
+    if (pendingSize.addAndGet(entrySize) > MAX_PENDING_SIZE) {
+      pendingSize.addAndGet(-entrySize);
+      onSkip();
+      return;
+    }
+    final ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.allocate(entrySize);
+    } catch (OutOfMemoryError e) {
+      pendingSize.addAndGet(-entrySize);
+      onSkip();
+      return;
+    }
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(bitmap.getWidth());
+    buffer.putInt(bitmap.getHeight());
+    buffer.putInt(configId);
+    buffer.putInt(file.getRotation());
+    buffer.putLong(sourceFile.length());
+    buffer.putLong(sourceFile.lastModified());
+    buffer.putShort((short) keyBytes.length);
+    buffer.put(keyBytes);
+    try {
+      bitmap.copyPixelsToBuffer(buffer);
+    } catch (Throwable t) {
+      Log.w(Log.TAG_IMAGE_LOADER, "#%s: Cannot copy pixels for disk cache", t, file.toString());
+      pendingSize.addAndGet(-entrySize);
+      return;
+    }
+    buffer.flip();
+
+    final File cacheFile = toCacheFile(file, diskKey);
+    writeThread.post(() -> {
+      try {
+        write(cacheFile, buffer);
+      } finally {
+        pendingSize.addAndGet(-entrySize);
+      }
+    }, 0);
+  }
+
+  private void write (File cacheFile, ByteBuffer buffer) {
+    File dir = cacheFile.getParentFile();
+    if (dir == null || !FileUtils.createDirectory(dir))
+      return;
+    File tempFile = new File(dir, cacheFile.getName() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tempFile); FileChannel channel = out.getChannel()) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (Throwable t) {
+      Log.w(Log.TAG_IMAGE_LOADER, "Cannot write disk cache entry", t);
+      tempFile.delete();
+      return;
+    }
+    if (!tempFile.renameTo(cacheFile)) {
+      tempFile.delete();
+      return;
+    }
+    onWrite(cacheFile);
+  }
+
+  // Index
+
+  private void ensureIndexLoaded () {
+    // Must be called under lock
+    if (indexLoaded)
+      return;
+    indexLoaded = true;
+    File[] accountDirs = getCacheDir().listFiles();
+    if (accountDirs == null)
+      return;
+    for (File accountDir : accountDirs) {
+      File[] files = accountDir.listFiles();
+      if (files == null)
+        continue;
+      for (File file : files) {
+        if (file.getName().endsWith(".tmp")) {
+          file.delete();
+        } else {
+          Long prevSize = index.put(file.getPath(), file.length());
+          size += file.length() - (prevSize != null ? prevSize : 0);
+        }
+      }
+    }
+  }
+
+  private synchronized void onHit (File cacheFile) {
+    hitCount++;
+    if (indexLoaded) {
+      index.get(cacheFile.getPath()); // Move to the end
+    }
+  }
+
+  private synchronized void onMiss (@Nullable File cacheFile) {
+    missCount++;
+  }
+
+  private synchronized void onSkip () {
+    skipCount++;
+  }
+
+  private synchronized void onWrite (File cacheFile) {
+    ensureIndexLoaded();
+    writeCount++;
+    Long prevSize = index.put(cacheFile.getPath(), cacheFile.length());
+    size += cacheFile.length() - (prevSize != null ? prevSize : 0);
+    trimToSize(MAX_SIZE);
+  }
+
+  private synchronized void remove (File cacheFile) {
+    if (indexLoaded) {
+      Long removedSize = index.remove(cacheFile.getPath());
+      if (removedSize != null) {
+        size -= removedSize;
+      }
+    }
+    cacheFile.delete();
+  }
+
+  private void trimToSize (long maxSize) {
+    Iterator<Map.Entry<String, Long>> itr = index.entrySet().iterator();
+    while (size > maxSize && itr.hasNext()) {
+      Map.Entry<String, Long> entry = itr.next();
+      itr.remove();
+      size -= entry.getValue();
+      evictionCount++;
+      new File(entry.getKey()).delete();
+    }
+  }
+
+  public void clearForAccount (int accountId) {
+    writeThread.post(() -> {
+      File dir = getCacheDir(accountId);
+      synchronized (this) {
+        if (indexLoaded) {
+          String prefix = dir.getPath() + File.separator;
+          Iterator<Map.Entry<String, Long>> itr = index.entrySet().iterator();
+          while (itr.hasNext()) {
+            Map.Entry<String, Long> entry = itr.next();
+            if (entry.getKey().startsWith(prefix)) {
+              itr.remove();
+              size -= entry.getValue();
+            }
+          }
+        }
+        FileUtils.delete(dir, true);
+      }
+    }, 0);
+  }
+
+  public synchronized String getStats () {
+    return "size = " + size + "/" + MAX_SIZE +
+      ", entries = " + index.size() +
+      ", hits = " + hitCount +
+      ", misses = " + missCount +
+      ", writes = " + writeCount +
+      ", skipped = " + skipCount +
+      ", evictions = " + evictionCount;
+  }
+}
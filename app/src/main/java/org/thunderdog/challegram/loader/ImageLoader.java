@@ -63,6 +63,10 @@ public class ImageLoader {
       @Override
       public void imageLoaded (ImageFile file, boolean successful, Bitmap bitmap) {
         tempWatchers.remove(this);
+        if (successful) {
+          // Listener keeps bitmap without a reference
+          ImageCache.instance().markUnreferenced(file, bitmap);
+        }
         listener.onImageLoaded(successful, bitmap);
         removeWatcher(reference.get());
       }
@@ -358,6 +362,12 @@ public class ImageLoader {
         }
       }
     }
+
+    if (success && file.shouldBeCached()) {
+      // Release reference taken by ImageActor. Receivers take their own references on the main thread,
+      // so this runs after display messages posted above, and bitmap can't be pooled in-between.
+      UI.post(() -> ImageCache.instance().removeReference(file, bitmap));
+    }
   }
 
   public void clear (int accountId, boolean withMemcache) {
@@ -18,6 +18,8 @@ import android.content.ContentUris;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
@@ -58,30 +60,39 @@ public class ImageReader {
     return instance;
   }
 
-  private static byte[] bytesThumb;
+  private static final ThreadLocal<byte[]> bytesThumb = new ThreadLocal<>();
 
-  private final ImageReaderThread imageThread, videoThread, memThread;
+  private final ImageReaderThread memThread;
+  private ImageReaderThread postThread;
 
   private ImageReader () {
-    imageThread = new ImageReaderThread();
-    videoThread = new ImageReaderThread();
     memThread = new ImageReaderThread();
   }
 
+  /**
+   * Runs {@code r} on a serial background thread, created on first use.
+   * Image decoding itself goes through {@link ImageDecodeScheduler}.
+   */
   public void post (Runnable r) {
-    imageThread.post(r, 0);
-  }
-
-  public void postVideo (Runnable r) {
-    videoThread.post(r, 0);
+    ImageReaderThread thread;
+    synchronized (this) {
+      if (postThread == null) {
+        postThread = new ImageReaderThread();
+      }
+      thread = postThread;
+    }
+    thread.post(r, 0);
   }
 
   @SuppressWarnings (value={"SpellCheckingInspection", "deprecation"})
   public void readImage (final ImageActor actor, final ImageFile file, final String path, final Listener listener) {
-    ImageReaderThread thread = file.getBytes() != null ? memThread : file instanceof ImageVideoThumbFile || file instanceof ImageMp3File || (file instanceof ImageGalleryFile && ((ImageGalleryFile) file).isVideo()) ? videoThread : imageThread;
-
-    if (Thread.currentThread() != thread) {
-      thread.readImage(actor, file, path, listener);
+    if (file.getBytes() != null) {
+      if (Thread.currentThread() != memThread) {
+        memThread.readImage(actor, file, path, listener);
+        return;
+      }
+    } else if (!ImageDecodeScheduler.isWorkerThread()) {
+      ImageDecodeScheduler.instance().submit(actor, file, path, listener);
       return;
     }
 
@@ -128,7 +139,14 @@ public class ImageReader {
       return;
     }
 
-    Bitmap bitmap = readImage(file, path);
+    final boolean useDiskCache = ImageDiskCache.isEligible(file, path);
+    Bitmap bitmap = useDiskCache ? ImageDiskCache.instance().get(file, path) : null;
+    if (bitmap == null) {
+      bitmap = readImage(file, path);
+      if (bitmap != null && useDiskCache && !actor.isCancelled()) {
+        ImageDiskCache.instance().put(file, path, bitmap);
+      }
+    }
     listener.onImageLoaded(bitmap != null, bitmap);
   }
 
@@ -311,9 +329,10 @@ public class ImageReader {
             bitmap = null;
           } else {
             int len = (int) f.length();
-            byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-            if (data == null) {
-              bytesThumb = data = new byte[len];
+            byte[] data = bytesThumb.get();
+            if (data == null || data.length < len) {
+              data = new byte[len];
+              bytesThumb.set(data);
             }
             f.readFully(data, 0, len);
             bitmap = BitmapFactory.decodeByteArray(data, 0, len, opts);
@@ -353,9 +372,11 @@ public class ImageReader {
           }
 
           if (bitmap == null) {
-            try (FileInputStream is = new FileInputStream(cacheFile)) {
-              bitmap = BitmapFactory.decodeStream(is, null, opts);
-            }
+            bitmap = decodeWithPool(opts, options -> {
+              try (FileInputStream is = new FileInputStream(cacheFile)) {
+                return BitmapFactory.decodeStream(is, null, options);
+              }
+            });
           }
         }
       }
@@ -431,7 +452,13 @@ public class ImageReader {
     }
     opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
 
-    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+    Bitmap bitmap;
+    try {
+      bitmap = decodeWithPool(opts, options -> BitmapFactory.decodeByteArray(data, 0, data.length, options));
+    } catch (IOException e) {
+      // Never thrown by decodeByteArray
+      bitmap = null;
+    }
 
     if (bitmap != null) {
       if (maxSize > 0 && Math.max(bitmap.getWidth(), bitmap.getHeight()) > maxSize && scaleToFit) {
@@ -650,14 +677,45 @@ public class ImageReader {
   }
 
   public static Bitmap decodeFile (String path, BitmapFactory.Options opts) {
-    try (InputStream is = U.openInputStream(path)) {
-      return BitmapFactory.decodeStream(is, null, opts);
+    try {
+      return decodeWithPool(opts, options -> {
+        try (InputStream is = U.openInputStream(path)) {
+          return BitmapFactory.decodeStream(is, null, options);
+        }
+      });
     } catch (Throwable t) {
       Log.e("Error decoding file", t);
     }
     return null;
   }
 
+  private interface BitmapDecoder {
+    Bitmap decode (BitmapFactory.Options opts) throws IOException;
+  }
+
+  /**
+   * Decodes into a bitmap borrowed from {@link BitmapPool}, when there's a suitable one.
+   * Falls back to a regular allocation if reuse is rejected by the decoder.
+   */
+  private static Bitmap decodeWithPool (BitmapFactory.Options opts, BitmapDecoder decoder) throws IOException {
+    if (opts.inJustDecodeBounds) {
+      return decoder.decode(opts);
+    }
+    BitmapPool pool = BitmapPool.instance();
+    if (pool.prepareOptions(opts)) {
+      try {
+        Bitmap bitmap = decoder.decode(opts);
+        if (bitmap != null) {
+          return bitmap;
+        }
+      } catch (IllegalArgumentException e) {
+        Log.w(Log.TAG_IMAGE_LOADER, "Cannot decode into pooled bitmap, retrying", e);
+      }
+      pool.cancelOptions(opts);
+    }
+    return decoder.decode(opts);
+  }
+
   public static Bitmap decodeVideoFrame (String path, int maxSize) {
     long[] metadata = new long[N.DECODER_METADATA_ARRAY_SIZE];
     long ptr = N.createDecoder(path, metadata, 0);
@@ -859,10 +917,13 @@ public class ImageReader {
     try {
       int scaledWidth = Math.max(1, (int) (width * ratio));
       int scaledHeight = Math.max(1, (int) (height * ratio));
-      resized = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+      resized = scaleIntoPooledBitmap(bitmap, scaledWidth, scaledHeight);
+      if (resized == null) {
+        resized = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+      }
       if (resized != null) {
         if (allowRecycle && !bitmap.isRecycled()) {
-          bitmap.recycle();
+          BitmapPool.instance().release(bitmap);
         }
         if (pin) {
           N.pinBitmapIfNeeded(resized);
@@ -887,7 +948,26 @@ public class ImageReader {
     return resized;
   }
 
+  private static Bitmap scaleIntoPooledBitmap (Bitmap bitmap, int width, int height) {
+    Bitmap.Config config = bitmap.getConfig();
+    if (config == null || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE)) {
+      return null;
+    }
+    Bitmap resized = BitmapPool.instance().obtainCleared(width, height, config);
+    if (resized != null) {
+      Canvas c = new Canvas(resized);
+      c.drawBitmap(bitmap, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+      U.recycle(c);
+    }
+    return resized;
+  }
+
   public interface Listener {
     void onImageLoaded (boolean success, Bitmap result);
+
+    /**
+     * Called instead of {@link #onImageLoaded} when the pending decode was dropped before it started.
+     */
+    default void onImageLoadCancelled () { }
   }
 }
@@ -709,8 +709,14 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
 
       if (file != null) {
         Bitmap bitmap = ImageStrictCache.instance().get(file);
+        Bitmap referencedBitmap = null;
         if (!U.isValidBitmap(bitmap)) {
-          bitmap = ImageCache.instance().getBitmap(file);
+          if (file.needReferences()) {
+            // Hold reference until setBundle takes its own, so bitmap can't be pooled in between
+            bitmap = referencedBitmap = ImageCache.instance().getBitmapWithReference(file);
+          } else {
+            bitmap = ImageCache.instance().getBitmap(file);
+          }
         }
 
         if (!U.isValidBitmap(bitmap)) {
@@ -731,6 +737,10 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
           }
           dispatchCompleted();
         }
+
+        if (referencedBitmap != null) {
+          ImageCache.instance().removeReference(file, referencedBitmap);
+        }
       } else {
         setBundle(null, null, true);
       }
@@ -801,6 +811,10 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
     final boolean needRefs1 = this.file == null || this.file.needReferences();
     final boolean needRefs2 = file == null || file.needReferences();
 
+    if (!needRefs2 && bitmap != null && bitmap != this.bitmap) {
+      ImageCache.instance().markUnreferenced(file, bitmap);
+    }
+
     boolean bitmapChanged = false;
 
     if (sameFiles) {
@@ -808,16 +822,12 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
       final ImageFile oldFile = this.file;
 
       if (oldBitmap != bitmap) {
-        synchronized (ImageCache.getReferenceCounters()) {
-          if (needRefs1 && oldBitmap != null) {
-            ImageCache.instance().removeReference(oldFile, oldBitmap);
-          }
-          if (needRefs2 && bitmap != null) {
-            ImageCache.instance().addReference(file, bitmap);
-          }
-          setBitmap(bitmap);
-          bitmapChanged = true;
-        }
+        ImageCache.instance().replaceReference(
+          needRefs1 ? oldFile : null, oldBitmap,
+          needRefs2 ? file : null, bitmap
+        );
+        setBitmap(bitmap);
+        bitmapChanged = true;
       }
 
       if (oldFile != file) {
@@ -827,30 +837,26 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
       ImageFile oldFile = this.file;
       Bitmap oldBitmap = this.bitmap;
 
-      synchronized (ImageCache.getReferenceCounters()) {
-        this.file = file;
-        setBitmap(bitmap);
+      this.file = file;
+      setBitmap(bitmap);
 
-        if (displayCrop != null) {
-          if (oldFile != null) {
-            oldFile.removeCropStateListener(this);
-          }
-          if (file != null) {
-            displayCrop.set(file.getCropState());
-            file.addCropStateListener(this);
-          } else {
-            displayCrop.set(null);
-          }
-        }
-
-        if (needRefs1 && oldFile != null) {
-          ImageCache.instance().removeReference(oldFile, oldBitmap);
+      if (displayCrop != null) {
+        if (oldFile != null) {
+          oldFile.removeCropStateListener(this);
         }
-        if (needRefs2 && file != null && bitmap != null) {
-          ImageCache.instance().addReference(file, bitmap);
+        if (file != null) {
+          displayCrop.set(file.getCropState());
+          file.addCropStateListener(this);
+        } else {
+          displayCrop.set(null);
         }
       }
 
+      ImageCache.instance().replaceReference(
+        needRefs1 ? oldFile : null, oldBitmap,
+        needRefs2 ? file : null, bitmap
+      );
+
       if (oldBitmap != bitmap) {
         bitmapChanged = true;
       }
@@ -26,6 +26,7 @@ public class ImageWatchers {
     this.actor = actor;
     this.watcherList = new ArrayList<>(2);
     this.watcherList.add(reference);
+    this.actor.setPriority(reference.getPriority());
   }
 
   public ImageFile getFile () {
@@ -50,6 +51,7 @@ public class ImageWatchers {
 
     actor.watcherJoined(reference);
     watcherList.add(reference);
+    updatePriority();
 
     return true;
   }
@@ -59,9 +61,20 @@ public class ImageWatchers {
       return false;
 
     watcherList.remove(reference);
+    if (!watcherList.isEmpty()) {
+      updatePriority();
+    }
     return true;
   }
 
+  private void updatePriority () {
+    int priority = ImageDecodeScheduler.PRIORITY_BACKGROUND;
+    for (WatcherReference reference : watcherList) {
+      priority = Math.max(priority, reference.getPriority());
+    }
+    actor.setPriority(priority);
+  }
+
   public boolean hasWatchers () {
     return watcherList != null && !watcherList.isEmpty();
   }
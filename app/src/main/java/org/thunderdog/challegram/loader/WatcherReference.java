@@ -21,9 +21,19 @@ import java.lang.ref.WeakReference;
 
 public class WatcherReference {
   private Reference<Watcher> reference;
+  private final @ImageDecodeScheduler.Priority int priority;
 
   public WatcherReference (Watcher watcher) {
+    this(watcher, ImageDecodeScheduler.PRIORITY_VISIBLE);
+  }
+
+  public WatcherReference (Watcher watcher, @ImageDecodeScheduler.Priority int priority) {
     this.reference = new WeakReference<>(watcher);
+    this.priority = priority;
+  }
+
+  public @ImageDecodeScheduler.Priority int getPriority () {
+    return priority;
   }
 
   public void imageLoaded (ImageFile file, boolean success, Bitmap bitmap) {
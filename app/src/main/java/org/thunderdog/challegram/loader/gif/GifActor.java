@@ -74,7 +74,8 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
   private @Nullable GifState gif;
   private final long[] metadata;
   private final double[] lottieMetadata;
-  private final GifThread thread;
+  private final GifDecodeExecutor.Queue decodeQueue;
+  private final GifFrameBudget.Slot budgetSlot;
   private final boolean isLottie;
   private int lottieCacheState = LOTTIE_CACHE_NONE;
 
@@ -89,14 +90,15 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
 
   private final boolean isPlayOnce;
 
-  public GifActor (final GifFile file, GifThread thread) {
+  public GifActor (final GifFile file, GifDecodeExecutor.Queue decodeQueue, GifFrameBudget.Slot budgetSlot) {
     this.isPlayOnce = file.isPlayOnce();
     file.setVibrationPattern(Emoji.VIBRATION_PATTERN_NONE);
     this.maxFrameRate = file.hasOptimizations() || Settings.instance().getNewSetting(Settings.SETTING_FLAG_LIMIT_STICKERS_FPS) ? REDUCED_MAX_FRAME_RATE : DEFAULT_MAX_FRAME_RATE;
     this.isLottie = file.getGifType() == GifFile.TYPE_TG_LOTTIE;
     this.metadata = new long[N.DECODER_METADATA_ARRAY_SIZE];
     this.lottieMetadata = new double[3];
-    this.thread = thread;
+    this.decodeQueue = decodeQueue;
+    this.budgetSlot = budgetSlot;
     this.file = file;
     this.isPlaybackFrozen = isFrozen(file);
 
@@ -209,11 +211,17 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
         file.tdlib().client().send(new TdApi.CancelDownloadFile(file.getFileId(), false), fileLoadHandler);
         flags &= ~FLAG_LOADING_FILE;
       } else {
-        thread.onDestroy(this);
+        decodeQueue.onDestroy(this);
       }
     }
   }
 
+  // GifBridge thread
+  void setIdle (boolean isIdle) {
+    // Idle actor has no watchers and requests no frames, but keeps its decoder for a possible revival
+    budgetSlot.setIdle(isIdle);
+  }
+
   // GifBridge thread
   public void watcherJoined (GifWatcherReference reference) {
     if (lastProgress != 0f && (flags & FLAG_LOADING_FILE) != 0) {
@@ -241,7 +249,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     Td.copyTo(file, localFile);
 
     if ((flags & FLAG_CANCELLED) == 0) {
-      thread.startDecoding(this, file.local.path);
+      decodeQueue.startDecoding(this, file.local.path);
     }
   }
 
@@ -404,6 +412,10 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     if (isPlayingRoundVideo) {
       lastTimeStamp = 0;
     }
+    if (!file.isStill()) {
+      double nominalFrameRate = isLottie ? Math.min(frameRate, maxFrameRate()) : metadata[2] != 0 ? (double) metadata[2] / 1000.0 : 25.0;
+      GifBridge.instance().frameBudget().register(budgetSlot, width, height, nominalFrameRate);
+    }
     GifBridge.instance().onGifLoaded(file, gif);
   }
 
@@ -418,7 +430,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       this.gif = gif;
     }
     if (!isPlaybackFrozen) {
-      thread.prepareNextFrame(this);
+      decodeQueue.prepareNextFrame(this);
       scheduleNext(false);
     } else {
       GifBridge.instance().dispatchGifFrameChanged(file, gif, false);
@@ -480,6 +492,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     if (gif == null) {
       return;
     }
+    final long decodeStartTime = System.nanoTime();
     boolean gifRestarted = false;
     boolean success = false;
     boolean async = false;
@@ -612,6 +625,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       }
       if (!async) {
         if (success) {
+          budgetSlot.onFrameDecoded(System.nanoTime() - decodeStartTime);
           gif.addBusy(free);
         } else {
           gif.addFree(free);
@@ -650,7 +664,8 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     if (file.getOptimizationMode() != GifFile.OptimizationMode.NONE) {
       maxFrameRate = Math.min(30.0, maxFrameRate);
     }
-    return maxFrameRate;
+    // Reduced by GifFrameBudget when decoders can't keep up
+    return maxFrameRate / budgetSlot.getFrameRateDivider();
   }
 
   // GifStage thread
@@ -702,6 +717,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     synchronized (this) {
       if ((flags & FLAG_CANCELLED) == 0 && gif != null) {
         if (gif.hasNext()) {
+          budgetSlot.onFrameDisplayed();
           GifBridge.instance().dispatchGifFrameChanged(file, gif, restarted);
         } else if (allowAwait) {
           flags |= FLAG_AWAITING;
@@ -787,7 +803,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
         }
         if (isPlayingRoundVideo) {
           if (TdlibManager.instance().player().isPlayingMessage(file.getChatId(), file.getMessageId())) {
-            thread.prepareStartFrame(this);
+            decodeQueue.prepareStartFrame(this);
             if (lastTimeStamp != 0) {
               scheduleNext(true);
             }
@@ -795,7 +811,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
           return false;
         }
         if (GifBridge.instance().canScheduleNextFrame(this, file.getFileId())) {
-          thread.prepareNextFrame(this);
+          decodeQueue.prepareNextFrame(this);
           scheduleNext(false);
           return true;
         }
@@ -806,6 +822,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
 
   // Decoder thread
   public void onDestroy () {
+    GifBridge.instance().frameBudget().unregister(budgetSlot);
     destroyDecoder();
     if (file != null && file.isRoundVideo()) {
       TdlibManager.instance().player().removeTrackChangeListener(this);
@@ -14,10 +14,12 @@
  */
 package org.thunderdog.challegram.loader.gif;
 
+import android.os.SystemClock;
 import android.view.View;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
 import androidx.annotation.UiThread;
 import androidx.collection.ArraySet;
 
@@ -27,6 +29,9 @@ import org.thunderdog.challegram.telegram.Tdlib;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -43,57 +48,87 @@ public class GifBridge {
     return instance;
   }
 
-  private static final int THREAD_POOL_SIZE = 2;
   private final GifBridgeThread thread;
   private final HashMap<String, GifRecord> records = new HashMap<>();
   private final HashMap<Integer, ArrayList<GifRecord>> fileIdToRecordList = new HashMap<>();
   private final ArrayList<GifRecord> playingRoundVideos = new ArrayList<>();
-  // TODO: rework to executors
-  private int lastUsedThread, lastUsedEmojiThread;
-  private final GifThread[] threads, emojiThreads;
-  private final GifThread[] lottieThreads;
+  private final GifDecodeExecutor decodeExecutor;
+  private final GifFrameBudget frameBudget;
+
+  // Records without watchers whose decoder and frames are kept for a while,
+  // so views re-attached while scrolling reuse them instead of decoding from scratch.
+  // Key -> time the last watcher left. Modified on GifBridge thread, always under records lock.
+  private static final long IDLE_RECORD_TIMEOUT_MS = 2000;
+  private static final int MAX_IDLE_RECORD_COUNT = 32;
+  private final LinkedHashMap<String, Long> idleRecords = new LinkedHashMap<>();
+  private final Runnable idleRecordsReleaser = this::releaseExpiredIdleRecords;
+  private boolean idleReleaseScheduled; // guarded by records
+
+  // Metrics, guarded by records
+  private long createdCount, sharedCount, revivedCount, releasedIdleCount;
 
   private GifBridge () {
     thread = new GifBridgeThread();
-    // TODO: rework to executors
-    threads = new GifThread[THREAD_POOL_SIZE];
-    for (int i = 0; i < threads.length; i++) {
-      threads[i] = new GifThread(i);
-    }
-    emojiThreads = new GifThread[THREAD_POOL_SIZE];
-    for (int i = 0; i < emojiThreads.length; i++) {
-      emojiThreads[i] = new GifThread(i);
+    decodeExecutor = new GifDecodeExecutor();
+    frameBudget = new GifFrameBudget(decodeExecutor.getWorkerCount(), thread);
+  }
+
+  public GifBridgeThread getBaseThread () {
+    return thread;
+  }
+
+  public GifDecodeExecutor.Stats getDecodeStats () {
+    return decodeExecutor.getStats();
+  }
+
+  public GifFrameBudget.Stats getFrameBudgetStats () {
+    return frameBudget.getStats();
+  }
+
+  GifFrameBudget frameBudget () {
+    return frameBudget;
+  }
+
+  public static class SharingStats {
+    public int recordCount, watcherCount, idleRecordCount;
+    public long createdCount, sharedCount, revivedCount, releasedIdleCount;
+
+    /**
+     * @return Average number of views served by a single decoder
+     */
+    public float duplicationFactor () {
+      int activeCount = recordCount - idleRecordCount;
+      return activeCount > 0 ? (float) watcherCount / (float) activeCount : 0f;
     }
-    lottieThreads = new GifThread[5];
-    for (int i = 0; i < lottieThreads.length; i++) {
-      lottieThreads[i] = new GifThread(i);
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "records = " + recordCount +
+        ", watchers = " + watcherCount +
+        ", idle = " + idleRecordCount +
+        ", duplication = " + duplicationFactor() +
+        ", created = " + createdCount +
+        ", shared = " + sharedCount +
+        ", revived = " + revivedCount +
+        ", releasedIdle = " + releasedIdleCount;
     }
   }
 
-  private GifThread obtainFrameThread (GifFile file) {
-    if (file.getGifType() == GifFile.TYPE_TG_LOTTIE) {
-      if (file.isHighPriorityForDecode()) {
-        return lottieThreads[lottieThreads.length - 1];
-      }
-      return lottieThreads[file.getOptimizationMode()];
-    } else {
-      // TODO rework to executors
-      if (file.getOptimizationMode() == GifFile.OptimizationMode.EMOJI) {
-        if (++lastUsedEmojiThread == THREAD_POOL_SIZE) {
-          lastUsedEmojiThread = 0;
-        }
-        return emojiThreads[lastUsedEmojiThread];
-      } else {
-        if (++lastUsedThread == THREAD_POOL_SIZE) {
-          lastUsedThread = 0;
-        }
-        return threads[lastUsedThread];
+  public SharingStats getSharingStats () {
+    SharingStats stats = new SharingStats();
+    synchronized (records) {
+      stats.recordCount = records.size();
+      for (GifRecord record : records.values()) {
+        stats.watcherCount += record.getWatchers().size();
       }
+      stats.idleRecordCount = idleRecords.size();
+      stats.createdCount = createdCount;
+      stats.sharedCount = sharedCount;
+      stats.revivedCount = revivedCount;
+      stats.releasedIdleCount = releasedIdleCount;
     }
-  }
-
-  public GifBridgeThread getBaseThread () {
-    return thread;
+    return stats;
   }
 
   @Keep
@@ -124,9 +159,10 @@ public class GifBridge {
     GifRecord record = records.get(key);
 
     if (record == null) {
-      GifActor actor = new GifActor(file, obtainFrameThread(file));
+      GifActor actor = new GifActor(file, decodeExecutor.newQueue(file), frameBudget.newSlot(file));
       record = new GifRecord(file, actor, reference);
       synchronized (records) {
+        createdCount++;
         records.put(key, record);
         ArrayList<GifRecord> recordList = fileIdToRecordList.get(file.getFileId());
         if (recordList == null) {
@@ -143,12 +179,20 @@ public class GifBridge {
       }
       actor.act();
     } else {
-      if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
-        Log.i(Log.TAG_GIF_LOADER, "#%s: watched joined existing actor", key);
-      }
+      final boolean revived;
       synchronized (records) {
+        revived = idleRecords.remove(key) != null;
+        if (revived) {
+          record.getActor().setIdle(false);
+          revivedCount++;
+        } else {
+          sharedCount++;
+        }
         record.addWatcher(reference);
       }
+      if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
+        Log.i(Log.TAG_GIF_LOADER, "#%s: watched joined %s actor", key, revived ? "idle" : "existing");
+      }
     }
   }
 
@@ -181,26 +225,79 @@ public class GifBridge {
             itemsToRemove = new ArrayList<>();
           }
           itemsToRemove.add(entry.getKey());
-          int fileId = record.getFile().getFileId();
-          ArrayList<GifRecord> recordList = fileIdToRecordList.get(fileId);
-          if (recordList != null && recordList.remove(record) && recordList.isEmpty()) {
-            fileIdToRecordList.remove(fileId);
-          }
-          if (record.getFile().isRoundVideo()) {
-            playingRoundVideos.remove(record);
-          }
         }
       }
       if (itemsToRemove != null) {
+        final long now = SystemClock.uptimeMillis();
         for (String item : itemsToRemove) {
-          GifRecord record = records.remove(item);
-          if (record != null) {
-            record.getActor().cancel();
-            if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
-              Log.i(Log.TAG_GIF_LOADER, "#%s: actor cancelled", record.getFile().toString());
-            }
+          GifRecord record = records.get(item);
+          if (canKeepIdle(record)) {
+            idleRecords.put(item, now);
+            record.getActor().setIdle(true);
+          } else {
+            releaseRecord(item);
           }
         }
+        while (idleRecords.size() > MAX_IDLE_RECORD_COUNT) {
+          Iterator<String> itr = idleRecords.keySet().iterator();
+          String eldestKey = itr.next();
+          itr.remove();
+          releasedIdleCount++;
+          releaseRecord(eldestKey);
+        }
+        if (!idleRecords.isEmpty() && !idleReleaseScheduled) {
+          idleReleaseScheduled = true;
+          thread.post(idleRecordsReleaser, IDLE_RECORD_TIMEOUT_MS);
+        }
+      }
+    }
+  }
+
+  private static boolean canKeepIdle (GifRecord record) {
+    // Only small, frequently repeated animations: stickers, custom emoji and their previews
+    GifFile file = record.getFile();
+    return !file.isRoundVideo() && !file.isUnique() && !file.isPlayOnce() &&
+      (file.getGifType() == GifFile.TYPE_TG_LOTTIE || file.getOptimizationMode() != GifFile.OptimizationMode.NONE);
+  }
+
+  // GifBridge thread, under records lock
+  private void releaseRecord (String key) {
+    GifRecord record = records.remove(key);
+    if (record == null) {
+      return;
+    }
+    int fileId = record.getFile().getFileId();
+    ArrayList<GifRecord> recordList = fileIdToRecordList.get(fileId);
+    if (recordList != null && recordList.remove(record) && recordList.isEmpty()) {
+      fileIdToRecordList.remove(fileId);
+    }
+    if (record.getFile().isRoundVideo()) {
+      playingRoundVideos.remove(record);
+    }
+    record.getActor().cancel();
+    if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
+      Log.i(Log.TAG_GIF_LOADER, "#%s: actor cancelled", key);
+    }
+  }
+
+  // GifBridge thread
+  private void releaseExpiredIdleRecords () {
+    final long now = SystemClock.uptimeMillis();
+    synchronized (records) {
+      idleReleaseScheduled = false;
+      Iterator<Map.Entry<String, Long>> itr = idleRecords.entrySet().iterator();
+      while (itr.hasNext()) {
+        Map.Entry<String, Long> entry = itr.next();
+        long idleMs = now - entry.getValue();
+        if (idleMs < IDLE_RECORD_TIMEOUT_MS) {
+          // Entries are ordered by time they became idle
+          idleReleaseScheduled = true;
+          thread.post(idleRecordsReleaser, IDLE_RECORD_TIMEOUT_MS - idleMs);
+          break;
+        }
+        itr.remove();
+        releasedIdleCount++;
+        releaseRecord(entry.getKey());
       }
     }
   }
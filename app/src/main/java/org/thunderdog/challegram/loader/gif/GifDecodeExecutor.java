@@ -0,0 +1,402 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader.gif;
+
+import android.os.SystemClock;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.tool.Screen;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import me.vkryl.core.MathUtils;
+
+/**
+ * Work-stealing pool that decodes frames of all {@link GifActor}s.
+ *
+ * Each actor owns a {@link Queue}: its tasks run one at a time in submission order,
+ * so frames of the same animation are never decoded concurrently or out of order,
+ * while different actors may run on any worker.
+ *
+ * Queues waiting for a worker are kept in per-worker deques. A worker takes
+ * the highest priority queue available, looking at its own deque first and stealing
+ * from other workers otherwise, so a burst of animated emoji can't saturate
+ * a single thread while others sit idle. To keep {@link #PRIORITY_LOW} queues
+ * from starving behind a steady stream of video frames, every worker serves
+ * a waiting low priority queue at least once per {@link #LOW_PRIORITY_QUOTA} tasks.
+ */
+public final class GifDecodeExecutor {
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+    PRIORITY_LOW,
+    PRIORITY_NORMAL,
+    PRIORITY_HIGH
+  })
+  public @interface Priority { }
+
+  public static final int PRIORITY_LOW = 0; // emoji & previews
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_HIGH = 2; // GifFile.isHighPriorityForDecode
+  private static final int PRIORITY_COUNT = 3;
+
+  private static final int LOW_PRIORITY_QUOTA = 5;
+
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+    POOL_VIDEO,
+    POOL_EMOJI,
+    POOL_LOTTIE
+  })
+  public @interface Pool { }
+
+  public static final int POOL_VIDEO = 0;
+  public static final int POOL_EMOJI = 1;
+  public static final int POOL_LOTTIE = 2;
+  private static final int POOL_COUNT = 3;
+
+  static @Priority int priorityOf (GifFile file) {
+    if (file.isHighPriorityForDecode()) {
+      return PRIORITY_HIGH;
+    }
+    return file.getOptimizationMode() == GifFile.OptimizationMode.NONE ? PRIORITY_NORMAL : PRIORITY_LOW;
+  }
+
+  static @Pool int poolOf (GifFile file) {
+    if (file.getGifType() == GifFile.TYPE_TG_LOTTIE) {
+      return POOL_LOTTIE;
+    }
+    return file.getOptimizationMode() == GifFile.OptimizationMode.EMOJI ? POOL_EMOJI : POOL_VIDEO;
+  }
+
+  private static final int TASK_START_DECODING = 0;
+  private static final int TASK_PREPARE_NEXT_FRAME = 1;
+  private static final int TASK_PREPARE_START_FRAME = 2;
+  private static final int TASK_DESTROY = 3;
+
+  private static final class Task {
+    final GifActor actor;
+    final int type;
+    final String path;
+    final long enqueueTime;
+
+    Task (GifActor actor, int type, String path) {
+      this.actor = actor;
+      this.type = type;
+      this.path = path;
+      this.enqueueTime = SystemClock.uptimeMillis();
+    }
+
+    void run () {
+      switch (type) {
+        case TASK_START_DECODING:
+          actor.startDecoding(path);
+          break;
+        case TASK_PREPARE_NEXT_FRAME:
+          actor.prepareNextFrame();
+          break;
+        case TASK_PREPARE_START_FRAME:
+          actor.prepareStartFrame();
+          break;
+        case TASK_DESTROY:
+          actor.onDestroy();
+          break;
+      }
+    }
+  }
+
+  /**
+   * Serial queue of a single {@link GifActor}.
+   */
+  public static final class Queue {
+    private final GifDecodeExecutor executor;
+    private final @Priority int priority;
+    private final @Pool int pool;
+    private final int homeWorker;
+
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>(); // guarded by this
+    private boolean scheduled; // guarded by this
+
+    private Queue (GifDecodeExecutor executor, int priority, int pool, int homeWorker) {
+      this.executor = executor;
+      this.priority = priority;
+      this.pool = pool;
+      this.homeWorker = homeWorker;
+    }
+
+    // GifBridge thread
+    public void startDecoding (GifActor actor, String path) {
+      enqueue(new Task(actor, TASK_START_DECODING, path));
+    }
+
+    public void prepareStartFrame (GifActor actor) {
+      enqueue(new Task(actor, TASK_PREPARE_START_FRAME, null));
+    }
+
+    public void prepareNextFrame (GifActor actor) {
+      enqueue(new Task(actor, TASK_PREPARE_NEXT_FRAME, null));
+    }
+
+    // GifBridge thread
+    public void onDestroy (GifActor actor) {
+      enqueue(new Task(actor, TASK_DESTROY, null));
+    }
+
+    private void enqueue (Task task) {
+      final boolean needSchedule;
+      synchronized (this) {
+        tasks.offerLast(task);
+        needSchedule = !scheduled;
+        scheduled = true;
+      }
+      executor.onTaskQueued(pool);
+      if (needSchedule) {
+        executor.schedule(this, homeWorker);
+      }
+    }
+
+    private synchronized Task poll () {
+      return tasks.pollFirst();
+    }
+
+    /**
+     * @return true, if queue has more tasks and must be scheduled again
+     */
+    private synchronized boolean onTaskFinished () {
+      if (tasks.isEmpty()) {
+        scheduled = false;
+        return false;
+      }
+      return true;
+    }
+  }
+
+  private final class Worker extends Thread {
+    private final int index;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Queue>[] deques = new ArrayDeque[PRIORITY_COUNT]; // guarded by deques
+    private int tasksSinceLowPriority; // accessed by this worker only
+
+    Worker (int index) {
+      super("GifDecodeWorker-" + index);
+      this.index = index;
+      for (int i = 0; i < deques.length; i++) {
+        deques[i] = new ArrayDeque<>();
+      }
+    }
+
+    void push (Queue queue) {
+      synchronized (deques) {
+        deques[queue.priority].offerLast(queue);
+      }
+    }
+
+    Queue pollOwn (int priority) {
+      synchronized (deques) {
+        return deques[priority].pollFirst();
+      }
+    }
+
+    Queue steal (int priority) {
+      synchronized (deques) {
+        // Steal from the opposite end, as owner is likely to have its head in cache
+        return deques[priority].pollLast();
+      }
+    }
+
+    @Override
+    public void run () {
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        Queue queue;
+        try {
+          queue = take(this);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        try {
+          Task task = queue.poll();
+          if (task != null) {
+            onTaskStarted(queue.pool, task);
+            task.run();
+          }
+        } catch (Throwable t) {
+          Log.e(Log.TAG_GIF_LOADER, "Decode task failed", t);
+        } finally {
+          if (queue.onTaskFinished()) {
+            // Round-robin between actors: queue goes behind others of the same priority
+            schedule(queue, index);
+          }
+        }
+      }
+    }
+  }
+
+  private final Worker[] workers;
+  private final AtomicInteger nextHomeWorker = new AtomicInteger();
+  private final AtomicInteger scheduledCount = new AtomicInteger();
+  private final Object idleLock = new Object();
+  private int idleWorkerCount; // guarded by idleLock
+
+  // Metrics
+  private final AtomicIntegerArray queueDepth = new AtomicIntegerArray(POOL_COUNT);
+  private final AtomicIntegerArray maxQueueDepth = new AtomicIntegerArray(POOL_COUNT);
+  private final AtomicLongArray executedCount = new AtomicLongArray(POOL_COUNT);
+  private final AtomicLongArray droppedFrameCount = new AtomicLongArray(POOL_COUNT);
+  private final AtomicLong stolenCount = new AtomicLong();
+
+  GifDecodeExecutor () {
+    int workerCount = MathUtils.clamp(Runtime.getRuntime().availableProcessors() - 1, 2, 6);
+    this.workers = new Worker[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      workers[i] = new Worker(i);
+    }
+    for (Worker worker : workers) {
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  public int getWorkerCount () {
+    return workers.length;
+  }
+
+  Queue newQueue (GifFile file) {
+    int homeWorker = (nextHomeWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+    return new Queue(this, priorityOf(file), poolOf(file), homeWorker);
+  }
+
+  private void schedule (Queue queue, int workerIndex) {
+    workers[workerIndex].push(queue);
+    scheduledCount.incrementAndGet();
+    synchronized (idleLock) {
+      if (idleWorkerCount > 0) {
+        idleLock.notify();
+      }
+    }
+  }
+
+  private Queue poll (Worker self, int priority) {
+    Queue queue = self.pollOwn(priority);
+    if (queue == null) {
+      for (int i = 1; i < workers.length && queue == null; i++) {
+        queue = workers[(self.index + i) % workers.length].steal(priority);
+      }
+      if (queue != null) {
+        stolenCount.incrementAndGet();
+      }
+    }
+    return queue;
+  }
+
+  private Queue take (Worker self) throws InterruptedException {
+    while (true) {
+      Queue queue = null;
+      if (self.tasksSinceLowPriority >= LOW_PRIORITY_QUOTA) {
+        queue = poll(self, PRIORITY_LOW);
+      }
+      for (int priority = PRIORITY_COUNT - 1; priority >= 0 && queue == null; priority--) {
+        queue = poll(self, priority);
+      }
+      if (queue != null) {
+        scheduledCount.decrementAndGet();
+        if (queue.priority == PRIORITY_LOW) {
+          self.tasksSinceLowPriority = 0;
+        } else {
+          self.tasksSinceLowPriority++;
+        }
+        return queue;
+      }
+      synchronized (idleLock) {
+        // Re-checked under idleLock, so a queue scheduled after the scan above always wakes someone up
+        if (scheduledCount.get() == 0) {
+          idleWorkerCount++;
+          try {
+            idleLock.wait();
+          } finally {
+            idleWorkerCount--;
+          }
+        }
+      }
+    }
+  }
+
+  private void onTaskQueued (int pool) {
+    int depth = queueDepth.incrementAndGet(pool);
+    while (true) {
+      int maxDepth = maxQueueDepth.get(pool);
+      if (depth <= maxDepth || maxQueueDepth.compareAndSet(pool, maxDepth, depth)) {
+        break;
+      }
+    }
+  }
+
+  private void onTaskStarted (int pool, Task task) {
+    queueDepth.decrementAndGet(pool);
+    executedCount.incrementAndGet(pool);
+    if (task.type == TASK_PREPARE_NEXT_FRAME) {
+      // Frame that waited for a worker longer than a screen refresh can't make it in time
+      long frameBudgetMs = (long) Math.ceil(1000.0 / Screen.refreshRate());
+      if (SystemClock.uptimeMillis() - task.enqueueTime > frameBudgetMs) {
+        droppedFrameCount.incrementAndGet(pool);
+      }
+    }
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public int workerCount;
+    public int[] queueDepth = new int[POOL_COUNT];
+    public int[] maxQueueDepth = new int[POOL_COUNT];
+    public long[] executedCount = new long[POOL_COUNT];
+    public long[] droppedFrameCount = new long[POOL_COUNT];
+    public long stolenCount;
+
+    @Override
+    @NonNull
+    public String toString () {
+      StringBuilder b = new StringBuilder("workers = ").append(workerCount);
+      final String[] names = {"video", "emoji", "lottie"};
+      for (int pool = 0; pool < POOL_COUNT; pool++) {
+        b.append(", ").append(names[pool]).append(" = { queue = ").append(queueDepth[pool])
+          .append(", maxQueue = ").append(maxQueueDepth[pool])
+          .append(", executed = ").append(executedCount[pool])
+          .append(", dropped = ").append(droppedFrameCount[pool])
+          .append(" }");
+      }
+      return b.append(", stolen = ").append(stolenCount).toString();
+    }
+  }
+
+  public Stats getStats () {
+    Stats stats = new Stats();
+    stats.workerCount = workers.length;
+    for (int pool = 0; pool < POOL_COUNT; pool++) {
+      stats.queueDepth[pool] = queueDepth.get(pool);
+      stats.maxQueueDepth[pool] = maxQueueDepth.get(pool);
+      stats.executedCount[pool] = executedCount.get(pool);
+      stats.droppedFrameCount[pool] = droppedFrameCount.get(pool);
+    }
+    stats.stolenCount = stolenCount.get();
+    return stats;
+  }
+}
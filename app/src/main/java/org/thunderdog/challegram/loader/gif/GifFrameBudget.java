@@ -0,0 +1,263 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader.gif;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Shares decode time of {@link GifDecodeExecutor} workers between all playing animations.
+ *
+ * Every {@link #TICK_INTERVAL_MS} the decode load is estimated as the sum of
+ * average frame decode time multiplied by the nominal frame rate of each animation.
+ * When it exceeds what workers can handle, frame rate of the least important
+ * animations is divided by 2, then by 4: low priority (emoji, previews) before normal,
+ * smaller before larger. High priority animations are never degraded.
+ *
+ * Only Lottie animations are degraded, as they can skip frames without decoding them.
+ * Videos still count towards the load.
+ */
+public final class GifFrameBudget {
+  private static final long TICK_INTERVAL_MS = 500;
+  private static final float TARGET_UTILIZATION = .8f;
+  private static final int MAX_FRAME_RATE_DIVIDER = 4;
+  private static final int POOL_COUNT = 3;
+
+  /**
+   * Budget state of a single {@link GifActor}.
+   */
+  public static final class Slot implements Comparable<Slot> {
+    private final @GifDecodeExecutor.Priority int priority;
+    private final @GifDecodeExecutor.Pool int pool;
+    private final boolean canDegrade;
+
+    private int area;
+    private double frameRate;
+    private volatile long averageDecodeTimeNs;
+    private volatile int frameRateDivider = 1;
+    private volatile boolean idle;
+    private int displayedFrameCount; // GifBridge thread
+
+    private Slot (GifFile file) {
+      this.priority = GifDecodeExecutor.priorityOf(file);
+      this.pool = GifDecodeExecutor.poolOf(file);
+      this.canDegrade = pool == GifDecodeExecutor.POOL_LOTTIE && priority != GifDecodeExecutor.PRIORITY_HIGH;
+    }
+
+    public int getFrameRateDivider () {
+      return frameRateDivider;
+    }
+
+    // GifBridge thread
+    void setIdle (boolean idle) {
+      this.idle = idle;
+    }
+
+    // Decoder thread
+    void onFrameDecoded (long elapsedNs) {
+      long average = averageDecodeTimeNs;
+      // Exponential moving average, alpha = 1/8
+      averageDecodeTimeNs = average == 0 ? elapsedNs : average + (elapsedNs - average) / 8;
+    }
+
+    // GifBridge thread
+    void onFrameDisplayed () {
+      displayedFrameCount++;
+    }
+
+    private double loadNsPerSecond (int divider) {
+      return (double) averageDecodeTimeNs * frameRate / divider;
+    }
+
+    @Override
+    public int compareTo (Slot other) {
+      // Least important first
+      if (priority != other.priority) {
+        return Integer.compare(priority, other.priority);
+      }
+      return Integer.compare(area, other.area);
+    }
+  }
+
+  private final int workerCount;
+  private final GifBridgeThread thread;
+  private final ArrayList<Slot> slots = new ArrayList<>();
+  private final Runnable tick = this::tick;
+  private boolean tickScheduled;
+  private long lastTickTime;
+
+  // Results of the last tick, guarded by slots
+  private float lastLoad;
+  private final int[] animationCount = new int[POOL_COUNT];
+  private final int[] degradedCount = new int[POOL_COUNT];
+  private final float[] achievedFps = new float[POOL_COUNT];
+  private final float[] targetFps = new float[POOL_COUNT];
+
+  GifFrameBudget (int workerCount, GifBridgeThread thread) {
+    this.workerCount = workerCount;
+    this.thread = thread;
+  }
+
+  Slot newSlot (GifFile file) {
+    return new Slot(file);
+  }
+
+  // Decoder thread
+  void register (Slot slot, int width, int height, double frameRate) {
+    synchronized (slots) {
+      slot.area = width * height;
+      slot.frameRate = frameRate;
+      slots.add(slot);
+      if (!tickScheduled) {
+        tickScheduled = true;
+        lastTickTime = SystemClock.uptimeMillis();
+        thread.post(tick, TICK_INTERVAL_MS);
+      }
+    }
+  }
+
+  // Decoder thread
+  void unregister (Slot slot) {
+    synchronized (slots) {
+      slots.remove(slot);
+    }
+  }
+
+  // GifBridge thread
+  private void tick () {
+    final Slot[] slots;
+    final long now = SystemClock.uptimeMillis();
+    final long elapsedMs = Math.max(1, now - lastTickTime);
+    lastTickTime = now;
+    synchronized (this.slots) {
+      if (this.slots.isEmpty()) {
+        tickScheduled = false;
+        return;
+      }
+      // Idle animations are kept alive without watchers and decode nothing
+      ArrayList<Slot> activeSlots = new ArrayList<>(this.slots.size());
+      for (Slot slot : this.slots) {
+        if (!slot.idle) {
+          activeSlots.add(slot);
+        }
+      }
+      slots = activeSlots.toArray(new Slot[0]);
+    }
+    double load = 0;
+    for (Slot slot : slots) {
+      load += slot.loadNsPerSecond(1);
+    }
+    final double capacity = workerCount * 1_000_000_000.0 * TARGET_UTILIZATION;
+    final float loadRatio = (float) (load / capacity);
+
+    // Degrade least important animations until load fits the capacity
+    ArrayList<Slot> degradable = new ArrayList<>();
+    for (Slot slot : slots) {
+      if (slot.canDegrade) {
+        degradable.add(slot);
+      }
+    }
+    Collections.sort(degradable);
+    int[] dividers = new int[degradable.size()];
+    Arrays.fill(dividers, 1);
+    for (int divider = 2; divider <= MAX_FRAME_RATE_DIVIDER && load > capacity; divider <<= 1) {
+      for (int i = 0; i < dividers.length && load > capacity; i++) {
+        Slot slot = degradable.get(i);
+        load -= slot.loadNsPerSecond(dividers[i]) - slot.loadNsPerSecond(divider);
+        dividers[i] = divider;
+      }
+    }
+    int changedCount = 0;
+    for (int i = 0; i < dividers.length; i++) {
+      Slot slot = degradable.get(i);
+      if (slot.frameRateDivider != dividers[i]) {
+        slot.frameRateDivider = dividers[i];
+        changedCount++;
+      }
+    }
+    if (changedCount > 0 && Log.isEnabled(Log.TAG_GIF_LOADER)) {
+      Log.i(Log.TAG_GIF_LOADER, "Frame budget: load %.2f, changed frame rate of %d animations out of %d", loadRatio, changedCount, slots.length);
+    }
+
+    // Stats
+    int[] animationCount = new int[POOL_COUNT];
+    int[] degradedCount = new int[POOL_COUNT];
+    double[] displayedFrames = new double[POOL_COUNT];
+    double[] targetFrameRate = new double[POOL_COUNT];
+    for (Slot slot : slots) {
+      animationCount[slot.pool]++;
+      if (slot.frameRateDivider > 1) {
+        degradedCount[slot.pool]++;
+      }
+      displayedFrames[slot.pool] += slot.displayedFrameCount;
+      targetFrameRate[slot.pool] += slot.frameRate / slot.frameRateDivider;
+      slot.displayedFrameCount = 0;
+    }
+    synchronized (this.slots) {
+      this.lastLoad = loadRatio;
+      for (int pool = 0; pool < POOL_COUNT; pool++) {
+        int count = animationCount[pool];
+        this.animationCount[pool] = count;
+        this.degradedCount[pool] = degradedCount[pool];
+        this.achievedFps[pool] = count != 0 ? (float) (displayedFrames[pool] * 1000.0 / elapsedMs / count) : 0f;
+        this.targetFps[pool] = count != 0 ? (float) (targetFrameRate[pool] / count) : 0f;
+      }
+    }
+    thread.post(tick, TICK_INTERVAL_MS);
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public float load;
+    public int[] animationCount = new int[POOL_COUNT];
+    public int[] degradedCount = new int[POOL_COUNT];
+    public float[] achievedFps = new float[POOL_COUNT];
+    public float[] targetFps = new float[POOL_COUNT];
+
+    @Override
+    @NonNull
+    public String toString () {
+      StringBuilder b = new StringBuilder("load = ").append(load);
+      final String[] names = {"video", "emoji", "lottie"};
+      for (int pool = 0; pool < POOL_COUNT; pool++) {
+        b.append(", ").append(names[pool]).append(" = { animations = ").append(animationCount[pool])
+          .append(", degraded = ").append(degradedCount[pool])
+          .append(", fps = ").append(achievedFps[pool]).append("/").append(targetFps[pool])
+          .append(" }");
+      }
+      return b.toString();
+    }
+  }
+
+  public Stats getStats () {
+    Stats stats = new Stats();
+    synchronized (slots) {
+      stats.load = lastLoad;
+      for (int pool = 0; pool < POOL_COUNT; pool++) {
+        stats.animationCount[pool] = animationCount[pool];
+        stats.degradedCount[pool] = degradedCount[pool];
+        stats.achievedFps[pool] = achievedFps[pool];
+        stats.targetFps[pool] = targetFps[pool];
+      }
+    }
+    return stats;
+  }
+}
@@ -14,7 +14,6 @@
  */
 package org.thunderdog.challegram.loader.gif;
 
-import android.content.SharedPreferences;
 import android.os.SystemClock;
 
 import org.thunderdog.challegram.Log;
@@ -23,13 +22,18 @@ import org.thunderdog.challegram.data.TD;
 import org.thunderdog.challegram.telegram.TdlibAccount;
 import org.thunderdog.challegram.unsorted.Settings;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import me.vkryl.core.FileUtils;
 import me.vkryl.core.StringUtils;
+import me.vkryl.core.unit.ByteUnit;
 import me.vkryl.leveldb.LevelDB;
 
 @Deprecated
@@ -47,14 +51,27 @@ public class LottieCache {
     return instance;
   }
 
+  private static final String INDEX_FILE_NAME = "index";
+  private static final long MAX_TOTAL_SIZE = ByteUnit.MIB.toBytes(256);
+  private static final long SAVE_INDEX_DELAY_MS = 5000;
+
   private final BaseThread gcThread = new BaseThread("LottieCacheGcThread");
   private final BaseThread[] threadPool = new BaseThread[4];
 
+  // Accessed only on gcThread
+  private final LottieCacheIndex index = new LottieCacheIndex();
+  private boolean indexLoaded, saveScheduled;
+  private final Runnable saveRunnable = () -> {
+    saveScheduled = false;
+    saveIndex();
+  };
+
   private LottieCache () { }
 
   public boolean clear () {
     if (FileUtils.delete(LottieCache.getCacheDir(), true)) {
       Settings.instance().pmc().removeByPrefix(LOTTIE_KEY_PREFIX);
+      gcThread.post(index::clear, 0);
       cancelScheduledGc();
       return true;
     }
@@ -63,148 +80,203 @@ public class LottieCache {
 
   private long scheduledAt;
 
-  private static class Entry implements Comparable<Entry> {
-    public final String key;
-    public final long time;
-
-    public final int accountId;
-    public final String directory, fileName;
-
-    public Entry (String key, long time) {
-      this.key = key;
-      this.time = time;
-      String[] fileData = key.substring(LOTTIE_KEY_PREFIX.length()).split("/", 3);
-      if (fileData.length != 3)
-        throw new IllegalArgumentException(key);
-      this.accountId = StringUtils.parseInt(fileData[0], -1);
-      if (accountId == -1)
-        throw new IllegalArgumentException(key);
-      this.directory = fileData[1];
-      this.fileName = fileData[2];
-      if (StringUtils.isEmpty(directory) || StringUtils.isEmpty(fileName))
-        throw new IllegalArgumentException(key);
-    }
+  private static boolean validateKey (String key) {
+    String[] fileData = key.substring(LOTTIE_KEY_PREFIX.length()).split("/", 3);
+    if (fileData.length != 3)
+      return false;
+    String directory = fileData[1];
+    String fileName = fileData[2];
+    return !StringUtils.isEmpty(directory) && !StringUtils.isEmpty(fileName);
+  }
 
-    public static boolean validateKey (String key) {
-      String[] fileData = key.substring(LOTTIE_KEY_PREFIX.length()).split("/", 3);
-      if (fileData.length != 3)
-        return false;
-      /*int accountId = StringUtils.parseInt(fileData[0], -1);
-      if (accountId == -1)
-        return false;*/
-      String directory = fileData[1];
-      String fileName = fileData[2];
-      if (StringUtils.isEmpty(directory) || StringUtils.isEmpty(fileName))
-        return false;
-      return true;
-    }
+  // Index (GC thread)
 
-    @Override
-    public int compareTo (Entry o) {
-      return Long.compare(time, o.time);
+  private void ensureIndexLoaded () {
+    if (indexLoaded)
+      return;
+    indexLoaded = true;
+    final File cacheDir = getCacheDir();
+    boolean loaded = false;
+    File indexFile = new File(cacheDir, INDEX_FILE_NAME);
+    if (indexFile.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        loaded = index.readFrom(in);
+      } catch (IOException e) {
+        Log.w(Log.TAG_GIF_LOADER, "Cannot read lottie cache index", e);
+        index.clear();
+      }
     }
+    if (!loaded) {
+      importLegacyEntries(cacheDir);
+    }
+    deleteThumbnailDirs(cacheDir);
+    if (indexUnlistedFiles(cacheDir) > 0 || !loaded) {
+      scheduleSaveIndex();
+    }
+  }
 
-    public File toFile (File cacheDir) {
-      return new File(new File(new File(cacheDir, Integer.toString(accountId)), directory), fileName);
+  /**
+   * Older versions kept expiration time of each file in a separate {@link Settings#pmc()} key.
+   */
+  private void importLegacyEntries (File cacheDir) {
+    final LevelDB db = Settings.instance().pmc();
+    int importedCount = 0;
+    for (LevelDB.Entry entry : db.find(LOTTIE_KEY_PREFIX)) {
+      String key = entry.key();
+      if (!validateKey(key)) {
+        Log.e("Bad lottie cache key: %s", key);
+        continue;
+      }
+      String path = key.substring(LOTTIE_KEY_PREFIX.length());
+      LottieCacheIndex.Node node = index.put(path, entry.asLong());
+      index.setSize(node, new File(cacheDir, path).length());
+      importedCount++;
+    }
+    if (importedCount > 0) {
+      // Legacy keys are the only record of these entries until index is on disk
+      if (saveIndex()) {
+        db.removeByPrefix(LOTTIE_KEY_PREFIX);
+      }
+      Log.i(Log.TAG_GIF_LOADER, "Imported %d lottie cache entries", importedCount);
     }
   }
 
-  private void limitFileCount (int count, String key) {
-    gcThread.post(() -> {
-      final LevelDB db = Settings.instance().pmc();
-      final File cacheDir = getCacheDir();
-      List<Entry> entries = new ArrayList<>();
-      List<String> brokenKeys = null;
-      for (LevelDB.Entry entry : db.find(LOTTIE_KEY_PREFIX)) {
-        Entry e;
-        try {
-          e = new Entry(entry.key(), entry.asLong());
-        } catch (IllegalArgumentException t) {
-          Log.e("Bad lottie cache key: %s", t);
-          if (brokenKeys == null)
-            brokenKeys = new ArrayList<>();
-          brokenKeys.add(entry.key());
+  /**
+   * Files written after the last index save (e.g. the process was killed before the scheduled save)
+   * are not listed in the index, so {@link #gc()} would never find them.
+   * Such files are indexed as already expired: they will be deleted unless used again.
+   *
+   * @return Number of indexed files.
+   */
+  private int indexUnlistedFiles (File cacheDir) {
+    final long now = System.currentTimeMillis();
+    int indexedCount = 0;
+    File[] accountDirs = cacheDir.listFiles(File::isDirectory);
+    if (accountDirs == null)
+      return 0;
+    for (File accountDir : accountDirs) {
+      File[] sizeDirs = accountDir.listFiles(File::isDirectory);
+      if (sizeDirs == null)
+        continue;
+      for (File sizeDir : sizeDirs) {
+        File[] files = sizeDir.listFiles(File::isFile);
+        if (files == null)
           continue;
+        for (File file : files) {
+          String path = accountDir.getName() + "/" + sizeDir.getName() + "/" + file.getName();
+          if (index.get(path) == null) {
+            LottieCacheIndex.Node node = index.put(path, now);
+            index.setSize(node, file.length());
+            indexedCount++;
+          }
         }
-        entries.add(e);
-      }
-      if (brokenKeys != null) {
-        db.edit();
-        for (String brokenKey : brokenKeys) {
-          db.remove(brokenKey);
-        }
-        db.apply();
       }
-      Collections.sort(entries);
-      int extraCount = (entries.size() - count);
-      int index = 0;
-      SharedPreferences.Editor editor = null;
-      while (extraCount > 0 && index < entries.size()) {
-        Entry entry = entries.get(index++);
-        if (!entry.key.equals(key)) {
-          if (editor == null)
-            editor = db.edit();
-          delete(cacheDir, entry, editor);
-          extraCount--;
+    }
+    if (indexedCount > 0) {
+      Log.i(Log.TAG_GIF_LOADER, "Indexed %d unlisted lottie cache files", indexedCount);
+      scheduleGc(0, false);
+    }
+    return indexedCount;
+  }
+
+  private static void deleteThumbnailDirs (File cacheDir) {
+    File[] accountDirs = cacheDir.listFiles(File::isDirectory);
+    if (accountDirs != null) {
+      for (File accountDir : accountDirs) {
+        File[] thumbnailDirs = accountDir.listFiles((dir, name) -> "0".equals(name) || name.startsWith("thumbs"));
+        if (thumbnailDirs != null) {
+          for (File thumbnailDir : thumbnailDirs) {
+            FileUtils.delete(thumbnailDir, true);
+          }
         }
       }
-      if (editor != null) {
-        editor.apply();
-      }
-    }, 0);
+    }
+  }
+
+  private void scheduleSaveIndex () {
+    if (!saveScheduled) {
+      saveScheduled = true;
+      gcThread.post(saveRunnable, SAVE_INDEX_DELAY_MS);
+    }
+  }
+
+  private boolean saveIndex () {
+    if (saveScheduled) {
+      saveScheduled = false;
+      gcThread.getHandler().removeCallbacks(saveRunnable);
+    }
+    final File cacheDir = getCacheDir();
+    if (!FileUtils.createDirectory(cacheDir))
+      return false;
+    File indexFile = new File(cacheDir, INDEX_FILE_NAME);
+    File tempFile = new File(cacheDir, INDEX_FILE_NAME + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      index.writeTo(out);
+    } catch (IOException e) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot save lottie cache index", e);
+      tempFile.delete();
+      return false;
+    }
+    if (!tempFile.renameTo(indexFile)) {
+      tempFile.delete();
+      return false;
+    }
+    return true;
   }
 
-  private static void delete (File cacheDir, Entry entry, SharedPreferences.Editor editor) {
-    File file = entry.toFile(cacheDir);
-    if (!file.exists() || file.delete()) {
-      editor.remove(entry.key);
+  private void delete (File cacheDir, LottieCacheIndex.Node node) {
+    File file = new File(cacheDir, node.path);
+    if (file.exists() && !file.delete()) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot delete lottie cache file: %s", node.path);
     }
+    index.remove(node);
+  }
+
+  private void trim (int maxCount, LottieCacheIndex.Node keep) {
+    final File cacheDir = getCacheDir();
+    boolean changed = false;
+    while (index.size() > maxCount || index.totalSize() > MAX_TOTAL_SIZE) {
+      LottieCacheIndex.Node node = index.eldest(keep);
+      if (node == null)
+        break;
+      delete(cacheDir, node);
+      changed = true;
+    }
+    if (changed) {
+      scheduleSaveIndex();
+    }
+  }
+
+  private void onCacheFileUsed (String path, long expiresAt, int maxCount) {
+    gcThread.post(() -> {
+      ensureIndexLoaded();
+      LottieCacheIndex.Node node = index.put(path, expiresAt);
+      index.setSize(node, new File(getCacheDir(), path).length());
+      trim(maxCount, node);
+      scheduleSaveIndex();
+      LottieCacheIndex.Node earliest = index.earliestExpiring();
+      if (earliest != null) {
+        scheduleGc(Math.max(0, earliest.expiresAt - System.currentTimeMillis()), false);
+      }
+    }, 0);
   }
 
   public void gc () {
     gcThread.post(() -> {
-      long nextTime = -1;
+      ensureIndexLoaded();
+      final long now = System.currentTimeMillis();
       final File cacheDir = getCacheDir();
-
-      File[] accountDirs = cacheDir.listFiles();
-      if (accountDirs != null) {
-        for (File accountDir : accountDirs) {
-          File[] thumbnailDirs = accountDir.listFiles((dir, name) -> "0".equals(name) || name.startsWith("thumbs"));
-          if (thumbnailDirs != null) {
-            for (File thumbnailDir : thumbnailDirs) {
-              FileUtils.delete(thumbnailDir, true);
-            }
-          }
-        }
+      boolean changed = false;
+      LottieCacheIndex.Node node;
+      while ((node = index.earliestExpiring()) != null && now >= node.expiresAt) {
+        delete(cacheDir, node);
+        changed = true;
       }
-
-      long now = System.currentTimeMillis();
-      final LevelDB db = Settings.instance().pmc();
-      SharedPreferences.Editor editor = null;
-      List<String> brokenKeys = null;
-      for (LevelDB.Entry entry : db.find(LOTTIE_KEY_PREFIX)) {
-        Entry e;
-        try {
-          e = new Entry(entry.key(), entry.asLong());
-        } catch (IllegalArgumentException t) {
-          Log.e("Bad lottie cache key: %s", t);
-          if (brokenKeys == null)
-            brokenKeys = new ArrayList<>();
-          brokenKeys.add(entry.key());
-          continue;
-        }
-        if (now >= e.time) {
-          if (editor == null)
-            editor = db.edit();
-          delete(cacheDir, e, editor);
-        } else {
-          nextTime = nextTime == -1 ? e.time : Math.min(nextTime, e.time);
-        }
+      if (changed) {
+        scheduleSaveIndex();
       }
-      if (editor != null)
-        editor.apply();
-      if (nextTime != -1) {
-        scheduleGc(nextTime - now, true);
+      if (node != null) {
+        scheduleGc(node.expiresAt - now, true);
       } else {
         cancelScheduledGc();
       }
@@ -265,16 +337,14 @@ public class LottieCache {
     File originalFile = new File(file.getFilePath());
     if (keepAliveMs > 0) {
       String key = getCacheFileKey(accountId, optimize, size, colorKey, originalFile.getName());
-      Settings.instance().pmc().putLong(key, System.currentTimeMillis() + keepAliveMs);
-      instance().limitFileCount(maxCount, key);
-      instance().scheduleGc(keepAliveMs, false);
+      instance().onCacheFileUsed(key.substring(LOTTIE_KEY_PREFIX.length()), System.currentTimeMillis() + keepAliveMs, maxCount);
     }
     return new File(cacheDir, originalFile.getName());
   }
 
   public static String getCacheFileKey (int accountId, boolean optimize, int size, String colorKey, String originalFileName) {
     String cacheKey = LOTTIE_KEY_PREFIX + accountId + "/" + (optimize ? "thumbs" + size : size) + (!StringUtils.isEmpty(colorKey) ? "_" + colorKey : "") + "/" + originalFileName;
-    if (!Entry.validateKey(cacheKey))
+    if (!validateKey(cacheKey))
       throw new IllegalArgumentException(cacheKey);
     return cacheKey;
   }
@@ -286,11 +356,20 @@ public class LottieCache {
       } else {
         String colorKey = fitzpatrickType != 0 ? Integer.toString(fitzpatrickType) : null;
         String key = getCacheFileKey(file.tdlib != null ? file.tdlib.accountId() : TdlibAccount.NO_ID, optimize, size, colorKey, new File(file.getFilePath()).getName());
-        long time = Settings.instance().getLong(key, 0);
-        if (time == 0 || System.currentTimeMillis() >= time) {
+        ensureIndexLoaded();
+        LottieCacheIndex.Node node = index.get(key.substring(LOTTIE_KEY_PREFIX.length()));
+        if (node == null || System.currentTimeMillis() >= node.expiresAt) {
           cacheFile.delete();
-          Settings.instance().remove(key);
+          if (node != null) {
+            index.remove(node);
+            scheduleSaveIndex();
+          }
           gc();
+        } else {
+          // Decoder no longer writes to the file, so its size is final
+          index.setSize(node, cacheFile.length());
+          trim(Integer.MAX_VALUE, node);
+          scheduleSaveIndex();
         }
       }
     }, 0);
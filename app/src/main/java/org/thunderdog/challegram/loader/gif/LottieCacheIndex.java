@@ -0,0 +1,260 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.loader.gif;
+
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * In-memory index of cached Lottie frame files.
+ *
+ * Entries are kept in a min-heap by expiration time and in a doubly-linked list
+ * by last use, so finding expired entries and evicting least recently used ones
+ * to fit a file count or byte budget costs O(log n) per entry.
+ *
+ * Not thread-safe: used only on {@link LottieCache} GC thread.
+ */
+final class LottieCacheIndex {
+  private static final int MAGIC = 0x4C435449; // "LCTI"
+  private static final int VERSION = 1;
+
+  static final class Node {
+    final String path; // accountId/directory/fileName
+    long expiresAt;
+    long size;
+
+    private int heapIndex = -1;
+    private Node prev, next;
+
+    private Node (String path) {
+      this.path = path;
+    }
+  }
+
+  private final HashMap<String, Node> nodes = new HashMap<>();
+  private Node[] heap = new Node[16];
+  private int heapSize;
+  private Node eldest, newest;
+  private long totalSize;
+
+  int size () {
+    return nodes.size();
+  }
+
+  long totalSize () {
+    return totalSize;
+  }
+
+  @Nullable
+  Node get (String path) {
+    return nodes.get(path);
+  }
+
+  /**
+   * Adds or updates entry and marks it as the most recently used one.
+   */
+  Node put (String path, long expiresAt) {
+    Node node = nodes.get(path);
+    if (node == null) {
+      node = new Node(path);
+      nodes.put(path, node);
+      node.expiresAt = expiresAt;
+      heapAdd(node);
+    } else {
+      unlink(node);
+      long prevExpiresAt = node.expiresAt;
+      node.expiresAt = expiresAt;
+      if (expiresAt < prevExpiresAt) {
+        siftUp(node.heapIndex);
+      } else if (expiresAt > prevExpiresAt) {
+        siftDown(node.heapIndex);
+      }
+    }
+    linkLast(node);
+    return node;
+  }
+
+  void setSize (Node node, long size) {
+    totalSize += size - node.size;
+    node.size = size;
+  }
+
+  void remove (Node node) {
+    if (nodes.remove(node.path) != node)
+      throw new IllegalArgumentException(node.path);
+    unlink(node);
+    heapRemoveAt(node.heapIndex);
+    totalSize -= node.size;
+  }
+
+  void clear () {
+    nodes.clear();
+    Arrays.fill(heap, 0, heapSize, null);
+    heapSize = 0;
+    eldest = newest = null;
+    totalSize = 0;
+  }
+
+  /**
+   * @return Entry that expires first, or null, if index is empty
+   */
+  @Nullable
+  Node earliestExpiring () {
+    return heapSize > 0 ? heap[0] : null;
+  }
+
+  /**
+   * @return Least recently used entry other than {@code except}, or null
+   */
+  @Nullable
+  Node eldest (@Nullable Node except) {
+    Node node = eldest;
+    if (node != null && node == except) {
+      node = node.next;
+    }
+    return node;
+  }
+
+  // LRU list
+
+  private void linkLast (Node node) {
+    node.prev = newest;
+    node.next = null;
+    if (newest != null) {
+      newest.next = node;
+    } else {
+      eldest = node;
+    }
+    newest = node;
+  }
+
+  private void unlink (Node node) {
+    if (node.prev != null) {
+      node.prev.next = node.next;
+    } else {
+      eldest = node.next;
+    }
+    if (node.next != null) {
+      node.next.prev = node.prev;
+    } else {
+      newest = node.prev;
+    }
+    node.prev = node.next = null;
+  }
+
+  // Expiration heap
+
+  private void heapAdd (Node node) {
+    if (heapSize == heap.length) {
+      heap = Arrays.copyOf(heap, heapSize << 1);
+    }
+    heap[heapSize] = node;
+    node.heapIndex = heapSize;
+    heapSize++;
+    siftUp(node.heapIndex);
+  }
+
+  private void heapRemoveAt (int index) {
+    Node removed = heap[index];
+    int lastIndex = --heapSize;
+    Node last = heap[lastIndex];
+    heap[lastIndex] = null;
+    removed.heapIndex = -1;
+    if (index != lastIndex) {
+      heap[index] = last;
+      last.heapIndex = index;
+      siftDown(index);
+      if (heap[index] == last) {
+        siftUp(index);
+      }
+    }
+  }
+
+  private void siftUp (int index) {
+    Node node = heap[index];
+    while (index > 0) {
+      int parentIndex = (index - 1) >>> 1;
+      Node parent = heap[parentIndex];
+      if (parent.expiresAt <= node.expiresAt)
+        break;
+      heap[index] = parent;
+      parent.heapIndex = index;
+      index = parentIndex;
+    }
+    heap[index] = node;
+    node.heapIndex = index;
+  }
+
+  private void siftDown (int index) {
+    Node node = heap[index];
+    int half = heapSize >>> 1;
+    while (index < half) {
+      int childIndex = (index << 1) + 1;
+      Node child = heap[childIndex];
+      int rightIndex = childIndex + 1;
+      if (rightIndex < heapSize && heap[rightIndex].expiresAt < child.expiresAt) {
+        childIndex = rightIndex;
+        child = heap[rightIndex];
+      }
+      if (node.expiresAt <= child.expiresAt)
+        break;
+      heap[index] = child;
+      child.heapIndex = index;
+      index = childIndex;
+    }
+    heap[index] = node;
+    node.heapIndex = index;
+  }
+
+  // Persistence
+
+  void writeTo (DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(nodes.size());
+    // Least recently used first, so reading restores the same order
+    for (Node node = eldest; node != null; node = node.next) {
+      out.writeUTF(node.path);
+      out.writeLong(node.expiresAt);
+      out.writeLong(node.size);
+    }
+  }
+
+  /**
+   * @return false, if data is not a valid index. Index is left empty in this case.
+   */
+  boolean readFrom (DataInputStream in) throws IOException {
+    clear();
+    if (in.readInt() != MAGIC || in.readInt() != VERSION)
+      return false;
+    int count = in.readInt();
+    if (count < 0)
+      return false;
+    for (int i = 0; i < count; i++) {
+      String path = in.readUTF();
+      long expiresAt = in.readLong();
+      long size = in.readLong();
+      if (size < 0) {
+        clear();
+        return false;
+      }
+      setSize(put(path, expiresAt), size);
+    }
+    return true;
+  }
+}
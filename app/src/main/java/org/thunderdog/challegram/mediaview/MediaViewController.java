@@ -8289,18 +8289,31 @@ public class MediaViewController extends ViewController<MediaViewController.Args
     if (parsedWebPage == null) {
       return;
     }
-    TdApi.LinkPreview linkPreview = parsedWebPage.getLinkPreview();
-    MediaStack stack;
-
-    stack = new MediaStack(context.context(), context.tdlib());
-
     List<MediaItem> items = parsedWebPage.getInstantItems();
     if (items != null) {
       List<TdApi.File> files = new ArrayList<>();
       for (MediaItem item : items) {
         files.add(item.getTargetFile());
       }
-      msg.tdlib().files().syncFiles(files, 500L);
+      // Viewer opens once files are synced or 500ms pass, without blocking UI thread in the meantime
+      msg.tdlib().files().syncFilesAsync(files, 500L, null, () -> msg.tdlib().ui().post(() -> {
+        if (!context.isStackLocked() && !context.isDestroyed()) {
+          openFromMessage(msg, parsedWebPage, items);
+        }
+      }));
+    } else {
+      openFromMessage(msg, parsedWebPage, null);
+    }
+  }
+
+  private static void openFromMessage (TGMessageText msg, TGWebPage parsedWebPage, @Nullable List<MediaItem> items) {
+    ViewController<?> context = msg.controller();
+    TdApi.LinkPreview linkPreview = parsedWebPage.getLinkPreview();
+    MediaStack stack;
+
+    stack = new MediaStack(context.context(), context.tdlib());
+
+    if (items != null) {
       stack.set(parsedWebPage.getInstantPosition(), items);
     } else {
       MediaItem item = MediaItem.valueOf(context.context(), context.tdlib(), msg.getMessage());
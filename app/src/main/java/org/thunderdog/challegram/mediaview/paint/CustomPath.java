@@ -35,6 +35,9 @@ public class CustomPath {
   private static final int ACTION_CUBIC_TO = 3; // x1,y1, x2,y2, x3,y3
   private final FloatList actions;
 
+  // Relative coordinates are kept with a fixed precision, so compact output restores them exactly
+  private static final float COORDINATE_SCALE = 1 << 15;
+
   public CustomPath (SimpleDrawing context) {
     this.context = context;
     this.path = new Path();
@@ -53,14 +56,34 @@ public class CustomPath {
     return actions.size();
   }
 
-  public CustomPath (SimpleDrawing context, Blob blob) {
+  public CustomPath (SimpleDrawing context, Blob blob, boolean compact) {
     this.context = context;
     this.path = new Path();
 
+    if (!compact) {
+      int size = blob.readVarint();
+      float[] data = new float[size];
+      for (int i = 0; i < size; i++) {
+        data[i] = blob.readFloat();
+      }
+      this.actions = new FloatList(data);
+      return;
+    }
+
     int size = blob.readVarint();
     float[] data = new float[size];
-    for (int i = 0; i < size; i++) {
-      data[i] = blob.readFloat();
+    int prevX = 0, prevY = 0;
+    int i = 0;
+    while (i < size) {
+      int type = blob.readVarint();
+      data[i++] = type;
+      int pointCount = getPointCount(type);
+      for (int point = 0; point < pointCount; point++) {
+        prevX += decodeZigZag(blob.readVarint());
+        prevY += decodeZigZag(blob.readVarint());
+        data[i++] = (float) prevX / COORDINATE_SCALE;
+        data[i++] = (float) prevY / COORDINATE_SCALE;
+      }
     }
     this.actions = new FloatList(data);
   }
@@ -81,25 +104,73 @@ public class CustomPath {
     return path == this || path.actions == actions || (path.actions.size() == actions.size() && Arrays.equals(path.actions.get(), actions.get()));
   }
 
-  public void saveData (RandomAccessFile file) throws IOException {
-    int size = actions.size();
-    Blob.writeVarint(file, size);
-    for (int i = 0; i < size; i++) {
-      file.writeFloat(actions.get(i));
+  private static int getPointCount (int type) {
+    switch (type) {
+      case ACTION_MOVE_TO:
+      case ACTION_LINE_TO:
+        return 1;
+      case ACTION_QUAD_TO:
+        return 2;
+      case ACTION_CUBIC_TO:
+        return 3;
     }
+    throw new IllegalArgumentException("type == " + type);
+  }
+
+  private static int quantize (float value) {
+    return Math.round(value * COORDINATE_SCALE);
+  }
+
+  private static int encodeZigZag (int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int decodeZigZag (int value) {
+    return (value >>> 1) ^ -(value & 1);
   }
 
+  /**
+   * Writes actions as types followed by differences between consecutive quantized points,
+   * which fit into one or two varint bytes for most points of a hand-drawn path.
+   */
   public void saveData (Blob out) {
-    int size = actions.size();
+    final int size = actions.size();
     out.writeVarint(size);
-    for (int i = 0; i < size; i++) {
-      out.writeFloat(actions.get(i));
+    int prevX = 0, prevY = 0;
+    int i = 0;
+    while (i < size) {
+      int type = (int) actions.get(i++);
+      out.writeVarint(type);
+      int pointCount = getPointCount(type);
+      for (int point = 0; point < pointCount; point++) {
+        int x = quantize(actions.get(i++));
+        int y = quantize(actions.get(i++));
+        out.writeVarint(encodeZigZag(x - prevX));
+        out.writeVarint(encodeZigZag(y - prevY));
+        prevX = x;
+        prevY = y;
+      }
     }
   }
 
-  public int getEstimatedOutputSize () {
-    int size = actions.size();
-    return Blob.sizeOf(size) + size * 4;
+  public int getOutputSize () {
+    final int size = actions.size();
+    int outputSize = Blob.sizeOf(size);
+    int prevX = 0, prevY = 0;
+    int i = 0;
+    while (i < size) {
+      int type = (int) actions.get(i++);
+      outputSize += Blob.sizeOf(type);
+      int pointCount = getPointCount(type);
+      for (int point = 0; point < pointCount; point++) {
+        int x = quantize(actions.get(i++));
+        int y = quantize(actions.get(i++));
+        outputSize += Blob.sizeOf(encodeZigZag(x - prevX)) + Blob.sizeOf(encodeZigZag(y - prevY));
+        prevX = x;
+        prevY = y;
+      }
+    }
+    return outputSize;
   }
 
   public void trim () {
@@ -150,28 +221,32 @@ public class CustomPath {
     }
   }
 
+  private static float toPrecision (float value) {
+    return (float) quantize(value) / COORDINATE_SCALE;
+  }
+
   private void appendAction (int action, float x, float y) {
     actions.append(action);
-    actions.append(context.getRelativeX(x));
-    actions.append(context.getRelativeY(y));
+    actions.append(toPrecision(context.getRelativeX(x)));
+    actions.append(toPrecision(context.getRelativeY(y)));
   }
 
   private void appendAction (int action, float x1, float y1, float x2, float y2) {
     actions.append(action);
-    actions.append(context.getRelativeX(x1));
-    actions.append(context.getRelativeY(y1));
-    actions.append(context.getRelativeX(x2));
-    actions.append(context.getRelativeY(y2));
+    actions.append(toPrecision(context.getRelativeX(x1)));
+    actions.append(toPrecision(context.getRelativeY(y1)));
+    actions.append(toPrecision(context.getRelativeX(x2)));
+    actions.append(toPrecision(context.getRelativeY(y2)));
   }
 
   private void appendAction (int action, float x1, float y1, float x2, float y2, float x3, float y3) {
     actions.append(action);
-    actions.append(context.getRelativeX(x1));
-    actions.append(context.getRelativeY(y1));
-    actions.append(context.getRelativeX(x2));
-    actions.append(context.getRelativeY(y2));
-    actions.append(context.getRelativeX(x3));
-    actions.append(context.getRelativeY(y3));
+    actions.append(toPrecision(context.getRelativeX(x1)));
+    actions.append(toPrecision(context.getRelativeY(y1)));
+    actions.append(toPrecision(context.getRelativeX(x2)));
+    actions.append(toPrecision(context.getRelativeY(y2)));
+    actions.append(toPrecision(context.getRelativeX(x3)));
+    actions.append(toPrecision(context.getRelativeY(y3)));
   }
 
   public void moveTo (float x, float y) {
@@ -46,6 +46,7 @@ public class PaintState {
 
   private List<SimpleDrawing> drawingsList;
   private List<PaintAction> paintActions;
+  private SimpleDrawing pendingDrawing;
 
   private List<Reference<SimpleDrawingChangeListener>> simpleDrawingListeners;
   private List<Reference<UndoStateListener>> undoStateListeners;
@@ -65,9 +66,35 @@ public class PaintState {
 
   // TODO save & restore paint
 
+  // Persistence
+
+  /*
+   * Serialized state starts with varint paint id.
+   *
+   * Zero paint id means drawings follow inline:
+   * legacy: [0][count > 0][drawings with raw float path points]
+   * compact: [0][0][FORMAT_COMPACT][count][drawings with delta-encoded path points]
+   *
+   * Non-zero paint id references paints/<id>.bin, which is written in background:
+   * legacy reference: [id], file: [count > 0][drawings with raw float path points]
+   * compact reference: [id][count], file: [0][FORMAT_COMPACT][drawings...]
+   *
+   * Compact files are append-only: once state gets saved again with more drawings on top of the saved ones,
+   * only new drawings are appended and the reference points to the same file with a larger count.
+   * References made earlier keep their count, so they still restore the same state.
+   * Chunk is appended only if file length still matches the one expected after previous writes,
+   * otherwise the whole file is written again.
+   */
+  private static final int FORMAT_COMPACT = 1;
+  private static final int MAX_INLINE_SIZE = 256;
+
+  private int persistedPaintId;
+  private long persistedLength;
+  private final ArrayList<SimpleDrawing> persistedDrawings = new ArrayList<>();
+
   private static SparseArrayCompat<PaintState> pendingPaints;
 
-  public static void putPaintState (int paintId, PaintState paintState) {
+  private static void putPaintState (int paintId, PaintState paintState) {
     synchronized (PaintState.class) {
       if (pendingPaints == null) {
         pendingPaints = new SparseArrayCompat<>();
@@ -76,17 +103,27 @@ public class PaintState {
     }
   }
 
-  public static void forgetPaintState (int paintId) {
+  private static void forgetPaintState (int paintId, int writtenCount) {
     synchronized (PaintState.class) {
       if (pendingPaints != null) {
-        pendingPaints.remove(paintId);
+        PaintState pendingState = pendingPaints.get(paintId);
+        // Newer appends may still be pending
+        if (pendingState != null && pendingState.drawingsList.size() <= writtenCount) {
+          pendingPaints.remove(paintId);
+        }
       }
     }
   }
 
-  public static PaintState obtainPaintState (int paintId) {
+  private static PaintState obtainPaintState (int paintId, int count) {
     synchronized (PaintState.class) {
-      return pendingPaints != null ? pendingPaints.get(paintId) : null;
+      PaintState pendingState = pendingPaints != null ? pendingPaints.get(paintId) : null;
+      if (pendingState == null || pendingState.drawingsList.size() < count) {
+        return null;
+      }
+      PaintState state = new PaintState();
+      state.drawingsList = new ArrayList<>(pendingState.drawingsList.subList(0, count));
+      return state;
     }
   }
 
@@ -113,124 +150,201 @@ public class PaintState {
       Blob blob = new Blob(data);
       int paintId = blob.readVarint();
       if (paintId != 0) {
-        PaintState cachedState = obtainPaintState(paintId);
-        if (cachedState == null) {
-          File dir = getPaintsDir();
-          if (dir.exists()) {
-            File file = new File(dir, paintId + ".bin");
-            if (file.exists()) {
-              PaintState state;
-              RandomAccessFile f = new RandomAccessFile(file, "r");
-              try {
-                int count = Blob.readVarint(f);
-                final ArrayList<SimpleDrawing> drawings = new ArrayList<>(count);
-                for (int i = 0; i < count; i++) {
-                  SimpleDrawing drawing = SimpleDrawing.restore(f);
-                  drawings.add(drawing);
-                }
-                state = new PaintState();
-                state.drawingsList = drawings;
-              } catch (Throwable t) {
-                try { f.close(); } catch (Throwable ignored) { }
-                Log.w("Unable to read paint file", t);
-                throw t;
-              }
-              try { f.close(); } catch (Throwable ignored) { }
-              return state;
-            }
-          }
+        // Legacy references contain paint id only and point to the whole file
+        int count = data.length > Blob.sizeOf(paintId) ? blob.readVarint() : -1;
+        PaintState cachedState = count != -1 ? obtainPaintState(paintId, count) : null;
+        if (cachedState != null) {
+          return cachedState;
         }
-        if (cachedState == null) {
+        File file = new File(getPaintsDir(), paintId + ".bin");
+        if (!file.exists()) {
           throw new IllegalStateException("Unable to find paints/" + paintId + ".bin");
         }
-        return cachedState;
+        return readFile(file, count);
       }
 
       int count = blob.readVarint();
+      boolean compact = false;
+      if (count == 0) {
+        int format = blob.readVarint();
+        if (format != FORMAT_COMPACT) {
+          throw new IllegalArgumentException("format == " + format);
+        }
+        compact = true;
+        count = blob.readVarint();
+      }
       if (count <= 0) {
         Log.w("Decoded painting count is empty: %d", count);
         return null;
       }
-      final ArrayList<SimpleDrawing> drawings = new ArrayList<>(count);
-      for (int i = 0; i < count; i++) {
-        SimpleDrawing drawing = SimpleDrawing.restore(blob);
-        drawings.add(drawing);
-      }
-      PaintState state = new PaintState();
-      state.drawingsList = drawings;
-      return state;
+      return readDrawings(blob, count, compact);
     } catch (Throwable t) {
       Log.e("Unable to decode painting: %s", t, in);
     }
     return null;
   }
 
-  public byte[] save () {
-    int size = Blob.sizeOf(drawingsList.size());
-    for (SimpleDrawing drawing : drawingsList) {
-      size += drawing.getEstimatedOutputSize();
-    }
-
-    Blob b = null;
-
-    if (size >= 256) {
-      int paintId = Settings.instance().getPaintId();
-      File paintCacheDirectory = new File(UI.getAppContext().getFilesDir(), "paints");
-      if (FileUtils.createDirectory(paintCacheDirectory)) {
-        File file;
-        do {
-          paintId++;
-          Settings.instance().setPaintId(paintId);
-          file = new File(paintCacheDirectory, paintId + ".bin");
-        } while (file.exists());
-
-        b = new Blob(Blob.sizeOf(paintId));
-        b.writeVarint(paintId);
-
-        putPaintState(paintId, this);
-        final int paintIdFinal = paintId;
-        final File fileFinal = file;
-        final int sizeFinal = size;
-
-        boolean ok = false;
-        try {
-          ok = file.createNewFile();
-        } catch (Throwable t) {
-          Log.w("Cannot create %d.bin paint file", t, paintId);
+  private static PaintState readDrawings (Blob blob, int count, boolean compact) {
+    final ArrayList<SimpleDrawing> drawings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      drawings.add(SimpleDrawing.restore(blob, compact));
+    }
+    PaintState state = new PaintState();
+    state.drawingsList = drawings;
+    return state;
+  }
+
+  private static PaintState readFile (File file, int count) throws Throwable {
+    try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+      int legacyCount = Blob.readVarint(f);
+      if (legacyCount != 0) {
+        final ArrayList<SimpleDrawing> drawings = new ArrayList<>(legacyCount);
+        for (int i = 0; i < legacyCount; i++) {
+          drawings.add(SimpleDrawing.restore(f));
         }
-        if (ok) {
+        PaintState state = new PaintState();
+        state.drawingsList = drawings;
+        return state;
+      }
+      int format = Blob.readVarint(f);
+      if (format != FORMAT_COMPACT) {
+        throw new IllegalArgumentException("format == " + format);
+      }
+      if (count <= 0) {
+        throw new IllegalArgumentException("count == " + count);
+      }
+      byte[] data = new byte[(int) (f.length() - f.getFilePointer())];
+      f.readFully(data);
+      return readDrawings(new Blob(data), count, true);
+    } catch (Throwable t) {
+      Log.w("Unable to read paint file", t);
+      throw t;
+    }
+  }
+
+  private static int getOutputSize (List<SimpleDrawing> drawings) {
+    int size = 0;
+    for (SimpleDrawing drawing : drawings) {
+      size += drawing.getOutputSize();
+    }
+    return size;
+  }
+
+  private static void writeDrawings (Blob b, List<SimpleDrawing> drawings) {
+    for (SimpleDrawing drawing : drawings) {
+      drawing.save(b);
+    }
+  }
+
+  private static byte[] serializeFile (List<SimpleDrawing> drawings, boolean withHeader) {
+    final Blob b = new Blob((withHeader ? Blob.sizeOf(0) + Blob.sizeOf(FORMAT_COMPACT) : 0) + getOutputSize(drawings));
+    if (withHeader) {
+      b.writeVarint(0);
+      b.writeVarint(FORMAT_COMPACT);
+    }
+    writeDrawings(b, drawings);
+    return b.toByteArray();
+  }
+
+  public byte[] save () {
+    final ArrayList<SimpleDrawing> drawings = new ArrayList<>(drawingsList);
+    final int count = drawings.size();
+
+    synchronized (persistedDrawings) {
+      boolean canAppend = persistedPaintId != 0 && persistedDrawings.size() <= count;
+      for (int i = 0; canAppend && i < persistedDrawings.size(); i++) {
+        canAppend = persistedDrawings.get(i) == drawings.get(i);
+      }
+      final List<SimpleDrawing> newDrawings = canAppend ? drawings.subList(persistedDrawings.size(), count) : drawings;
+      final int newDrawingsSize = getOutputSize(newDrawings);
+
+      if (canAppend || newDrawingsSize >= MAX_INLINE_SIZE) {
+        int paintId = canAppend ? persistedPaintId : createPaintFile();
+        if (paintId != 0) {
+          final boolean isNewFile = !canAppend;
+          final byte[] chunk = serializeFile(newDrawings, isNewFile);
+          final long offset = isNewFile ? 0 : persistedLength;
+
+          PaintState snapshot = new PaintState();
+          snapshot.drawingsList = drawings;
+          putPaintState(paintId, snapshot);
+
+          if (pendingDrawing != null && drawings.contains(pendingDrawing)) {
+            // Drawing still in progress may change, so the next save starts a new file
+            persistedPaintId = 0;
+            persistedLength = 0;
+            persistedDrawings.clear();
+          } else {
+            if (isNewFile) {
+              persistedPaintId = paintId;
+              persistedDrawings.clear();
+            }
+            persistedDrawings.addAll(newDrawings);
+            persistedLength = offset + chunk.length;
+          }
+
+          final int paintIdFinal = paintId;
+          final File file = new File(getPaintsDir(), paintId + ".bin");
           Background.instance().post(() -> {
-            RandomAccessFile f = null;
-            try {
-              f = new RandomAccessFile(fileFinal, "rw");
-              f.setLength(sizeFinal);
-              Blob.writeVarint(f, drawingsList.size());
-              for (SimpleDrawing drawing : drawingsList) {
-                drawing.save(f);
+            if (!file.exists() && !FileUtils.createDirectory(getPaintsDir())) {
+              Log.w("Cannot save paint file: %s, directory is unavailable", file.getName());
+              return;
+            }
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+              if (f.length() == offset) {
+                f.seek(offset);
+                f.write(chunk);
+              } else {
+                // File was removed, or one of previous writes has failed
+                Log.w("Rewriting paint file: %s, length: %d, expected: %d", file.getName(), f.length(), offset);
+                f.setLength(0);
+                f.write(serializeFile(drawings, true));
               }
-              forgetPaintState(paintIdFinal);
+              forgetPaintState(paintIdFinal, count);
             } catch (Throwable t) {
-              Log.w("Cannot save paint file: %s", t, fileFinal.getName());
+              Log.w("Cannot save paint file: %s", t, file.getName());
             }
-            if (f != null) { try { f.close(); } catch (Throwable t) { Log.w(t); } }
           });
+
+          Blob reference = new Blob(Blob.sizeOf(paintId) + Blob.sizeOf(count));
+          reference.writeVarint(paintId);
+          reference.writeVarint(count);
+          return reference.toByteArray();
         }
       }
     }
 
-    if (b != null) {
-      return b.toByteArray();
-    }
-
-    b = new Blob(size);
+    Blob b = new Blob(Blob.sizeOf(0) * 2 + Blob.sizeOf(FORMAT_COMPACT) + Blob.sizeOf(count) + getOutputSize(drawings));
     b.writeVarint(0);
-    b.writeVarint(drawingsList.size());
-    for (SimpleDrawing drawing : drawingsList) {
-      drawing.save(b);
-    }
+    b.writeVarint(0);
+    b.writeVarint(FORMAT_COMPACT);
+    b.writeVarint(count);
+    writeDrawings(b, drawings);
     return b.toByteArray();
   }
 
+  private static int createPaintFile () {
+    File paintCacheDirectory = getPaintsDir();
+    if (!FileUtils.createDirectory(paintCacheDirectory)) {
+      return 0;
+    }
+    int paintId = Settings.instance().getPaintId();
+    File file;
+    do {
+      paintId++;
+      Settings.instance().setPaintId(paintId);
+      file = new File(paintCacheDirectory, paintId + ".bin");
+    } while (file.exists());
+    try {
+      if (file.createNewFile()) {
+        return paintId;
+      }
+    } catch (Throwable t) {
+      Log.w("Cannot create %d.bin paint file", t, paintId);
+    }
+    return 0;
+  }
+
   public String saveAndSerializeToString () {
     if (isEmpty()) {
       return "";
@@ -341,6 +455,9 @@ public class PaintState {
   }
 
   public void removeSimpleDrawing (SimpleDrawing drawing) {
+    if (pendingDrawing == drawing) {
+      pendingDrawing = null;
+    }
     if (!isEmpty()) {
       if (drawingsList.remove(drawing)) {
         notifySimpleDrawingChanged();
@@ -374,11 +491,20 @@ public class PaintState {
       drawingsList = new ArrayList<>();
     }
     drawingsList.add(drawing);
+    pendingDrawing = drawing;
     notifySimpleDrawingChanged();
   }
 
   public void trackSimpleDrawingAction (SimpleDrawing drawing) {
+    boolean completed = pendingDrawing == drawing;
+    if (completed) {
+      pendingDrawing = null;
+    }
     trackAction(new PaintAction(PaintAction.SIMPLE_DRAWING, drawing));
+    if (completed) {
+      // Let cached renderings pick up the completed drawing
+      notifySimpleDrawingChanged();
+    }
   }
 
   // Impl
@@ -438,6 +564,17 @@ public class PaintState {
     return drawingsList == null || drawingsList.isEmpty();
   }
 
+  public List<SimpleDrawing> getSimpleDrawings () {
+    return drawingsList;
+  }
+
+  /**
+   * @return Drawing added with {@link #addSimpleDrawing(SimpleDrawing)} that is still being drawn, or {@code null}.
+   */
+  public SimpleDrawing getPendingDrawing () {
+    return pendingDrawing;
+  }
+
   // Drawing
 
   public void draw (Canvas c, final int x, final int y, final int viewWidth, final int viewHeight) {
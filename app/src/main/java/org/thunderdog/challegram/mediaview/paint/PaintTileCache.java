@@ -0,0 +1,208 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.mediaview.paint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+
+import org.thunderdog.challegram.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps completed drawings of {@link PaintState} rasterized into fixed-size tiles,
+ * so each frame blits tiles and draws only the drawing in progress,
+ * instead of replaying every path of the state.
+ *
+ * When drawings are added on top, they are rasterized only into tiles they cover.
+ * When drawings are removed (e.g. by undo), only tiles covered by removed drawings get redrawn.
+ */
+public class PaintTileCache {
+  private static final int TILE_SIZE = 256;
+
+  private int width, height;
+  private int columnCount, rowCount;
+  private Bitmap[] tiles;
+  private Canvas[] tileCanvases;
+  private boolean[] dirtyTiles;
+
+  private final ArrayList<SimpleDrawing> rasterized = new ArrayList<>();
+  private final ArrayList<RectF> rasterizedBounds = new ArrayList<>();
+
+  public void draw (Canvas c, PaintState state, int width, int height) {
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    if (this.width != width || this.height != height || tiles == null) {
+      layout(width, height);
+    }
+
+    List<SimpleDrawing> drawings = state.getSimpleDrawings();
+    SimpleDrawing pendingDrawing = state.getPendingDrawing();
+    try {
+      update(drawings, pendingDrawing);
+    } catch (OutOfMemoryError e) {
+      Log.e("Cannot allocate paint tiles", e);
+      release();
+      state.draw(c, 0, 0, width, height);
+      return;
+    }
+
+    for (int row = 0; row < rowCount; row++) {
+      for (int column = 0; column < columnCount; column++) {
+        Bitmap tile = tiles[row * columnCount + column];
+        if (tile != null) {
+          c.drawBitmap(tile, column * TILE_SIZE, row * TILE_SIZE, null);
+        }
+      }
+    }
+    if (pendingDrawing != null) {
+      pendingDrawing.draw(c, 0, 0, width, height);
+    }
+  }
+
+  private void layout (int width, int height) {
+    release();
+    this.width = width;
+    this.height = height;
+    this.columnCount = (width + TILE_SIZE - 1) / TILE_SIZE;
+    this.rowCount = (height + TILE_SIZE - 1) / TILE_SIZE;
+    int tileCount = columnCount * rowCount;
+    this.tiles = new Bitmap[tileCount];
+    this.tileCanvases = new Canvas[tileCount];
+    this.dirtyTiles = new boolean[tileCount];
+  }
+
+  private void update (List<SimpleDrawing> drawings, SimpleDrawing pendingDrawing) {
+    // Find out how many rasterized drawings are still in place
+    int keepCount = 0;
+    int drawingIndex = 0;
+    final int drawingCount = drawings != null ? drawings.size() : 0;
+    while (keepCount < rasterized.size()) {
+      if (drawingIndex < drawingCount && drawings.get(drawingIndex) == pendingDrawing) {
+        drawingIndex++;
+        continue;
+      }
+      if (drawingIndex == drawingCount || drawings.get(drawingIndex) != rasterized.get(keepCount)) {
+        break;
+      }
+      keepCount++;
+      drawingIndex++;
+    }
+
+    boolean hasDirtyTiles = false;
+    for (int i = rasterized.size() - 1; i >= keepCount; i--) {
+      markDirty(rasterizedBounds.remove(i));
+      rasterized.remove(i);
+      hasDirtyTiles = true;
+    }
+
+    // Rasterize new drawings into clean tiles, dirty ones get fully redrawn below
+    for (; drawingIndex < drawingCount; drawingIndex++) {
+      SimpleDrawing drawing = drawings.get(drawingIndex);
+      if (drawing == pendingDrawing) {
+        continue;
+      }
+      RectF bounds = new RectF();
+      drawing.getBounds(width, height, bounds);
+      rasterized.add(drawing);
+      rasterizedBounds.add(bounds);
+      forEachTile(bounds, (tileIndex, left, top) -> {
+        if (!dirtyTiles[tileIndex]) {
+          drawInto(tileIndex, left, top, drawing);
+        }
+      });
+    }
+
+    if (hasDirtyTiles) {
+      for (int tileIndex = 0; tileIndex < dirtyTiles.length; tileIndex++) {
+        if (dirtyTiles[tileIndex]) {
+          dirtyTiles[tileIndex] = false;
+          redrawTile(tileIndex);
+        }
+      }
+    }
+  }
+
+  private interface TileCallback {
+    void onTile (int tileIndex, int left, int top);
+  }
+
+  private void forEachTile (RectF bounds, TileCallback callback) {
+    int fromColumn = Math.max(0, (int) Math.floor(bounds.left / TILE_SIZE));
+    int toColumn = Math.min(columnCount - 1, (int) Math.floor(bounds.right / TILE_SIZE));
+    int fromRow = Math.max(0, (int) Math.floor(bounds.top / TILE_SIZE));
+    int toRow = Math.min(rowCount - 1, (int) Math.floor(bounds.bottom / TILE_SIZE));
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int column = fromColumn; column <= toColumn; column++) {
+        callback.onTile(row * columnCount + column, column * TILE_SIZE, row * TILE_SIZE);
+      }
+    }
+  }
+
+  private void markDirty (RectF bounds) {
+    forEachTile(bounds, (tileIndex, left, top) -> dirtyTiles[tileIndex] = true);
+  }
+
+  private void redrawTile (int tileIndex) {
+    Bitmap tile = tiles[tileIndex];
+    if (tile != null) {
+      tile.eraseColor(0);
+    }
+    int left = (tileIndex % columnCount) * TILE_SIZE;
+    int top = (tileIndex / columnCount) * TILE_SIZE;
+    final int size = rasterized.size();
+    for (int i = 0; i < size; i++) {
+      RectF bounds = rasterizedBounds.get(i);
+      if (bounds.intersects(left, top, left + TILE_SIZE, top + TILE_SIZE)) {
+        drawInto(tileIndex, left, top, rasterized.get(i));
+      }
+    }
+  }
+
+  private void drawInto (int tileIndex, int left, int top, SimpleDrawing drawing) {
+    Canvas c = tileCanvases[tileIndex];
+    if (c == null) {
+      Bitmap tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+      tiles[tileIndex] = tile;
+      tileCanvases[tileIndex] = c = new Canvas(tile);
+    }
+    final int saveCount = c.save();
+    c.translate(-left, -top);
+    c.clipRect(left, top, left + TILE_SIZE, top + TILE_SIZE);
+    drawing.draw(c, 0, 0, width, height);
+    c.restoreToCount(saveCount);
+  }
+
+  /**
+   * Drops all tiles. Next {@link #draw(Canvas, PaintState, int, int)} rasterizes state from scratch.
+   */
+  public void release () {
+    if (tiles != null) {
+      for (Bitmap tile : tiles) {
+        if (tile != null) {
+          tile.recycle();
+        }
+      }
+      tiles = null;
+      tileCanvases = null;
+      dirtyTiles = null;
+    }
+    width = height = 0;
+    columnCount = rowCount = 0;
+    rasterized.clear();
+    rasterizedBounds.clear();
+  }
+}
@@ -435,26 +435,49 @@ public class SimpleDrawing {
     }
   }
 
-  // Blob
-
-  public void save (RandomAccessFile file) throws IOException {
-    file.writeByte((byte) type);
-
-    Blob.writeVarint(file, canvasWidth);
-    Blob.writeVarint(file, canvasHeight);
-    file.writeFloat(canvasScale);
-    if (needsCanvasRotation(type)) {
-      file.writeFloat(canvasRotation);
-    }
-
-    file.writeInt(color);
-    if (needsStrokeRadius(type)) {
-      file.writeFloat(strokeRadius);
+  /**
+   * Calculates area that {@link #draw} may touch when drawn at {@code (0, 0, width, height)}.
+   * Bounds are conservative: they may be larger than the drawn area, but never smaller.
+   */
+  public void getBounds (int width, int height, RectF out) {
+    float strokeSize = dp(strokeRadius, width, height);
+    float x1 = width * this.x1, x2 = width * this.x2;
+    float y1 = height * this.y1, y2 = height * this.y2;
+    switch (type) {
+      case TYPE_PATH: {
+        path.getPath(width, height).computeBounds(out, false);
+        out.inset(-strokeSize, -strokeSize);
+        break;
+      }
+      case TYPE_ARROW: {
+        float outset = dp(24f, width, height) + strokeSize;
+        out.set(Math.min(x1, x2) - outset, Math.min(y1, y2) - outset, Math.max(x1, x2) + outset, Math.max(y1, y2) + outset);
+        break;
+      }
+      case TYPE_RECTANGLE: {
+        float left = Math.min(x1, x2), top = Math.min(y1, y2);
+        float right = Math.max(x1, x2), bottom = Math.max(y1, y2);
+        if (canvasRotation != 0f) {
+          // Rectangle is rotated around its top-left corner
+          float radius = (float) Math.hypot(right - left, bottom - top);
+          out.set(left - radius, top - radius, left + radius, top + radius);
+        } else {
+          out.set(left, top, right, bottom);
+        }
+        out.inset(-strokeSize, -strokeSize);
+        break;
+      }
+      default: {
+        out.set(0, 0, width, height);
+        break;
+      }
     }
-
-    savePositionData(file);
+    // Rounding in draw() may shift edges by a pixel
+    out.inset(-2f, -2f);
   }
 
+  // Blob
+
   public void save (Blob blob) {
     blob.writeByte((byte) type);
 
@@ -473,22 +496,6 @@ public class SimpleDrawing {
     savePositionData(blob);
   }
 
-  private void savePositionData (RandomAccessFile file) throws IOException {
-    switch (type) {
-      case TYPE_ARROW:
-      case TYPE_RECTANGLE:
-        file.writeFloat(x1);
-        file.writeFloat(x2);
-        file.writeFloat(y1);
-        file.writeFloat(y2);
-        break;
-      case TYPE_PATH: {
-        path.saveData(file);
-        break;
-      }
-    }
-  }
-
   private void savePositionData (Blob blob) {
     switch (type) {
       case TYPE_ARROW:
@@ -506,18 +513,18 @@ public class SimpleDrawing {
     }
   }
 
-  public int getEstimatedOutputSize () {
-    return 1 + Blob.sizeOf(canvasWidth) + Blob.sizeOf(canvasHeight) + 4 + (needsCanvasRotation(type) ? 4 : 0) + 4 + (needsStrokeRadius(type) ? 4 : 0) + getEstimatedPositionSaveSize();
+  public int getOutputSize () {
+    return 1 + Blob.sizeOf(canvasWidth) + Blob.sizeOf(canvasHeight) + 4 + (needsCanvasRotation(type) ? 4 : 0) + 4 + (needsStrokeRadius(type) ? 4 : 0) + getPositionOutputSize();
   }
 
-  private int getEstimatedPositionSaveSize () {
+  private int getPositionOutputSize () {
     switch (type) {
       case TYPE_ARROW:
       case TYPE_RECTANGLE: {
         return 8 * 4;
       }
       case TYPE_PATH: {
-        return path.getEstimatedOutputSize();
+        return path.getOutputSize();
       }
     }
     return 0;
@@ -550,7 +557,11 @@ public class SimpleDrawing {
     return drawing;
   }
 
-  public static SimpleDrawing restore (Blob blob) {
+  /**
+   * @param compact Whether {@code blob} was written by {@link #save(Blob)},
+   *                otherwise path points are stored as raw floats.
+   */
+  public static SimpleDrawing restore (Blob blob, boolean compact) {
     int type = blob.readByte();
 
     int canvasWidth = blob.readVarint();
@@ -572,7 +583,7 @@ public class SimpleDrawing {
     SimpleDrawing drawing = new SimpleDrawing(type, canvasWidth, canvasHeight, canvasScale, canvasRotation);
     drawing.setBrushParameters(color, strokeRadius);
 
-    restorePositionData(blob, drawing);
+    restorePositionData(blob, drawing, compact);
 
     return drawing;
   }
@@ -594,7 +605,7 @@ public class SimpleDrawing {
     }
   }
 
-  private static void restorePositionData (Blob blob, SimpleDrawing out) {
+  private static void restorePositionData (Blob blob, SimpleDrawing out, boolean compact) {
     switch (out.type) {
       case TYPE_ARROW:
       case TYPE_RECTANGLE: {
@@ -605,7 +616,7 @@ public class SimpleDrawing {
         break;
       }
       case TYPE_PATH: {
-        out.path = new CustomPath(out, blob);
+        out.path = new CustomPath(out, blob, compact);
         break;
       }
     }
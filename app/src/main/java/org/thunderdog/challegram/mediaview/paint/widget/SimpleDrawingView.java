@@ -17,11 +17,14 @@ package org.thunderdog.challegram.mediaview.paint.widget;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.view.View;
+import android.view.ViewParent;
 
 import org.thunderdog.challegram.mediaview.paint.PaintState;
+import org.thunderdog.challegram.mediaview.paint.PaintTileCache;
 
 public class SimpleDrawingView extends View implements PaintState.SimpleDrawingChangeListener {
   private PaintState state;
+  private final PaintTileCache tileCache = new PaintTileCache();
 
   public SimpleDrawingView (Context context) {
     super(context);
@@ -32,6 +35,7 @@ public class SimpleDrawingView extends View implements PaintState.SimpleDrawingC
       this.state.removeSimpleDrawingChangeListener(this);
     }
     this.state = state;
+    tileCache.release();
     if (state != null) {
       state.addSimpleDrawingChangeListener(this);
     }
@@ -45,10 +49,31 @@ public class SimpleDrawingView extends View implements PaintState.SimpleDrawingC
     }
   }
 
+  @Override
+  protected void onDetachedFromWindow () {
+    super.onDetachedFromWindow();
+    tileCache.release();
+  }
+
+  private boolean isZoomedIn () {
+    float scale = getScaleX();
+    ViewParent parent = getParent();
+    while (parent instanceof View) {
+      scale *= ((View) parent).getScaleX();
+      parent = parent.getParent();
+    }
+    return scale > 1f;
+  }
+
   @Override
   protected void onDraw (Canvas c) {
     if (state != null) {
-      state.draw(c, 0, 0, getMeasuredWidth(), getMeasuredHeight());
+      if (isZoomedIn()) {
+        // Tiles would get upscaled, so draw vector paths at full resolution
+        state.draw(c, 0, 0, getMeasuredWidth(), getMeasuredHeight());
+      } else {
+        tileCache.draw(c, state, getMeasuredWidth(), getMeasuredHeight());
+      }
     }
   }
 }
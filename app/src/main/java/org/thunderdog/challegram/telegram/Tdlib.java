@@ -66,6 +66,7 @@ import org.thunderdog.challegram.data.TGReaction;
 import org.thunderdog.challegram.emoji.Emoji;
 import org.thunderdog.challegram.emoji.EmojiCodes;
 import org.thunderdog.challegram.filegen.TdlibFileGenerationManager;
+import org.thunderdog.challegram.loader.ImageDiskCache;
 import org.thunderdog.challegram.loader.ImageFile;
 import org.thunderdog.challegram.loader.ImageLoader;
 import org.thunderdog.challegram.loader.gif.GifBridge;
@@ -80,6 +81,8 @@ import org.thunderdog.challegram.unsorted.Passcode;
 import org.thunderdog.challegram.unsorted.Settings;
 import org.thunderdog.challegram.util.ChangeLogList;
 import org.thunderdog.challegram.util.DrawableProvider;
+import org.thunderdog.challegram.util.LongIntMap;
+import org.thunderdog.challegram.util.LongObjectMap;
 import org.thunderdog.challegram.util.UserProvider;
 import org.thunderdog.challegram.util.WrapperProvider;
 import org.thunderdog.challegram.util.text.Letters;
@@ -432,8 +435,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   private final Object clientLock = new Object();
   private final Object dataLock = new Object();
-  private final HashMap<Long, TdApi.Chat> chats = new HashMap<>();
-  private final HashMap<Long, TdApi.ChatActiveStories> activeStories = new HashMap<>();
+  private final LongObjectMap<TdApi.Chat> chats = new LongObjectMap<>();
+  private final LongObjectMap<TdApi.ChatActiveStories> activeStories = new LongObjectMap<>();
   private final SparseIntArray storyListChatCount = new SparseIntArray();
   private final SparseArrayCompat<StoryList> storyLists = new SparseArrayCompat<>();
   private final HashMap<String, TdApi.ForumTopicInfo> forumTopicInfos = new HashMap<>();
@@ -442,7 +445,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     animatedTgxEmoji = new StickerSet(AnimatedEmojiListener.TYPE_TGX, "AnimatedTgxEmojies", false),
     animatedDiceExplicit = new StickerSet(AnimatedEmojiListener.TYPE_DICE, "BetterDice", true);
   private final HashSet<Long> knownChatIds = new HashSet<>();
-  private final HashMap<Long, Integer> chatOnlineMemberCount = new HashMap<>();
+  private final LongIntMap chatOnlineMemberCount = new LongIntMap();
   private final TdlibCache cache;
   private final TdlibEmojiManager emoji;
   private final TdlibEmojiReactionsManager reactions;
@@ -863,6 +866,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     }, null, null, false, 0), result -> {
       switch (result.getConstructor()) {
         case TdApi.StorageStatistics.CONSTRUCTOR:
+          ImageDiskCache.instance().clearForAccount(accountId);
           Log.i("Cleared files in %dms, accountId:%d", SystemClock.uptimeMillis() - ms, accountId);
           break;
         case TdApi.Error.CONSTRUCTOR:
@@ -1247,6 +1251,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
             client.closeState++; // 6
 
             if (pendingEraseActor != null || forceErase) {
+              ImageDiskCache.instance().clearForAccount(accountId);
               eraseActor = pendingEraseActor;
               pendingEraseActor = null;
               eraseSuccess = eraseTdlibDatabaseImpl();
@@ -2585,11 +2590,11 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   public int chatOnlineMemberCount (long chatId) {
     if (chatId == 0)
       return 0;
-    final Integer onlineMemberCount;
+    final int onlineMemberCount;
     synchronized (dataLock) {
-      onlineMemberCount = chatOnlineMemberCount.get(chatId);
+      onlineMemberCount = chatOnlineMemberCount.get(chatId, 0);
     }
-    return onlineMemberCount != null && onlineMemberCount > 1 ? onlineMemberCount : 0;
+    return onlineMemberCount > 1 ? onlineMemberCount : 0;
   }
 
   public int chatMemberCount (long chatId) {
@@ -2727,6 +2732,15 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     return list;
   }
 
+  @TdlibThread
+  private static void updateChatListsState (TdApi.Chat chat, @Nullable TdlibChatList[] chatLists) {
+    if (chatLists != null) {
+      for (TdlibChatList chatList : chatLists) {
+        chatList.onUpdateChatState(chat);
+      }
+    }
+  }
+
   private @Nullable TdlibChatList[] chatListsImpl (@Nullable TdApi.ChatPosition[] positions) {
     if (positions == null || positions.length == 0) {
       return null;
@@ -7541,15 +7555,19 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @TdlibThread
   private void updateMessageMentionRead (TdApi.UpdateMessageMentionRead update) {
     final boolean counterChanged, availabilityChanged;
+    final TdApi.Chat chat;
+    final TdlibChatList[] chatLists;
     synchronized (dataLock) {
-      final TdApi.Chat chat = chats.get(update.chatId);
+      chat = chats.get(update.chatId);
       if (TdlibUtils.assertChat(update.chatId, chat, update)) {
         return;
       }
       availabilityChanged = (chat.unreadMentionCount > 0) != (update.unreadMentionCount > 0);
       counterChanged = chat.unreadMentionCount != update.unreadMentionCount;
       chat.unreadMentionCount = update.unreadMentionCount;
+      chatLists = availabilityChanged ? chatListsImpl(chat.positions) : null;
     }
+    updateChatListsState(chat, chatLists);
 
     listeners.updateMessageMentionRead(update, counterChanged, availabilityChanged);
   }
@@ -7574,6 +7592,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       chat.unreadReactionCount = update.unreadReactionCount;
       chatLists = counterChanged || availabilityChanged ? chatListsImpl(chat.positions) : null;
     }
+    updateChatListsState(chat, chatLists);
 
 
     listeners.updateMessageUnreadReactions(update, counterChanged, availabilityChanged, chat, chatLists);
@@ -7737,14 +7756,18 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @TdlibThread
   private void updateChatUnreadMentionCount (TdApi.UpdateChatUnreadMentionCount update) {
     final boolean availabilityChanged;
+    final TdApi.Chat chat;
+    final TdlibChatList[] chatLists;
     synchronized (dataLock) {
-      final TdApi.Chat chat = chats.get(update.chatId);
+      chat = chats.get(update.chatId);
       if (TdlibUtils.assertChat(update.chatId, chat, update)) {
         return;
       }
       availabilityChanged = (chat.unreadMentionCount > 0) != (update.unreadMentionCount > 0);
       chat.unreadMentionCount = update.unreadMentionCount;
+      chatLists = availabilityChanged ? chatListsImpl(chat.positions) : null;
     }
+    updateChatListsState(chat, chatLists);
     listeners.updateChatUnreadMentionCount(update, availabilityChanged);
   }
 
@@ -7762,6 +7785,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       chat.unreadReactionCount = update.unreadReactionCount;
       chatLists = chatListsImpl(chat.positions);
     }
+    updateChatListsState(chat, chatLists);
     listeners.updateChatUnreadReactionCount(update, availabilityChanged, chat, chatLists);
   }
 
@@ -7771,14 +7795,18 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       Log.i(Log.TAG_MESSAGES_LOADER, "updateChatTopMessage chatId=%d messageId=%d", update.chatId, update.lastMessage != null ? update.lastMessage.id : 0);
     }
     List<ChatListChange> listChanges;
+    final TdApi.Chat chat;
+    final TdlibChatList[] chatLists;
     synchronized (dataLock) {
-      final TdApi.Chat chat = chats.get(update.chatId);
+      chat = chats.get(update.chatId);
       if (TdlibUtils.assertChat(update.chatId, chat, update)) {
         return;
       }
       chat.lastMessage = update.lastMessage;
       listChanges = setChatPositions(chat, update.positions);
+      chatLists = chatListsImpl(chat.positions);
     }
+    updateChatListsState(chat, chatLists);
     listeners.updateChatLastMessage(update, listChanges);
   }
 
@@ -8151,13 +8179,17 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @TdlibThread
   private void updateChatHasScheduledMessages (TdApi.UpdateChatHasScheduledMessages update) {
+    final TdApi.Chat chat;
+    final TdlibChatList[] chatLists;
     synchronized (dataLock) {
-      final TdApi.Chat chat = chats.get(update.chatId);
+      chat = chats.get(update.chatId);
       if (TdlibUtils.assertChat(update.chatId, chat, update)) {
         return;
       }
       chat.hasScheduledMessages = update.hasScheduledMessages;
+      chatLists = chatListsImpl(chat.positions);
     }
+    updateChatListsState(chat, chatLists);
 
     listeners.updateChatHasScheduledMessages(update);
   }
@@ -8252,8 +8284,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @TdlibThread
   private void updateChatOnlineMemberCount (TdApi.UpdateChatOnlineMemberCount update) {
     synchronized (dataLock) {
-      Integer onlineCountObj = chatOnlineMemberCount.get(update.chatId);
-      int count = onlineCountObj != null ? onlineCountObj : 0;
+      int count = chatOnlineMemberCount.get(update.chatId, 0);
       if (update.onlineMemberCount == count)
         return;
       if (update.onlineMemberCount != 0)
@@ -9582,7 +9613,37 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     clientHolder().sendFakeUpdate(update);
   }
 
+  private volatile int updateSequence;
+
+  /**
+   * Incremented once before and once after each update is applied, and changes only on TDLib thread.
+   *
+   * @return Odd value while an update is being applied, including while its listeners are notified,
+   * even value otherwise. Values computed from cached objects may be memoized only for even sequence.
+   */
+  int updateSequence () {
+    return updateSequence;
+  }
+
+  static boolean isStableUpdateSequence (int sequence) {
+    return (sequence & 1) == 0;
+  }
+
+  @TdlibThread
   private void processUpdate (ClientHolder context, TdApi.Update update) {
+    // Incremented before update is applied, so values memoized with the previous sequence get invalidated
+    // even when they are requested by listeners of this update
+    //noinspection NonAtomicOperationOnVolatileField
+    updateSequence++;
+    try {
+      processUpdateImpl(context, update);
+    } finally {
+      //noinspection NonAtomicOperationOnVolatileField
+      updateSequence++;
+    }
+  }
+
+  private void processUpdateImpl (ClientHolder context, TdApi.Update update) {
     switch (update.getConstructor()) {
       // Notifications
       case TdApi.UpdateHavePendingNotifications.CONSTRUCTOR:
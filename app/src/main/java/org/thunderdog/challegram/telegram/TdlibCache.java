@@ -34,6 +34,7 @@ import org.thunderdog.challegram.Log;
 import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.TDLib;
 import org.thunderdog.challegram.component.dialogs.ChatView;
+import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.data.AvatarPlaceholder;
 import org.thunderdog.challegram.data.TD;
@@ -42,16 +43,16 @@ import org.thunderdog.challegram.tool.Strings;
 import org.thunderdog.challegram.tool.UI;
 import org.thunderdog.challegram.util.AppUpdater;
 import org.thunderdog.challegram.util.DrawableProvider;
+import org.thunderdog.challegram.util.ConcurrentLongObjectMap;
 import org.thunderdog.challegram.util.text.Letters;
 import org.thunderdog.challegram.voip.annotation.CallState;
 import org.thunderdog.challegram.voip.gui.CallSettings;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.vkryl.android.AppInstallationUtil;
 import me.vkryl.core.StringUtils;
@@ -111,8 +112,8 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   private final Tdlib tdlib;
   private volatile long myUserId;
 
-  private final HashMap<Long, TdApi.User> users = new HashMap<>();
-  private final HashMap<Long, TdApi.UserFullInfo> userFulls = new HashMap<>();
+  private final ConcurrentLongObjectMap<TdApi.User> users = new ConcurrentLongObjectMap<>();
+  private final ConcurrentLongObjectMap<TdApi.UserFullInfo> userFulls = new ConcurrentLongObjectMap<>();
   private final ReferenceLongMap<UserDataChangeListener> userListeners = new ReferenceLongMap<>(true);
 
   private final ReferenceMap.FullnessListener<Long, UserStatusChangeListener> statusFullnessListener = (list, isFull) -> setRefreshNeeded(isFull);
@@ -120,18 +121,18 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   private final ReferenceLongMap<UserStatusChangeListener> simpleStatusListeners = new ReferenceLongMap<>(true, null);
   private final ReferenceList<MyUserDataChangeListener> myUserListeners = new ReferenceList<>(true);
 
-  private final HashMap<Long, TdApi.BasicGroup> basicGroup = new HashMap<>();
-  private final HashMap<Long, TdApi.BasicGroupFullInfo> basicGroupFull = new HashMap<>();
+  private final ConcurrentLongObjectMap<TdApi.BasicGroup> basicGroup = new ConcurrentLongObjectMap<>();
+  private final ConcurrentLongObjectMap<TdApi.BasicGroupFullInfo> basicGroupFull = new ConcurrentLongObjectMap<>();
   private final ReferenceList<BasicGroupDataChangeListener> groupsGlobalListeners = new ReferenceList<>(true);
   private final ReferenceLongMap<BasicGroupDataChangeListener> groupListeners = new ReferenceLongMap<>(true);
 
-  private final HashMap<Long, TdApi.Supergroup> supergroups = new HashMap<>();
-  private final HashMap<Long, TdApi.SupergroupFullInfo> supergroupsFulls = new HashMap<>();
+  private final ConcurrentLongObjectMap<TdApi.Supergroup> supergroups = new ConcurrentLongObjectMap<>();
+  private final ConcurrentLongObjectMap<TdApi.SupergroupFullInfo> supergroupsFulls = new ConcurrentLongObjectMap<>();
   private final LongSparseLongArray supergroupsFullsLastUpdateTime = new LongSparseLongArray();
   private final ReferenceList<SupergroupDataChangeListener> supergroupsGlobalListeners = new ReferenceList<>();
   private final ReferenceLongMap<SupergroupDataChangeListener> supergroupListeners = new ReferenceLongMap<>();
 
-  private final HashMap<Integer, TdApi.SecretChat> secretChats = new HashMap<>();
+  private final ConcurrentLongObjectMap<TdApi.SecretChat> secretChats = new ConcurrentLongObjectMap<>(); // int ids
   private final ReferenceList<SecretChatDataChangeListener> secretChatsGlobalListeners = new ReferenceList<>();
   private final ReferenceIntMap<SecretChatDataChangeListener> secretChatListeners = new ReferenceIntMap<>();
 
@@ -658,13 +659,17 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   }
 
   public CallSettings getCallSettings (int callId) {
+    final long startTime = System.nanoTime();
     synchronized (dataLock) {
+      onLockedRead(startTime);
       return callSettings.get(callId);
     }
   }
 
   public TdApi.Call getPendingCall () {
+    final long startTime = System.nanoTime();
     synchronized (dataLock) {
+      onLockedRead(startTime);
       final int size = calls.size();
       for (int i = size - 1; i >= 0; i--) {
         TdApi.Call call = calls.valueAt(i);
@@ -677,7 +682,9 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   }
 
   public TdApi.Call getCall (int callId) {
+    final long startTime = System.nanoTime();
     synchronized (dataLock) {
+      onLockedRead(startTime);
       return calls.get(callId);
     }
   }
@@ -858,6 +865,68 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
     myUserListeners.remove(listener);
   }
 
+  // Read path
+
+  // Entity maps are written only under dataLock, but can be read without it.
+  // Readers that still need dataLock report how long they waited for it.
+  //
+  // Map entries are safely published, but cached objects are still updated in place
+  // (e.g. Td.copyTo in onUpdateUser), so a lock-free reader may observe an object
+  // with some fields already updated and others not yet. This is the same race callers
+  // always had: even with the lock, returned objects were read after dataLock was released.
+  // Instance identity is relied upon (listeners compare and keep cached objects),
+  // so immutable copies are not published instead. Readers that need a consistent
+  // snapshot of several fields must copy them while holding dataLock.
+
+  private final AtomicLong lockedReadCount = new AtomicLong(), lockedReadWaitNanos = new AtomicLong(), maxLockedReadWaitNanos = new AtomicLong();
+
+  private void onLockedRead (long startTimeNanos) {
+    final long waitNanos = System.nanoTime() - startTimeNanos;
+    lockedReadCount.incrementAndGet();
+    lockedReadWaitNanos.addAndGet(waitNanos);
+    long maxWaitNanos;
+    do {
+      maxWaitNanos = maxLockedReadWaitNanos.get();
+    } while (waitNanos > maxWaitNanos && !maxLockedReadWaitNanos.compareAndSet(maxWaitNanos, waitNanos));
+  }
+
+  @Nullable
+  private <T> T read (ConcurrentLongObjectMap<T> map, long key) {
+    if (Config.TDLIB_CACHE_LOCKED_READS) {
+      final long startTime = System.nanoTime();
+      synchronized (dataLock) {
+        onLockedRead(startTime);
+        return map.get(key);
+      }
+    }
+    return map.get(key);
+  }
+
+  public static class ReadStats {
+    public long lockedReadCount;
+    public long totalWaitNanos, maxWaitNanos;
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "lockedReads = " + lockedReadCount +
+        ", wait = " + TimeUnit.NANOSECONDS.toMicros(totalWaitNanos) + "us total, " +
+        TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) + "us max";
+    }
+  }
+
+  /**
+   * @return Time readers spent waiting for dataLock. Compare builds with
+   * {@link Config#TDLIB_CACHE_LOCKED_READS} enabled and disabled.
+   */
+  public ReadStats getReadStats () {
+    ReadStats stats = new ReadStats();
+    stats.lockedReadCount = lockedReadCount.get();
+    stats.totalWaitNanos = lockedReadWaitNanos.get();
+    stats.maxWaitNanos = maxLockedReadWaitNanos.get();
+    return stats;
+  }
+
   // Getters
 
   public ArrayList<TdApi.User> users (long[] userIds) {
@@ -868,16 +937,14 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   public int users (long[] userIds, ArrayList<TdApi.User> out) {
     int addedCount = 0;
-    synchronized (dataLock) {
-      for (long userId : userIds) {
-        if (userId != 0) {
-          TdApi.User user = users.get(userId);
-          if (user != null) {
-            out.add(user);
-            addedCount++;
-          } else {
-            Log.bug("updateUser missing for userId:%d", userId);
-          }
+    for (long userId : userIds) {
+      if (userId != 0) {
+        TdApi.User user = read(users, userId);
+        if (user != null) {
+          out.add(user);
+          addedCount++;
+        } else {
+          Log.bug("updateUser missing for userId:%d", userId);
         }
       }
     }
@@ -889,34 +956,28 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
       Log.bug("getUser for userId=0");
       return null;
     }
-    synchronized (dataLock) {
-      TdApi.User user = users.get(userId);
-      if (user == null)
-        Log.bug("updateUser missing for userId:%d", userId);
-      return user;
-    }
+    TdApi.User user = read(users, userId);
+    if (user == null)
+      Log.bug("updateUser missing for userId:%d", userId);
+    return user;
   }
 
   @NonNull
   public TdApi.User userStrict (long userId) {
     if (userId == 0)
       throw new IllegalArgumentException();
-    synchronized (dataLock) {
-      TdApi.User user = users.get(userId);
-      if (user == null)
-        throw new IllegalStateException("id" + userId);
-      return user;
-    }
+    TdApi.User user = read(users, userId);
+    if (user == null)
+      throw new IllegalStateException("id" + userId);
+    return user;
   }
 
   public boolean userLastSeenAvailable (long userId) {
     if (userId == 0)
       return false;
-    synchronized (dataLock) {
-      TdApi.User user = users.get(userId);
-      TdApi.UserStatus status = user != null ? user.status : null;
-      return status != null && status.getConstructor() == TdApi.UserStatusOffline.CONSTRUCTOR && ((TdApi.UserStatusOffline) status).wasOnline != 0;
-    }
+    TdApi.User user = read(users, userId);
+    TdApi.UserStatus status = user != null ? user.status : null;
+    return status != null && status.getConstructor() == TdApi.UserStatusOffline.CONSTRUCTOR && ((TdApi.UserStatusOffline) status).wasOnline != 0;
   }
 
   public boolean userGeneral (long userId) {
@@ -1085,17 +1146,13 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   @Nullable
   public TdApi.UserFullInfo userFull (long userId, boolean allowRequest) {
-    TdApi.UserFullInfo userFull;
-    synchronized (dataLock) {
-      Long key = userId;
-      userFull = userFulls.get(key);
-      if (userFull == null || allowRequest) {
-        TdApi.User user = users.get(key);
-        if (user != null) {
-          tdlib.client().send(new TdApi.GetUserFullInfo(userId), dataHandler);
-        } else {
-          tdlib.client().send(new TdApi.GetUser(userId), ignored -> tdlib.client().send(new TdApi.GetUserFullInfo(userId), dataHandler));
-        }
+    TdApi.UserFullInfo userFull = read(userFulls, userId);
+    if (userFull == null || allowRequest) {
+      TdApi.User user = read(users, userId);
+      if (user != null) {
+        tdlib.client().send(new TdApi.GetUserFullInfo(userId), dataHandler);
+      } else {
+        tdlib.client().send(new TdApi.GetUser(userId), ignored -> tdlib.client().send(new TdApi.GetUserFullInfo(userId), dataHandler));
       }
     }
     return userFull;
@@ -1133,37 +1190,27 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   }
 
   public @Nullable TdApi.User searchUser (String username, boolean allowDisabled) {
-    TdApi.User result = null;
-    synchronized (dataLock) {
-      final Set<HashMap.Entry<Long, TdApi.User>> entries = users.entrySet();
-      for (HashMap.Entry<Long, TdApi.User> entry : entries) {
-        TdApi.User user = entry.getValue();
-        if (Td.findUsername(user, username, allowDisabled)) {
-          result = user;
-          break;
-        }
+    for (TdApi.User user : users.values()) {
+      if (Td.findUsername(user, username, allowDisabled)) {
+        return user;
       }
     }
-    return result;
+    return null;
   }
 
   @Nullable
   public TdApi.BasicGroup basicGroup (long basicGroupId) {
-    synchronized (dataLock) {
-      return basicGroup.get(basicGroupId);
-    }
+    return read(basicGroup, basicGroupId);
   }
 
   @NonNull
   public TdApi.BasicGroup basicGroupStrict (long basicGroupId) {
     if (basicGroupId == 0)
       throw new IllegalArgumentException();
-    synchronized (dataLock) {
-      TdApi.BasicGroup group = basicGroup.get(basicGroupId);
-      if (group == null)
-        throw new IllegalStateException("id:" + basicGroupId);
-      return group;
-    }
+    TdApi.BasicGroup group = read(basicGroup, basicGroupId);
+    if (group == null)
+      throw new IllegalStateException("id:" + basicGroupId);
+    return group;
   }
 
   public boolean basicGroupActive (long basicGroupId) {
@@ -1178,18 +1225,9 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   @Nullable
   public TdApi.BasicGroupFullInfo basicGroupFull (long basicGroupId, boolean allowRequest) {
-    synchronized (dataLock) {
-      return basicGroupFullUnsafe(basicGroupId, allowRequest);
-    }
-  }
-
-  @Nullable
-  private TdApi.BasicGroupFullInfo basicGroupFullUnsafe (long basicGroupId, boolean allowRequest) {
-    Long key = basicGroupId;
-    TdApi.BasicGroupFullInfo groupFull;
-    groupFull = basicGroupFull.get(key);
+    TdApi.BasicGroupFullInfo groupFull = read(basicGroupFull, basicGroupId);
     if (groupFull == null || allowRequest) {
-      TdApi.BasicGroup basicGroup = this.basicGroup.get(key);
+      TdApi.BasicGroup basicGroup = read(this.basicGroup, basicGroupId);
       if (basicGroup != null) {
         tdlib.client().send(new TdApi.GetBasicGroupFullInfo(basicGroupId), dataHandler);
       } else {
@@ -1228,21 +1266,17 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   @Nullable
   public TdApi.Supergroup supergroup (long supergroupId) {
-    synchronized (dataLock) {
-      return supergroups.get(supergroupId);
-    }
+    return read(supergroups, supergroupId);
   }
 
   @NonNull
   public TdApi.Supergroup supergroupStrict (long supergroupId) {
     if (supergroupId == 0)
       throw new IllegalArgumentException();
-    synchronized (dataLock) {
-      TdApi.Supergroup supergroup = supergroups.get(supergroupId);
-      if (supergroup == null)
-        throw new IllegalStateException("id:" + supergroupId);
-      return supergroup;
-    }
+    TdApi.Supergroup supergroup = read(supergroups, supergroupId);
+    if (supergroup == null)
+      throw new IllegalStateException("id:" + supergroupId);
+    return supergroup;
   }
 
   @Nullable
@@ -1258,24 +1292,22 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   @Nullable
   public TdApi.SupergroupFullInfo supergroupFull (long supergroupId, boolean allowRequest) {
-    TdApi.SupergroupFullInfo result;
-    synchronized (dataLock) {
-      Long key = supergroupId;
-      result = supergroupsFulls.get(key);
-      if (result == null || allowRequest) {
-        TdApi.Supergroup supergroup = supergroups.get(key);
-        if (supergroup != null) {
-          tdlib.client().send(new TdApi.GetSupergroupFullInfo(supergroupId), dataHandler);
-        } else {
-          tdlib.client().send(new TdApi.GetSupergroup(supergroupId), ignored -> tdlib.client().send(new TdApi.GetSupergroupFullInfo(supergroupId), dataHandler));
-        }
+    TdApi.SupergroupFullInfo result = read(supergroupsFulls, supergroupId);
+    if (result == null || allowRequest) {
+      TdApi.Supergroup supergroup = read(supergroups, supergroupId);
+      if (supergroup != null) {
+        tdlib.client().send(new TdApi.GetSupergroupFullInfo(supergroupId), dataHandler);
+      } else {
+        tdlib.client().send(new TdApi.GetSupergroup(supergroupId), ignored -> tdlib.client().send(new TdApi.GetSupergroupFullInfo(supergroupId), dataHandler));
       }
     }
     return result;
   }
 
   public long getSlowModeDelayExpiresIn (long supergroupId, TimeUnit timeUnit) {
+    final long startTime = System.nanoTime();
     synchronized (dataLock) {
+      onLockedRead(startTime);
       final long lastUpdateTime = supergroupsFullsLastUpdateTime.get(supergroupId, 0);
       final TdApi.SupergroupFullInfo supergroupFullInfo = supergroupsFulls.get(supergroupId);
       if (supergroupFullInfo != null) {
@@ -1315,21 +1347,17 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   }
 
   public @Nullable TdApi.SecretChat secretChat (int secretChatId) {
-    synchronized (dataLock) {
-      return secretChats.get(secretChatId);
-    }
+    return read(secretChats, secretChatId);
   }
 
   @NonNull
   public TdApi.SecretChat secretChatStrict (int secretChatId) {
     if (secretChatId == 0)
       throw new IllegalArgumentException();
-    synchronized (dataLock) {
-      TdApi.SecretChat secretChat = secretChats.get(secretChatId);
-      if (secretChat == null)
-        throw new IllegalStateException("id:" + secretChatId);
-      return secretChat;
-    }
+    TdApi.SecretChat secretChat = read(secretChats, secretChatId);
+    if (secretChat == null)
+      throw new IllegalStateException("id:" + secretChatId);
+    return secretChat;
   }
 
   /*pacakge*/ long myUserId () {
@@ -1341,11 +1369,8 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   }
 
   public @Nullable TdApi.User myUser () {
-    TdApi.User result;
-    synchronized (dataLock) {
-      result = myUserId != 0 ? users.get(myUserId) : null;
-    }
-    return result;
+    final long myUserId = this.myUserId;
+    return myUserId != 0 ? read(users, myUserId) : null;
   }
 
   public boolean isOnline (long userId) {
@@ -1358,15 +1383,7 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
     if (tdlib.isServiceNotificationsChat(ChatId.fromUserId(userId))) {
       return false;
     }
-    boolean isOnline;
-    synchronized (dataLock) {
-      if (userId != myUserId) {
-        isOnline = TD.isOnline(users.get(userId));
-      } else {
-        isOnline = true;
-      }
-    }
-    return isOnline;
+    return TD.isOnline(read(users, userId));
   }
 
   /*public int secondsTillOffline (long userId) {
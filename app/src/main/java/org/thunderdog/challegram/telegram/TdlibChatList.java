@@ -19,6 +19,7 @@ import androidx.annotation.Nullable;
 
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.util.LongObjectMap;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -38,6 +39,7 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
     public final TdApi.Chat chat;
     public final TdApi.ChatList chatList;
     public TdApi.ChatPosition effectivePosition;
+    private int stateFlags;
 
     public Entry (TdApi.Chat chat, TdApi.ChatList chatList, TdApi.ChatPosition position) {
       this.chat = chat;
@@ -77,11 +79,30 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
   private final Tdlib tdlib;
   private final TdApi.ChatList chatList;
   private final ArrayList<Entry> list = new ArrayList<>();
+  private final LongObjectMap<Entry> entriesByChatId = new LongObjectMap<>();
   private final List<Runnable> onLoadMore = new ArrayList<>();
   private final List<RunnableData<TdApi.Chat>> perChatCallbacks = new ArrayList<>();
 
   private @State int state = State.END_NOT_REACHED;
 
+  // Aggregates over list, guarded by list
+
+  private static final int STATE_UNREAD_MENTIONS = 1;
+  private static final int STATE_UNREAD_REACTIONS = 1 << 1;
+  private static final int STATE_SCHEDULED_MESSAGES = 1 << 2;
+  private static final int STATE_FAILED_LAST_MESSAGE = 1 << 3;
+  private static final int STATE_COUNT = 4;
+
+  private final int[] stateCounters = new int[STATE_COUNT];
+
+  private static final int MAX_MEMOIZED_FILTER_COUNT = 4;
+  private final Filter<?>[] memoizedFilters = new Filter<?>[MAX_MEMOIZED_FILTER_COUNT];
+  private final int[] memoizedCounts = new int[MAX_MEMOIZED_FILTER_COUNT];
+  private final int[] memoizedSequences = new int[MAX_MEMOIZED_FILTER_COUNT];
+  private int nextMemoizedFilterIndex;
+  private int maxDate, maxDateSequence;
+  private boolean hasMaxDate;
+
   TdlibChatList (Tdlib tdlib, TdApi.ChatList chatList) {
     this.tdlib = tdlib;
     this.chatList = chatList;
@@ -128,16 +149,47 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
       if (filter == null) {
         return list.size();
       }
+      // Filters may check any chat field, so results stay valid only until the next processed update
+      final int sequence = tdlib.updateSequence();
+      final boolean canMemoize = Tdlib.isStableUpdateSequence(sequence);
+      if (canMemoize) {
+        for (int i = 0; i < MAX_MEMOIZED_FILTER_COUNT; i++) {
+          if (memoizedFilters[i] == filter && memoizedSequences[i] == sequence) {
+            return memoizedCounts[i];
+          }
+        }
+      }
       int count = 0;
       for (Entry entry : list) {
         if (filter.accept(entry.chat)) {
           count++;
         }
       }
+      if (!canMemoize) {
+        // Update is still being applied
+        return count;
+      }
+      int index = indexOfMemoizedFilter(filter);
+      if (index == -1) {
+        index = nextMemoizedFilterIndex;
+        nextMemoizedFilterIndex = (nextMemoizedFilterIndex + 1) % MAX_MEMOIZED_FILTER_COUNT;
+        memoizedFilters[index] = filter;
+      }
+      memoizedCounts[index] = count;
+      memoizedSequences[index] = sequence;
       return count;
     }
   }
 
+  private int indexOfMemoizedFilter (Filter<TdApi.Chat> filter) {
+    for (int i = 0; i < MAX_MEMOIZED_FILTER_COUNT; i++) {
+      if (memoizedFilters[i] == filter) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   public List<Entry> listCopy (@Nullable Filter<TdApi.Chat> filter) {
     synchronized (list) {
       return listCopyImpl(filter);
@@ -155,47 +207,34 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
   }
 
   public boolean hasUnreadMentions () {
-    synchronized (list) {
-      for (Entry entry : list) {
-        if (entry.chat.unreadMentionCount > 0)
-          return true;
-      }
-      return false;
-    }
+    return hasChatsInState(STATE_UNREAD_MENTIONS);
   }
 
   public boolean hasUnreadReactions () {
-    synchronized (list) {
-      for (Entry entry : list) {
-        if (entry.chat.unreadReactionCount > 0)
-          return true;
-      }
-      return false;
-    }
+    return hasChatsInState(STATE_UNREAD_REACTIONS);
   }
 
   public boolean hasScheduledMessages () {
-    synchronized (list) {
-      for (Entry entry : list) {
-        if (entry.chat.hasScheduledMessages)
-          return true;
-      }
-      return false;
-    }
+    return hasChatsInState(STATE_SCHEDULED_MESSAGES);
   }
 
   public boolean hasFailedMessages () {
+    return hasChatsInState(STATE_FAILED_LAST_MESSAGE);
+  }
+
+  private boolean hasChatsInState (int state) {
     synchronized (list) {
-      for (Entry entry : list) {
-        if (TD.isFailed(entry.chat.lastMessage))
-          return true;
-      }
-      return false;
+      return stateCounters[Integer.numberOfTrailingZeros(state)] > 0;
     }
   }
 
   public int maxDate () {
     synchronized (list) {
+      final int sequence = tdlib.updateSequence();
+      final boolean canMemoize = Tdlib.isStableUpdateSequence(sequence);
+      if (canMemoize && hasMaxDate && maxDateSequence == sequence) {
+        return maxDate;
+      }
       int maxDate = 0;
       for (Entry entry : list) {
         if (entry.chat.lastMessage != null) {
@@ -204,6 +243,11 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
             break;
         }
       }
+      if (canMemoize) {
+        this.maxDate = maxDate;
+        this.maxDateSequence = sequence;
+        this.hasMaxDate = true;
+      }
       return maxDate;
     }
   }
@@ -333,14 +377,36 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
   }
 
   private int indexOfEntry (long chatId) {
-    int index = 0;
-    for (Entry entry : list) {
-      if (entry.chat.id == chatId) {
-        return index;
-      }
-      index++;
+    final Entry entry = entriesByChatId.get(chatId);
+    if (entry == null) {
+      return -1;
+    }
+    // list is sorted by effectivePosition, which is changed only while entry is out of the list
+    int index = Collections.binarySearch(list, entry, this);
+    if (index < 0)
+      throw new IllegalStateException();
+    return index;
+  }
+
+  private static int stateFlagsOf (TdApi.Chat chat) {
+    int flags = 0;
+    if (chat.unreadMentionCount > 0)
+      flags |= STATE_UNREAD_MENTIONS;
+    if (chat.unreadReactionCount > 0)
+      flags |= STATE_UNREAD_REACTIONS;
+    if (chat.hasScheduledMessages)
+      flags |= STATE_SCHEDULED_MESSAGES;
+    if (TD.isFailed(chat.lastMessage))
+      flags |= STATE_FAILED_LAST_MESSAGE;
+    return flags;
+  }
+
+  private void updateStateCounters (int flags, int delta) {
+    while (flags != 0) {
+      int state = Integer.lowestOneBit(flags);
+      stateCounters[Integer.numberOfTrailingZeros(state)] += delta;
+      flags &= ~state;
     }
-    return -1;
   }
 
   // Updates handling
@@ -355,6 +421,27 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
     }
   }
 
+  /**
+   * Must be called after changing {@link TdApi.Chat} fields used by {@link #hasUnreadMentions()},
+   * {@link #hasUnreadReactions()}, {@link #hasScheduledMessages()} or {@link #hasFailedMessages()}.
+   */
+  @TdlibThread
+  void onUpdateChatState (TdApi.Chat chat) {
+    synchronized (list) {
+      final Entry entry = entriesByChatId.get(chat.id);
+      if (entry == null) {
+        return;
+      }
+      final int newFlags = stateFlagsOf(chat);
+      final int changedFlags = entry.stateFlags ^ newFlags;
+      if (changedFlags != 0) {
+        updateStateCounters(changedFlags & newFlags, 1);
+        updateStateCounters(changedFlags & entry.stateFlags, -1);
+        entry.stateFlags = newFlags;
+      }
+    }
+  }
+
   @TdlibThread
   void onUpdateChatPosition (TdApi.Chat chat, Tdlib.ChatChange changeInfo) {
     TdApi.ChatPosition position = changeInfo.position;
@@ -401,6 +488,9 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
         throw new IllegalStateException();
       atIndex = atIndex * -1 - 1;
       list.add(atIndex, entry);
+      entriesByChatId.put(entry.chat.id, entry);
+      entry.stateFlags = stateFlagsOf(entry.chat);
+      updateStateCounters(entry.stateFlags, 1);
     }
     for (RunnableData<TdApi.Chat> perChatCallback : perChatCallbacks) {
       perChatCallback.runWithData(entry.chat);
@@ -412,6 +502,8 @@ public class TdlibChatList implements Comparator<TdlibChatList.Entry>, CounterCh
     Entry entry;
     synchronized (list) {
       entry = list.remove(fromIndex);
+      entriesByChatId.remove(entry.chat.id);
+      updateStateCounters(entry.stateFlags, -1);
     }
     tdlib.listeners().updateChatRemoved(this, entry.chat, fromIndex, changeInfo);
   }
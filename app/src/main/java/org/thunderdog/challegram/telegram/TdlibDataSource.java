@@ -13,6 +13,7 @@
 package org.thunderdog.challegram.telegram;
 
 import android.net.Uri;
+import android.os.SystemClock;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
@@ -23,6 +24,7 @@ import androidx.media3.datasource.DataSource;
 import androidx.media3.datasource.DataSpec;
 
 import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.Log;
 import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.data.TD;
 
@@ -30,6 +32,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -194,6 +199,21 @@ public final class TdlibDataSource extends BaseDataSource {
 
   private boolean referenceAcquired;
 
+  // Read-ahead state. Survives reopening, so sequential opens of the same file keep the window
+  private int lastFileId;
+  private long lastEndPosition = C.POSITION_UNSET;
+  private long readAheadBytes = MIN_READ_AHEAD_LENGTH;
+  private long readAheadGrowOffset;
+
+  // Block cache: bytes already confirmed as downloaded, or the whole file mapped once it is complete
+  private FileChannel fileChannel;
+  private MappedByteBuffer mappedFile;
+  private final ByteBuffer block = ByteBuffer.allocate((int) BLOCK_LENGTH);
+  private long blockOffset;
+  private int blockLength;
+
+  private final Stats stats = new Stats();
+
   public TdlibDataSource (int defaultAccountId, int defaultPriority, RequestModifier requestModifier) {
     super(true);
     this.defaultAccountId = defaultAccountId;
@@ -273,6 +293,20 @@ public final class TdlibDataSource extends BaseDataSource {
     synchronized (fileLock) {
       this.file = (TdApi.File) result;
     }
+
+    final boolean isSequential = file.id == lastFileId && dataSpec.position == lastEndPosition;
+    if (!isSequential) {
+      // Seek or another file: start with a small window, so the first bytes arrive as soon as possible
+      readAheadBytes = MIN_READ_AHEAD_LENGTH;
+      readAheadGrowOffset = dataSpec.position + readAheadBytes / 2;
+    }
+    this.lastFileId = file.id;
+    synchronized (stats) {
+      stats.reset(SystemClock.uptimeMillis());
+      if (!isSequential && dataSpec.position > 0) {
+        stats.seekCount++;
+      }
+    }
     transferStarted(dataSpec);
     if (dataSpec.length != C.LENGTH_UNSET) {
       return file.size != 0 ? Math.min(dataSpec.length, file.size) : dataSpec.length;
@@ -352,6 +386,12 @@ public final class TdlibDataSource extends BaseDataSource {
     if (readLength == 0) {
       return 0;
     }
+    int cachedCount = readFromBlock(bytesRead, buffer, bufferOffset, readLength);
+    if (cachedCount > 0) {
+      onBytesRead(cachedCount, true);
+      return cachedCount;
+    }
+    long stallStartTime = 0;
     try {
       boolean first = true;
       do {
@@ -379,6 +419,10 @@ public final class TdlibDataSource extends BaseDataSource {
           return C.RESULT_END_OF_INPUT;
         }
 
+        if (first && offset >= readAheadGrowOffset) {
+          // Player keeps reading sequentially: widen the window up to the target
+          growReadAhead(file, offset, false);
+        }
         long downloadLimit = calculateDownloadLimit(file, offset, readLength);
         if (first) {
           first = false;
@@ -390,31 +434,31 @@ public final class TdlibDataSource extends BaseDataSource {
         } else if (!file.local.isDownloadingCompleted && !file.local.isDownloadingActive) {
           acquireOrUpdateReference(file, initialOffset, downloadLimit);
         }
-        long available = getAvailableSize(file, offset, readLength);
+        long available = getAvailableSize(file, offset, (int) Math.max(readLength, BLOCK_LENGTH));
         if (available == C.RESULT_END_OF_INPUT) {
           return C.RESULT_END_OF_INPUT;
         }
         if (available == 0) {
+          if (stallStartTime == 0) {
+            stallStartTime = SystemClock.uptimeMillis();
+            if (!file.local.isDownloadingCompleted && offset != initialOffset) {
+              // Download doesn't keep up with playback: read further ahead
+              growReadAhead(file, offset, true);
+              acquireOrUpdateReference(file, initialOffset, calculateDownloadLimit(file, offset, readLength));
+            }
+          }
           latch.await();
           continue;
         }
         try {
-          boolean opened = false;
-          synchronized (fileLock) {
-            if (openFile == null) {
-              openFile = new RandomAccessFile(file.local.path, "r");
-              opened = true;
-            }
-          }
-          if (opened && offset > 0) {
-            openFile.seek(offset);
-          }
-          int readCount = openFile.read(buffer, bufferOffset, available > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) available);
-          bytesTransferred(readCount);
-          bytesRead += readCount;
+          int readCount = readFromFile(file, offset, buffer, bufferOffset, (int) Math.min(readLength, available), available);
+          onBytesRead(readCount, false);
           return readCount;
         } catch (IOException e) {
           if (acquireOrUpdateReference(file, initialOffset, downloadLimit)) {
+            if (stallStartTime == 0) {
+              stallStartTime = SystemClock.uptimeMillis();
+            }
             latch.await();
           } else {
             throw new TdlibDataSourceException(e);
@@ -423,11 +467,111 @@ public final class TdlibDataSource extends BaseDataSource {
       } while (true);
     } catch (InterruptedException e) {
       throw new TdlibDataSourceException(e);
+    } finally {
+      if (stallStartTime != 0) {
+        long stallTimeMs = SystemClock.uptimeMillis() - stallStartTime;
+        synchronized (stats) {
+          stats.stallCount++;
+          stats.stallTimeMs += stallTimeMs;
+          stats.maxStallTimeMs = Math.max(stats.maxStallTimeMs, stallTimeMs);
+        }
+      }
+    }
+  }
+
+  private void onBytesRead (int readCount, boolean fromCache) {
+    bytesTransferred(readCount);
+    bytesRead += readCount;
+    synchronized (stats) {
+      stats.bytesRead += readCount;
+      if (fromCache) {
+        stats.cachedBytesRead += readCount;
+      }
     }
   }
 
+  // Block cache
+
+  private static final long BLOCK_LENGTH = ByteUnit.KIB.toBytes(64);
+  private static final long MAX_MAPPED_FILE_SIZE = ByteUnit.MIB.toBytes(256);
+
+  private int readFromBlock (long offset, byte[] buffer, int bufferOffset, int readLength) {
+    if (blockLength == 0 || offset < blockOffset || offset >= blockOffset + blockLength) {
+      return 0;
+    }
+    int count = (int) Math.min(readLength, blockOffset + blockLength - offset);
+    System.arraycopy(block.array(), (int) (offset - blockOffset), buffer, bufferOffset, count);
+    return count;
+  }
+
+  /**
+   * Reads downloaded bytes: directly from the mapped file, once it is complete,
+   * otherwise through the block, so small reads of the player don't turn into separate system calls.
+   *
+   * @param available Number of bytes at {@code offset} known to be downloaded
+   */
+  private int readFromFile (TdApi.File file, long offset, byte[] buffer, int bufferOffset, int readLength, long available) throws IOException {
+    synchronized (fileLock) {
+      if (fileChannel == null) {
+        openFile = new RandomAccessFile(file.local.path, "r");
+        fileChannel = openFile.getChannel();
+      }
+      if (mappedFile == null && file.local.isDownloadingCompleted && file.size > 0 && file.size <= MAX_MAPPED_FILE_SIZE) {
+        try {
+          mappedFile = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+          blockLength = 0;
+        } catch (IOException e) {
+          Log.w(Log.TAG_PLAYER, "Cannot map file, path: %s", e, file.local.path);
+        }
+      }
+    }
+    if (mappedFile != null && offset < mappedFile.capacity()) {
+      int count = (int) Math.min(readLength, mappedFile.capacity() - offset);
+      mappedFile.position((int) offset);
+      mappedFile.get(buffer, bufferOffset, count);
+      synchronized (stats) {
+        stats.mappedBytesRead += count;
+      }
+      return count;
+    }
+    block.clear();
+    block.limit((int) Math.min(BLOCK_LENGTH, available));
+    int count = fileChannel.read(block, offset);
+    if (count <= 0) {
+      blockLength = 0;
+      throw new IOException("No bytes read at " + offset + ", available: " + available);
+    }
+    blockOffset = offset;
+    blockLength = count;
+    return readFromBlock(offset, buffer, bufferOffset, readLength);
+  }
+
   private static final long PRELOAD_SECONDS = 10;
 
+  // Read-ahead
+
+  private static final long MIN_READ_AHEAD_LENGTH = ByteUnit.KIB.toBytes(256);
+  private static final long MAX_READ_AHEAD_LENGTH = ByteUnit.MIB.toBytes(32);
+
+  /**
+   * @return Number of bytes worth of {@link #PRELOAD_SECONDS} of playback, or {@link #BIG_DOWNLOAD_CHUNK_LENGTH}, when bitrate is unknown
+   */
+  private long targetReadAheadLength (TdApi.File file) {
+    if (durationMs > 0 && file.size > 0) {
+      double bytesPerSecond = ((double) file.size / (double) durationMs) * 1000.0;
+      long bytesPerPeriod = Math.round(bytesPerSecond * (double) PRELOAD_SECONDS);
+      return Math.max(MIN_READ_AHEAD_LENGTH, Math.min(MAX_READ_AHEAD_LENGTH, bytesPerPeriod));
+    }
+    return BIG_DOWNLOAD_CHUNK_LENGTH;
+  }
+
+  private void growReadAhead (TdApi.File file, long offset, boolean stalled) {
+    // Sequential progress grows the window up to the target, stalls mean the network is slower than playback
+    long maxLength = stalled ? MAX_READ_AHEAD_LENGTH : Math.max(readAheadBytes, targetReadAheadLength(file));
+    readAheadBytes = Math.min(maxLength, readAheadBytes * 2);
+    readAheadGrowOffset = offset + readAheadBytes / 2;
+  }
+
   private long calculateDownloadLimit (TdApi.File file, long offset, int readLength) {
     long downloadLimit;
     if (BitwiseUtils.hasFlag(flags, Flag.DOWNLOAD_FULLY)) {
@@ -437,6 +581,7 @@ public final class TdlibDataSource extends BaseDataSource {
     } else {
       downloadLimit = offset - initialOffset + readLength;
       if (!BitwiseUtils.hasFlag(flags, Flag.DOWNLOAD_PRECISELY)) {
+        downloadLimit += readAheadBytes;
         long minDownloadChunk = MIN_DOWNLOAD_CHUNK_LENGTH;
         if (BitwiseUtils.hasFlag(flags, Flag.OPTIMIZE_CHUNKS)) {
           if (file.size != 0 && file.size <= minDownloadChunk * 3) {
@@ -470,6 +615,63 @@ public final class TdlibDataSource extends BaseDataSource {
     return downloadLimit;
   }
 
+  // Diagnostics
+
+  public static class Stats {
+    public long elapsedMs;
+    public long bytesRead, cachedBytesRead, mappedBytesRead;
+    public int stallCount, seekCount;
+    public long stallTimeMs, maxStallTimeMs;
+
+    private long startTime;
+
+    private void reset (long startTime) {
+      this.startTime = startTime;
+      elapsedMs = bytesRead = cachedBytesRead = mappedBytesRead = 0;
+      stallCount = seekCount = 0;
+      stallTimeMs = maxStallTimeMs = 0;
+    }
+
+    /**
+     * @return Bytes per second delivered to the player
+     */
+    public long throughput () {
+      return elapsedMs > 0 ? bytesRead * 1000 / elapsedMs : 0;
+    }
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "read = " + bytesRead +
+        ", cached = " + cachedBytesRead +
+        ", mapped = " + mappedBytesRead +
+        ", elapsed = " + elapsedMs + "ms" +
+        ", throughput = " + throughput() + "B/s" +
+        ", stalls = " + stallCount +
+        ", stallTime = " + stallTimeMs + "ms" +
+        ", maxStall = " + maxStallTimeMs + "ms" +
+        ", seeks = " + seekCount;
+    }
+  }
+
+  /**
+   * @return Metrics of the current or the last opened stream
+   */
+  public Stats getStats () {
+    Stats result = new Stats();
+    synchronized (stats) {
+      result.elapsedMs = stats.startTime != 0 ? SystemClock.uptimeMillis() - stats.startTime : 0;
+      result.bytesRead = stats.bytesRead;
+      result.cachedBytesRead = stats.cachedBytesRead;
+      result.mappedBytesRead = stats.mappedBytesRead;
+      result.stallCount = stats.stallCount;
+      result.seekCount = stats.seekCount;
+      result.stallTimeMs = stats.stallTimeMs;
+      result.maxStallTimeMs = stats.maxStallTimeMs;
+    }
+    return result;
+  }
+
   @Nullable
   @Override
   public Uri getUri () {
@@ -499,6 +701,13 @@ public final class TdlibDataSource extends BaseDataSource {
         U.closeFile(this.openFile);
         this.openFile = null;
       }
+      this.fileChannel = null;
+      this.mappedFile = null;
+      this.blockLength = 0;
+    }
+    this.lastEndPosition = bytesRead;
+    if (Log.isEnabled(Log.TAG_PLAYER) && file != null) {
+      Log.i(Log.TAG_PLAYER, "Stream #%d closed: %s", file.id, getStats());
     }
     if (tdlib != null && file != null) {
       if (referenceAcquired) {
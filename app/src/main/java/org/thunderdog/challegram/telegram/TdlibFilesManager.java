@@ -46,8 +46,10 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -101,6 +103,16 @@ public class TdlibFilesManager implements GlobalConnectionListener {
 
   public interface FileListener {
     void onFileLoadProgress (TdApi.File file);
+    /**
+     * Progress of all files updated during the last dispatch interval, latest state of each file.
+     * Global listeners receive the whole batch, per-file listeners subscribed to several files
+     * receive only files they are subscribed to.
+     */
+    default void onFilesLoadProgress (TdApi.File[] files) {
+      for (TdApi.File file : files) {
+        onFileLoadProgress(file);
+      }
+    }
     void onFileLoadStateChanged (Tdlib tdlib, int fileId, @FileDownloadState int state, @Nullable TdApi.File downloadedFile);
     default void onFileGenerationProgress (int fileId, int ready, int size) {}
     default void onFileGenerationFinished (@NonNull TdApi.File file) {}
@@ -404,48 +416,181 @@ public class TdlibFilesManager implements GlobalConnectionListener {
     tdlib.context().global().addConnectionListener(this);
   }
 
-  public void syncFiles (@Nullable final List<TdApi.File> files, final long timeoutMs) {
-    if (files != null) {
-      for (TdApi.File file : files) {
-        syncFile(file, null, timeoutMs);
-      }
-    }
-  }
+  // Async file state requests.
+  // Callbacks are called exactly once: on TDLib thread, or on the thread that cancelled the request.
 
-  public void syncFile (@NonNull final TdApi.File file, @Nullable TdApi.FileType remoteFileType, final long timeoutMs) {
-    final CountDownLatch latch = new CountDownLatch(1);
+  /**
+   * Requests the latest state of {@code file} from TDLib and copies it into {@code file}.
+   *
+   * @param timeoutMs Maximum time to wait for TDLib, 0 to wait indefinitely
+   * @param after Called once the state is copied, or on error, timeout or cancellation, with {@code file} in its current state
+   */
+  public void syncFileAsync (@NonNull final TdApi.File file, @Nullable TdApi.FileType remoteFileType, final long timeoutMs, @Nullable CancellationSignal cancellationSignal, @Nullable RunnableData<TdApi.File> after) {
     TdApi.Function<TdApi.File> function;
     if (remoteFileType != null) {
       function = new TdApi.GetRemoteFile(file.remote.id, remoteFileType);
     } else {
       function = new TdApi.GetFile(file.id);
     }
-    final AtomicBoolean signal = new AtomicBoolean();
+    final AtomicBoolean isDone = new AtomicBoolean();
+    final Runnable abort = () -> {
+      synchronized (isDone) {
+        if (isDone.getAndSet(true)) {
+          return;
+        }
+      }
+      if (after != null) {
+        after.runWithData(file);
+      }
+    };
+    if (cancellationSignal != null) {
+      cancellationSignal.setOnCancelListener(abort::run);
+    }
+    if (timeoutMs > 0) {
+      tdlib.runOnTdlibThread(abort, (double) timeoutMs / 1000.0, false);
+    }
     tdlib.send(function, (tdlibFile, error) -> {
       if (error != null) {
         Log.w("getFile error: %s", TD.toErrorString(error));
-      } else {
-        synchronized (signal) {
-          if (!signal.getAndSet(true)) {
-            Td.copyTo(tdlibFile, file);
-          }
+      }
+      synchronized (isDone) {
+        if (isDone.getAndSet(true)) {
+          return;
+        }
+        if (tdlibFile != null) {
+          // Copied only before completion, so callers never see file changing after they continued
+          Td.copyTo(tdlibFile, file);
         }
       }
-      latch.countDown();
+      if (after != null) {
+        after.runWithData(file);
+      }
     });
+  }
+
+  /**
+   * Requests the latest state of all {@code files} at once.
+   *
+   * @param after Called once, when all files are synced, failed, timed out or cancelled
+   */
+  public void syncFilesAsync (@NonNull final List<TdApi.File> files, final long timeoutMs, @Nullable CancellationSignal cancellationSignal, @NonNull Runnable after) {
+    if (files.isEmpty()) {
+      after.run();
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(files.size());
+    final CancellationSignal[] signals = cancellationSignal != null ? new CancellationSignal[files.size()] : null;
+    if (signals != null) {
+      for (int i = 0; i < signals.length; i++) {
+        signals[i] = new CancellationSignal();
+      }
+      // CancellationSignal holds a single listener, so a child signal is used for each file
+      cancellationSignal.setOnCancelListener(() -> {
+        for (CancellationSignal signal : signals) {
+          signal.cancel();
+        }
+      });
+    }
+    int index = 0;
+    for (TdApi.File file : files) {
+      syncFileAsync(file, null, timeoutMs, signals != null ? signals[index] : null, ignored -> {
+        if (remaining.decrementAndGet() == 0) {
+          after.run();
+        }
+      });
+      index++;
+    }
+  }
+
+  /**
+   * Downloads {@code file} fully, copying its state into {@code file} as the download goes.
+   *
+   * @param timeoutMs Maximum time to wait for the download, 0 to wait indefinitely. Download is cancelled after the timeout.
+   * @param fileUpdateListener Receives progress updates until completion
+   * @param after Called once the file is downloaded, or on timeout or cancellation. Check {@link TD#isFileLoaded(TdApi.File)} to tell which.
+   */
+  public void downloadFileAsync (@NonNull final TdApi.File file, final int priority, final long timeoutMs, final @Nullable RunnableData<TdApi.File> fileUpdateListener, @Nullable CancellationSignal cancellationSignal, final @NonNull RunnableData<TdApi.File> after) {
+    if (TD.isFileLoaded(file)) {
+      after.runWithData(file);
+      return;
+    }
+    final AtomicBoolean isDone = new AtomicBoolean();
+    final FileUpdateListener listener = new FileUpdateListener() {
+      @Override
+      public void onUpdateFile (TdApi.UpdateFile updateFile) {
+        synchronized (isDone) {
+          if (isDone.get()) {
+            return;
+          }
+          Td.copyTo(updateFile.file, file);
+          if (!updateFile.file.local.isDownloadingCompleted) {
+            if (fileUpdateListener != null) {
+              fileUpdateListener.runWithData(updateFile.file);
+            }
+            return;
+          }
+          isDone.set(true);
+        }
+        removeCloudReference(file, this);
+        tdlib.listeners().removeFileListener(file.id, this);
+        after.runWithData(file);
+      }
+    };
+    final Runnable abort = () -> {
+      synchronized (isDone) {
+        if (isDone.getAndSet(true)) {
+          return;
+        }
+      }
+      removeCloudReference(file, listener);
+      tdlib.listeners().removeFileListener(file.id, listener);
+      after.runWithData(file);
+    };
+    tdlib.listeners().addFileListener(file.id, listener);
+    addCloudReference(file, priority, listener, false);
+    if (cancellationSignal != null) {
+      cancellationSignal.setOnCancelListener(abort::run);
+    }
+    if (timeoutMs > 0) {
+      tdlib.runOnTdlibThread(abort, (double) timeoutMs / 1000.0, false);
+    }
+  }
+
+  // Blocking wrappers
+
+  public void syncFiles (@Nullable final List<TdApi.File> files, final long timeoutMs) {
+    if (files == null || files.isEmpty()) {
+      return;
+    }
+    final CountDownLatch latch = new CountDownLatch(1);
+    final CancellationSignal cancellationSignal = new CancellationSignal();
+    syncFilesAsync(files, 0, cancellationSignal, latch::countDown);
+    awaitOrCancel(latch, timeoutMs, cancellationSignal);
+  }
+
+  public void syncFile (@NonNull final TdApi.File file, @Nullable TdApi.FileType remoteFileType, final long timeoutMs) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final CancellationSignal cancellationSignal = new CancellationSignal();
+    syncFileAsync(file, remoteFileType, 0, cancellationSignal, ignored -> latch.countDown());
+    awaitOrCancel(latch, timeoutMs, cancellationSignal);
+  }
+
+  private static void awaitOrCancel (CountDownLatch latch, long timeoutMs, CancellationSignal cancellationSignal) {
+    // Timeout is handled here rather than by TDLib alarm, so a busy TDLib thread can't extend it
+    boolean done;
     try {
       if (timeoutMs > 0) {
-        latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        done = latch.await(timeoutMs, TimeUnit.MILLISECONDS);
       } else {
         latch.await();
+        done = true;
       }
     } catch (InterruptedException e) {
       Log.i(e);
+      done = false;
     }
-    if (!signal.get()) {
-      synchronized (signal) {
-        signal.set(true);
-      }
+    if (!done) {
+      cancellationSignal.cancel();
     }
   }
 
@@ -464,80 +609,64 @@ public class TdlibFilesManager implements GlobalConnectionListener {
       CANCELED = 3;
   }
 
+  /**
+   * Blocking form of {@link #downloadFileAsync}.
+   *
+   * @param timeoutMs Time to block for, 0 to block until download is finished, negative to not block at all
+   * @param after When {@code timeoutMs} is negative or elapsed before download finished, called once download is finished.
+   *              Otherwise download is cancelled on timeout.
+   * @return Cancellation runnable, when {@code timeoutMs} is negative
+   */
   public Runnable downloadFileSync (@NonNull final TdApi.File file, final int priority, final long timeoutMs, final @Nullable RunnableData<TdApi.File> after, final @Nullable RunnableData<TdApi.File> fileUpdateListener, @Nullable CancellationSignal cancellationSignal) {
     if (TD.isFileLoaded(file)) {
       return null;
     }
-    final CountDownLatch latch = timeoutMs >= 0 ? new CountDownLatch(1) : null;
-    final AtomicInteger state = new AtomicInteger(DownloadState.PENDING);
-    final FileUpdateListener listener = new FileUpdateListener() {
-      @Override
-      public void onUpdateFile (TdApi.UpdateFile updateFile) {
-        synchronized (state) {
-          int currentState = state.get();
-          if (currentState == DownloadState.CANCELED) {
-            return;
-          }
-          if (currentState == DownloadState.TIMEOUT) {
-            if (after != null && updateFile.file.local.isDownloadingCompleted) {
-              after.runWithData(updateFile.file);
-            } else if (fileUpdateListener != null) {
-              fileUpdateListener.runWithData(updateFile.file);
-            }
-            return;
-          }
-          Td.copyTo(updateFile.file, file);
-          if (updateFile.file.local.isDownloadingCompleted) {
-            state.set(DownloadState.DOWNLOADED);
-            if (latch != null) {
-              latch.countDown();
-            }
-            removeCloudReference(file, this);
-            tdlib.listeners().removeFileListener(file.id, this);
-            if (latch == null && after != null) {
-              after.runWithData(file);
-            }
-          } else if (fileUpdateListener != null) {
-            fileUpdateListener.runWithData(updateFile.file);
-          }
-        }
-      }
-    };
-    tdlib.listeners().addFileListener(file.id, listener);
-    addCloudReference(file, priority, listener, false);
-    Runnable onCancel =  () -> {
-      synchronized (state) {
-        if (state.compareAndSet(DownloadState.PENDING, DownloadState.CANCELED)) {
-          removeCloudReference(file, listener);
-          tdlib.listeners().removeFileListener(file.id, listener);
-        }
-      }
-    };
+    final CancellationSignal downloadSignal = new CancellationSignal();
     if (cancellationSignal != null) {
-      cancellationSignal.setOnCancelListener(onCancel::run);
+      cancellationSignal.setOnCancelListener(downloadSignal::cancel);
     }
-    if (latch != null) {
-      try {
-        if (timeoutMs > 0) {
-          latch.await(timeoutMs, TimeUnit.MILLISECONDS);
-        } else {
-          latch.await();
+    if (timeoutMs < 0) {
+      downloadFileAsync(file, priority, 0, fileUpdateListener, downloadSignal, downloadedFile -> {
+        if (after != null && TD.isFileLoaded(downloadedFile)) {
+          after.runWithData(downloadedFile);
         }
-      } catch (InterruptedException e) {
-        Log.i(e);
-      }
+      });
+      return downloadSignal::cancel;
+    }
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicInteger state = new AtomicInteger(DownloadState.PENDING);
+    // Download state goes into a private copy, so caller's file never changes after the wait is over
+    final TdApi.File downloadingFile = Td.copyOf(file);
+    downloadFileAsync(downloadingFile, priority, 0, fileUpdateListener, downloadSignal, downloadedFile -> {
       synchronized (state) {
-        if (state.compareAndSet(DownloadState.PENDING, after != null ? DownloadState.TIMEOUT : DownloadState.CANCELED)) {
-          if (after == null) {
-            removeCloudReference(file, listener);
-            tdlib.listeners().removeFileListener(file.id, listener);
-          }
+        if (state.get() == DownloadState.PENDING) {
+          state.set(TD.isFileLoaded(downloadedFile) ? DownloadState.DOWNLOADED : DownloadState.CANCELED);
+          Td.copyTo(downloadedFile, file);
+          latch.countDown();
+          return;
         }
       }
-      return null;
-    } else {
-      return onCancel;
+      if (after != null && TD.isFileLoaded(downloadedFile)) {
+        after.runWithData(downloadedFile);
+      }
+    });
+    try {
+      if (timeoutMs > 0) {
+        latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+      } else {
+        latch.await();
+      }
+    } catch (InterruptedException e) {
+      Log.i(e);
+    }
+    final boolean timedOut;
+    synchronized (state) {
+      timedOut = state.compareAndSet(DownloadState.PENDING, DownloadState.TIMEOUT);
     }
+    if (timedOut && after == null) {
+      downloadSignal.cancel();
+    }
+    return null;
   }
 
   private Tdlib.ResultHandler<TdApi.File> fileHandler (int fileId) {
@@ -727,6 +856,49 @@ public class TdlibFilesManager implements GlobalConnectionListener {
     }
   }
 
+  private void notifyFileProgress (TdApi.File[] files) {
+    Iterator<FileListener> globalList = globalListeners.iterator();
+    while (globalList.hasNext()) {
+      globalList.next().onFilesLoadProgress(files);
+    }
+    if (files.length == 1) {
+      Iterator<FileListener> list = listeners.iterator(files[0].id);
+      if (list != null) {
+        notifyFileProgress(list, files[0]);
+      }
+      return;
+    }
+    // Group batch by listener, so listeners of several files get a single call
+    IdentityHashMap<FileListener, ArrayList<TdApi.File>> batches = null;
+    for (TdApi.File file : files) {
+      Iterator<FileListener> list = listeners.iterator(file.id);
+      if (list == null)
+        continue;
+      if (batches == null) {
+        batches = new IdentityHashMap<>();
+      }
+      while (list.hasNext()) {
+        FileListener listener = list.next();
+        ArrayList<TdApi.File> batch = batches.get(listener);
+        if (batch == null) {
+          batch = new ArrayList<>(1);
+          batches.put(listener, batch);
+        }
+        batch.add(file);
+      }
+    }
+    if (batches != null) {
+      for (Map.Entry<FileListener, ArrayList<TdApi.File>> entry : batches.entrySet()) {
+        ArrayList<TdApi.File> batch = entry.getValue();
+        if (batch.size() == 1) {
+          entry.getKey().onFileLoadProgress(batch.get(0));
+        } else {
+          entry.getKey().onFilesLoadProgress(batch.toArray(new TdApi.File[0]));
+        }
+      }
+    }
+  }
+
   private static void notifyFileGenerationFinished (ArrayList<WeakReference<FileListener>> list, TdApi.File file) {
     final int size = list.size();
     for (int i = size - 1; i >= 0; i--) {
@@ -880,67 +1052,138 @@ public class TdlibFilesManager implements GlobalConnectionListener {
 
   // Update handlers
 
+  // Progress updates are coalesced per file and dispatched once per frame.
+  // State changes are dispatched immediately, preceded by pending progress of the same file.
+  private static final double PROGRESS_DISPATCH_INTERVAL_SECONDS = .016;
+  private static final int STATE_UNCHANGED = -1;
+
+  private final SparseArrayCompat<TdApi.File> pendingProgress = new SparseArrayCompat<>(); // guarded by this
+  private boolean progressDispatchScheduled; // guarded by this
+
+  @TdlibThread
+  private void dispatchPendingProgress () {
+    final TdApi.File[] files;
+    synchronized (this) {
+      progressDispatchScheduled = false;
+      final int count = pendingProgress.size();
+      if (count == 0) {
+        return;
+      }
+      files = new TdApi.File[count];
+      for (int i = 0; i < count; i++) {
+        files[i] = pendingProgress.valueAt(i);
+      }
+      pendingProgress.clear();
+    }
+    notifyFileProgress(files);
+  }
+
+  // Called under lock
+  @Nullable
+  private TdApi.File takePendingProgress (int fileId) {
+    int index = pendingProgress.indexOfKey(fileId);
+    if (index < 0) {
+      return null;
+    }
+    TdApi.File file = pendingProgress.valueAt(index);
+    pendingProgress.removeAt(index);
+    return file;
+  }
+
   public void onFileUpdate (TdApi.UpdateFile update) {
     // pendingOperations.get()
+    final int fileId = update.file.id;
+    final int state;
+    final TdApi.File pendingFile;
     synchronized (this) {
-      int pendingOperation = pendingOperations.get(update.file.id);
+      int pendingOperation = pendingOperations.get(fileId);
 
       if (pendingOperation != OPERATION_NONE) {
         if (!update.file.remote.isUploadingActive && !update.file.local.isDownloadingActive && !update.file.remote.isUploadingCompleted && !update.file.local.isDownloadingCompleted) {
-          removePendingOperation(update.file.id);
-          notifyFileState(update.file.id, STATE_PAUSED, null);
+          removePendingOperation(fileId);
+          state = STATE_PAUSED;
+        } else {
+          state = STATE_UNCHANGED;
         }
       } else if (update.file.local.isDownloadingActive) {
-        pendingOperations.put(update.file.id, OPERATION_DOWNLOAD);
-        notifyFileState(update.file.id, STATE_IN_PROGRESS, null);
+        pendingOperations.put(fileId, OPERATION_DOWNLOAD);
+        state = STATE_IN_PROGRESS;
+      } else {
+        state = STATE_UNCHANGED;
       }
+      pendingFile = state != STATE_UNCHANGED ? takePendingProgress(fileId) : null;
+    }
 
-      final Iterator<SimpleListener> list = simpleListeners.iterator(update.file.id);
-      if (list != null) {
-        while (list.hasNext()) {
-          list.next().onUpdateFile(update.file);
-        }
+    if (pendingFile != null) {
+      notifyFileProgress(pendingFile);
+    }
+    if (state != STATE_UNCHANGED) {
+      notifyFileState(fileId, state, null);
+    }
+
+    final Iterator<SimpleListener> list = simpleListeners.iterator(fileId);
+    if (list != null) {
+      while (list.hasNext()) {
+        list.next().onUpdateFile(update.file);
       }
     }
   }
 
   public void onFileProgress (TdApi.UpdateFile update) {
+    final boolean scheduleDispatch;
     synchronized (this) {
       float progress = TD.getFileProgress(update.file);
       if (progress > 0f) {
         pendingFiles.put(update.file.id, update.file);
       }
-      notifyFileProgress(update.file);
+      pendingProgress.put(update.file.id, update.file);
+      scheduleDispatch = !progressDispatchScheduled;
+      progressDispatchScheduled = true;
+    }
+    if (scheduleDispatch) {
+      tdlib.runOnTdlibThread(this::dispatchPendingProgress, PROGRESS_DISPATCH_INTERVAL_SECONDS, false);
     }
   }
 
   public void onFileLoaded (TdApi.UpdateFile update) {
+    final int fileId = update.file.id;
+    final int state;
+    final TdApi.File pendingFile;
     synchronized (this) {
-      final int fileId = update.file.id;
       int pendingOperation = pendingOperations.get(fileId);
       this.manuallyCancelledFiles.remove(fileId);
       if (pendingOperation != OPERATION_NONE) {
         if (TD.isFileLoadedAndExists(update.file)) {
           removePendingOperation(fileId);
-          notifyFileState(fileId, STATE_DOWNLOADED_OR_UPLOADED, update.file);
+          state = STATE_DOWNLOADED_OR_UPLOADED;
         } else {
-          notifyFileState(fileId, STATE_IN_PROGRESS, update.file);
+          state = STATE_IN_PROGRESS;
         }
       } else {
-        notifyFileState(fileId, STATE_DOWNLOADED_OR_UPLOADED, update.file);
+        state = STATE_DOWNLOADED_OR_UPLOADED;
       }
+      pendingFile = takePendingProgress(fileId);
     }
+    if (pendingFile != null) {
+      notifyFileProgress(pendingFile);
+    }
+    notifyFileState(fileId, state, update.file);
   }
 
   public void onFileUpdated (TdApi.UpdateFile update) {
+    final int fileId = update.file.id;
+    final TdApi.File pendingFile;
     synchronized (this) {
-      final int fileId = update.file.id;
       int pendingOperation = pendingOperations.get(fileId);
       if (pendingOperation != OPERATION_NONE) {
         removePendingOperation(fileId);
       }
-      notifyFileState(fileId, STATE_PAUSED, update.file);
+      pendingFile = takePendingProgress(fileId);
+    }
+    if (pendingFile != null) {
+      notifyFileProgress(pendingFile);
     }
+    notifyFileState(fileId, STATE_PAUSED, update.file);
   }
 
   /*public void onUpdateFileGenerationProgress (TdApi.UpdateFileGenerationProgress update) {
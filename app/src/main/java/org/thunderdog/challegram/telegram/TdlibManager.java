@@ -341,6 +341,7 @@ public class TdlibManager implements Iterable<TdlibAccount>, UI.StateListener {
   private @Nullable String tdlibCommitHash, tdlibVersion;
 
   private final DateManager dateManager = new DateManager(this);
+  private final TdlibStartupScheduler startupScheduler = new TdlibStartupScheduler(this);
 
   private TdlibManager (int firstInstanceId, boolean forceService) {
     Client.setLogMessageHandler(0, (verbosityLevel, errorMessage) -> {
@@ -510,28 +511,14 @@ public class TdlibManager implements Iterable<TdlibAccount>, UI.StateListener {
     if (forceService && !selectedAccount.isService()) {
       selectedAccount = accounts.get(serviceAccountId());
     }
-    final TdlibAccount firstAccount = selectedAccount;
-    if (firstAccount.launch(specificAccountId != TdlibAccount.NO_ID)) {
-      firstAccount.tdlib().awaitInitialization(() -> {
-        for (TdlibAccount account : accounts) {
-          if (account != firstAccount) {
-            account.launch(false);
-          }
-        }
-        if (Config.NEED_TDLIB_CLEANUP) {
-          cleanupLoggedOutAccounts();
-        }
-      });
-    } else {
-      for (TdlibAccount account : accounts) {
-        if (account != firstAccount) {
-          account.launch(false);
-        }
-      }
-      if (Config.NEED_TDLIB_CLEANUP) {
-        cleanupLoggedOutAccounts();
-      }
-    }
+    startupScheduler.start(selectedAccount, specificAccountId != TdlibAccount.NO_ID, new ArrayList<>(accounts), lastUsageComparator);
+  }
+
+  /**
+   * @return Per-account startup timings of the current process
+   */
+  public List<TdlibStartupScheduler.Timing> getStartupTimings () {
+    return startupScheduler.getTimings();
   }
 
   // Emulator
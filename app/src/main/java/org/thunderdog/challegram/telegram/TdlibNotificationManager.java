@@ -27,6 +27,7 @@ import android.media.SoundPool;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.SparseIntArray;
 
 import androidx.annotation.AnyThread;
@@ -62,12 +63,15 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
 
+import me.vkryl.core.ArrayUtils;
 import me.vkryl.core.BitwiseUtils;
 import me.vkryl.core.FileUtils;
 import me.vkryl.core.StringUtils;
+import me.vkryl.core.lambda.RunnableData;
 import me.vkryl.leveldb.LevelDB;
 import tgx.td.ChatId;
 
@@ -265,6 +269,7 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
   private final Tdlib tdlib;
   private final TdlibNotificationHelper notification;
   private final NotificationQueue queue;
+  private final ArrayDeque<PendingMessage> pendingMessages = new ArrayDeque<>(); // guarded by pendingMessages
 
   @Nullable
   private AudioManager _audioManager;
@@ -314,6 +319,41 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
       }
     }
 
+    // Media preparation stage, shared by all accounts
+
+    private static final int MAX_PARALLEL_PREPARATIONS = 4;
+
+    private final ArrayDeque<RunnableData<Runnable>> pendingPreparations = new ArrayDeque<>(); // guarded by pendingPreparations
+    private int activePreparationCount; // guarded by pendingPreparations
+
+    /**
+     * Starts {@code preparation} once fewer than {@link #MAX_PARALLEL_PREPARATIONS} others are running.
+     * Preparation must run the passed {@link Runnable} exactly once when it's finished.
+     */
+    @AnyThread
+    void prepare (RunnableData<Runnable> preparation) {
+      synchronized (pendingPreparations) {
+        if (activePreparationCount == MAX_PARALLEL_PREPARATIONS) {
+          pendingPreparations.offer(preparation);
+          return;
+        }
+        activePreparationCount++;
+      }
+      preparation.runWithData(this::onPreparationFinished);
+    }
+
+    private void onPreparationFinished () {
+      RunnableData<Runnable> next;
+      synchronized (pendingPreparations) {
+        next = pendingPreparations.poll();
+        if (next == null) {
+          activePreparationCount--;
+          return;
+        }
+      }
+      next.runWithData(this::onPreparationFinished);
+    }
+
     @Override
     protected void process (Message msg) {
       switch (msg.what) {
@@ -361,14 +401,14 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
         }*/
         case ON_UPDATE_NOTIFICATION_GROUP: {
           Object[] obj = (Object[]) msg.obj;
-          ((TdlibNotificationManager) obj[0]).processNotificationGroup((TdApi.UpdateNotificationGroup) obj[1]);
-          obj[0] = obj[1] = null;
+          ((TdlibNotificationManager) obj[0]).processNotificationGroup((TdApi.UpdateNotificationGroup) obj[1], (Delivery) obj[2]);
+          obj[0] = obj[1] = obj[2] = null;
           break;
         }
         case ON_UPDATE_NOTIFICATION: {
           Object[] obj = (Object[]) msg.obj;
-          ((TdlibNotificationManager) obj[0]).processNotification((TdApi.UpdateNotification) obj[1]);
-          obj[0] = obj[1] = null;
+          ((TdlibNotificationManager) obj[0]).processNotification((TdApi.UpdateNotification) obj[1], (Delivery) obj[2]);
+          obj[0] = obj[1] = obj[2] = null;
           break;
         }
         case ON_HIDE_ALL_NOTIFICATIONS: {
@@ -421,7 +461,12 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
           break;
         }
         case ON_REBUILD_NOTIFICATION_GROUP: {
-          ((TdlibNotificationManager) msg.obj).rebuildNotificationGroupImpl(msg.arg1);
+          Object[] data = (Object[]) msg.obj;
+          if (data[1] != null) {
+            ((Runnable) data[1]).run();
+          }
+          ((TdlibNotificationManager) data[0]).rebuildNotificationGroupImpl(msg.arg1);
+          data[0] = data[1] = null;
           break;
         }
         case ON_RESTART: {
@@ -2010,7 +2055,7 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
 
   @Override
   public void onPerformRestart () {
-    queue.sendMessage(Message.obtain(queue.getHandler(), ON_RESTART, this), 0);
+    sendMessage(Message.obtain(queue.getHandler(), ON_RESTART, this));
   }
 
   @Override
@@ -2027,10 +2072,172 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
 
   private void sendLockedMessage (Message message, @Nullable Runnable after) {
     tdlib.incrementNotificationReferenceCount();
-    queue.sendMessage(message, 0);
+    sendMessage(message);
+    releaseTdlibReference(after);
+  }
+
+  private void sendLockedOrderedMessage (Message message, @Nullable Runnable after) {
+    tdlib.incrementNotificationReferenceCount();
+    sendOrderedMessage(message);
     releaseTdlibReference(after);
   }
 
+  // Delivery pipeline
+
+  /*
+   * TDLib updates of a single account reach NotificationQueue in the order they were received.
+   * Notification updates first download avatars and media in NotificationQueue preparation stage,
+   * and updates received after them wait until they are ready, while other accounts proceed.
+   * Messages that don't originate from TDLib updates (e.g. hide, remove or rebuild requests) don't wait.
+   */
+
+  private static final long MEDIA_PREPARATION_TIMEOUT_MS = 2500;
+
+  private static final class PendingMessage {
+    final Message message;
+    boolean isReady; // guarded by pendingMessages
+
+    PendingMessage (Message message, boolean isReady) {
+      this.message = message;
+      this.isReady = isReady;
+    }
+  }
+
+  private static final class Delivery {
+    final long receiveTime;
+    final int[] preparedFileIds;
+    long preparationMs;
+    boolean isPreparationTimedOut;
+    boolean isPosted; // Notification thread
+
+    Delivery (long receiveTime, int[] preparedFileIds) {
+      this.receiveTime = receiveTime;
+      this.preparedFileIds = preparedFileIds;
+    }
+  }
+
+  @AnyThread
+  private void sendMessage (Message message) {
+    queue.sendMessage(message, 0);
+  }
+
+  /**
+   * Same as {@link #sendMessage}, but waits for notification updates that are still being prepared.
+   */
+  @AnyThread
+  private void sendOrderedMessage (Message message) {
+    synchronized (pendingMessages) {
+      if (pendingMessages.isEmpty()) {
+        queue.sendMessage(message, 0);
+      } else {
+        pendingMessages.offer(new PendingMessage(message, true));
+      }
+    }
+  }
+
+  @TdlibThread
+  private void sendPreparedUpdate (int what, TdApi.Object update, @Nullable TdlibNotificationPreloader.Files files) {
+    final boolean needPreparation = files != null && !files.isEmpty();
+    final Delivery delivery = new Delivery(SystemClock.uptimeMillis(), needPreparation ? files.fileIds() : ArrayUtils.EMPTY_INTS);
+    final Message message = Message.obtain(queue.getHandler(), what, new Object[] {this, update, delivery});
+    tdlib.incrementNotificationReferenceCount();
+    if (!needPreparation) {
+      sendOrderedMessage(message);
+    } else {
+      final PendingMessage pendingMessage = new PendingMessage(message, false);
+      synchronized (pendingMessages) {
+        pendingMessages.offer(pendingMessage);
+      }
+      queue.prepare(onFinished -> {
+        final long startTime = SystemClock.uptimeMillis();
+        TdlibNotificationPreloader.preload(tdlib, files, MEDIA_PREPARATION_TIMEOUT_MS, isTimedOut -> {
+          delivery.preparationMs = SystemClock.uptimeMillis() - startTime;
+          delivery.isPreparationTimedOut = isTimedOut;
+          onFinished.run();
+          onMessageReady(pendingMessage);
+        });
+      });
+    }
+    releaseTdlibReference(null);
+  }
+
+  @AnyThread
+  private void onMessageReady (PendingMessage pendingMessage) {
+    synchronized (pendingMessages) {
+      pendingMessage.isReady = true;
+      PendingMessage head;
+      while ((head = pendingMessages.peek()) != null && head.isReady) {
+        pendingMessages.poll();
+        queue.sendMessage(head.message, 0);
+      }
+    }
+  }
+
+  // Notification thread
+  private @Nullable Delivery currentDelivery;
+
+  /**
+   * @return true, if file was already downloaded (or timed out) in the preparation stage
+   * of the notification update being displayed, and there's no need to wait for it again
+   */
+  @AnyThread
+  boolean isMediaPrepared (int fileId) {
+    Delivery delivery = Thread.currentThread() == queue ? currentDelivery : null;
+    return delivery != null && ArrayUtils.indexOf(delivery.preparedFileIds, fileId) != -1;
+  }
+
+  @AnyThread
+  void onNotificationPosted () {
+    Delivery delivery = Thread.currentThread() == queue ? currentDelivery : null;
+    if (delivery == null || delivery.isPosted) {
+      return;
+    }
+    delivery.isPosted = true;
+    long latencyMs = SystemClock.uptimeMillis() - delivery.receiveTime;
+    synchronized (deliveryStats) {
+      deliveryStats.postedCount++;
+      deliveryStats.totalLatencyMs += latencyMs;
+      deliveryStats.maxLatencyMs = Math.max(deliveryStats.maxLatencyMs, latencyMs);
+      deliveryStats.totalPreparationMs += delivery.preparationMs;
+      if (delivery.isPreparationTimedOut) {
+        deliveryStats.preparationTimeoutCount++;
+      }
+    }
+    TDLib.Tag.notifications(0, tdlib.id(), "Notification posted in %dms, media preparation: %dms%s", latencyMs, delivery.preparationMs, delivery.isPreparationTimedOut ? " (timed out)" : "");
+  }
+
+  public static class DeliveryStats {
+    public int postedCount;
+    public long totalLatencyMs, maxLatencyMs;
+    public long totalPreparationMs;
+    public int preparationTimeoutCount;
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "posted = " + postedCount +
+        ", latency = { avg = " + (postedCount != 0 ? totalLatencyMs / postedCount : 0) + "ms, max = " + maxLatencyMs + "ms }" +
+        ", preparation = { avg = " + (postedCount != 0 ? totalPreparationMs / postedCount : 0) + "ms, timeouts = " + preparationTimeoutCount + " }";
+    }
+  }
+
+  private final DeliveryStats deliveryStats = new DeliveryStats();
+
+  /**
+   * @return Delivery latency of notifications, from the TDLib update to posting them
+   */
+  public DeliveryStats getDeliveryStats () {
+    DeliveryStats stats = new DeliveryStats();
+    synchronized (deliveryStats) {
+      stats.postedCount = deliveryStats.postedCount;
+      stats.totalLatencyMs = deliveryStats.totalLatencyMs;
+      stats.maxLatencyMs = deliveryStats.maxLatencyMs;
+      stats.totalPreparationMs = deliveryStats.totalPreparationMs;
+      stats.preparationTimeoutCount = deliveryStats.preparationTimeoutCount;
+    }
+    return stats;
+  }
+
   @AnyThread
   @TargetApi(Build.VERSION_CODES.TIRAMISU)
   public void onNotificationPermissionGranted () {
@@ -2167,46 +2374,49 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
 
   @TdlibThread
   void releaseTdlibReference (@Nullable Runnable after) {
+    // Reference must outlive messages still waiting for preparation
     if (after != null) {
-      queue.sendMessage(Message.obtain(queue.getHandler(), RELEASE_REFERENCE_WITH_TASK, new Object[] {this, after}), 0);
+      sendOrderedMessage(Message.obtain(queue.getHandler(), RELEASE_REFERENCE_WITH_TASK, new Object[] {this, after}));
     } else {
-      queue.sendMessage(Message.obtain(queue.getHandler(), RELEASE_REFERENCE, this), 0);
+      sendOrderedMessage(Message.obtain(queue.getHandler(), RELEASE_REFERENCE, this));
     }
   }
 
   @TdlibThread
   void onUpdateActiveNotifications (TdApi.UpdateActiveNotifications update, @Nullable Runnable after) {
-    sendLockedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_ACTIVE_NOTIFICATIONS, new Object[] {this, update}), after);
+    sendLockedOrderedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_ACTIVE_NOTIFICATIONS, new Object[] {this, update}), after);
   }
 
   @TdlibThread
   void onUpdateNotificationGroup (TdApi.UpdateNotificationGroup update) {
-    sendLockedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_NOTIFICATION_GROUP, new Object[] {this, update}), null);
+    boolean isMention = update.type.getConstructor() == TdApi.NotificationGroupTypeMentions.CONSTRUCTOR;
+    sendPreparedUpdate(ON_UPDATE_NOTIFICATION_GROUP, update, TdlibNotificationPreloader.findFiles(tdlib, update.chatId, isMention, update.addedNotifications));
   }
 
   @TdlibThread
   void onUpdateNotification (TdApi.UpdateNotification update) {
-    sendLockedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_NOTIFICATION, new Object[] {this, update}), null);
+    // Edited notification doesn't carry its chat, so there's nothing to prepare
+    sendPreparedUpdate(ON_UPDATE_NOTIFICATION, update, null);
   }
 
   @TdlibThread
   void onUpdateMyUserId (long myUserId) {
-    sendLockedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_MY_USER_ID, BitwiseUtils.splitLongToFirstInt(myUserId), BitwiseUtils.splitLongToSecondInt(myUserId), this), null);
+    sendLockedOrderedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_MY_USER_ID, BitwiseUtils.splitLongToFirstInt(myUserId), BitwiseUtils.splitLongToSecondInt(myUserId), this), null);
   }
 
   @TdlibThread
   void onUpdateMyUser (@Nullable TdApi.User user) {
-    sendLockedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_MY_USER, new Object[] {this, user}), null);
+    sendLockedOrderedMessage(Message.obtain(queue.getHandler(), ON_UPDATE_MY_USER, new Object[] {this, user}), null);
   }
 
   @AnyThread
   public void onHideAll (int category) {
-    queue.sendMessage(Message.obtain(queue.getHandler(), ON_HIDE_ALL_NOTIFICATIONS, category, 0, this), 0);
+    sendMessage(Message.obtain(queue.getHandler(), ON_HIDE_ALL_NOTIFICATIONS, category, 0, this));
   }
 
   @AnyThread
   public void removeNotificationGroup (TdlibNotificationExtras extras) {
-    queue.sendMessage(Message.obtain(queue.getHandler(), REMOVE_NOTIFICATIONS, new Object[] {this, extras}), 0);
+    sendMessage(Message.obtain(queue.getHandler(), REMOVE_NOTIFICATIONS, new Object[] {this, extras}));
   }
 
   @AnyThread
@@ -2240,9 +2450,20 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
     sendLockedMessage(Message.obtain(queue.getHandler(), ON_REBUILD_NOTIFICATIONS_SPECIFIC, BitwiseUtils.splitLongToFirstInt(chatId), BitwiseUtils.splitLongToSecondInt(chatId), this), null);
   }
 
+  /**
+   * Silently rebuilds notification group, e.g. once its media preview finished downloading in background.
+   *
+   * @param before Runs on notification thread right before the rebuild, e.g. to apply downloaded file state
+   */
+  @AnyThread
+  void rebuildNotificationGroup (int groupId, @Nullable Runnable before) {
+    sendLockedMessage(Message.obtain(queue.getHandler(), ON_REBUILD_NOTIFICATION_GROUP, groupId, 0, new Object[] {this, before}), null);
+  }
+
   @AnyThread
   public void onDropNotificationData (boolean hideAll) {
-    queue.sendMessage(Message.obtain(queue.getHandler(), ON_DROP_NOTIFICATION_DATA, hideAll ? 1 : 0, 0, this), 0);
+    // Ordered, so notification updates still being prepared can't bring dropped data back
+    sendOrderedMessage(Message.obtain(queue.getHandler(), ON_DROP_NOTIFICATION_DATA, hideAll ? 1 : 0, 0, this));
   }
 
   // Impl
@@ -2332,13 +2553,23 @@ public class TdlibNotificationManager implements UI.StateListener, Passcode.Lock
   }
 
   @NotificationThread
-  private void processNotificationGroup (TdApi.UpdateNotificationGroup update) {
-    notification.updateGroup(update);
+  private void processNotificationGroup (TdApi.UpdateNotificationGroup update, Delivery delivery) {
+    currentDelivery = delivery;
+    try {
+      notification.updateGroup(update);
+    } finally {
+      currentDelivery = null;
+    }
   }
 
   @NotificationThread
-  private void processNotification (TdApi.UpdateNotification update) {
-    notification.editNotification(update);
+  private void processNotification (TdApi.UpdateNotification update, Delivery delivery) {
+    currentDelivery = delivery;
+    try {
+      notification.editNotification(update);
+    } finally {
+      currentDelivery = null;
+    }
   }
 
   @NotificationThread
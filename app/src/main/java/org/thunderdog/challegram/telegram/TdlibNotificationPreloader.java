@@ -0,0 +1,159 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.telegram;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.os.CancellationSignal;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.data.TD;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.vkryl.core.lambda.RunnableBool;
+import me.vkryl.core.lambda.RunnableData;
+import tgx.td.ChatId;
+import tgx.td.Td;
+
+/**
+ * Downloads avatars and media previews needed by a notification before it gets built,
+ * so {@link TdlibNotificationStyle} finds them locally instead of blocking {@link TdlibNotificationManager.NotificationQueue}.
+ */
+final class TdlibNotificationPreloader {
+  private TdlibNotificationPreloader () { }
+
+  /**
+   * Files that are not yet downloaded and will be needed to display a notification.
+   */
+  static final class Files {
+    final List<TdApi.File> avatars = new ArrayList<>();
+    final List<TdApi.File> media = new ArrayList<>();
+
+    boolean isEmpty () {
+      return avatars.isEmpty() && media.isEmpty();
+    }
+
+    int[] fileIds () {
+      int[] fileIds = new int[avatars.size() + media.size()];
+      int index = 0;
+      for (TdApi.File file : avatars) {
+        fileIds[index++] = file.id;
+      }
+      for (TdApi.File file : media) {
+        fileIds[index++] = file.id;
+      }
+      return fileIds;
+    }
+
+    private void add (List<TdApi.File> target, @Nullable TdApi.File file) {
+      if (file == null || TD.isFileLoaded(file) || contains(avatars, file.id) || contains(media, file.id)) {
+        return;
+      }
+      target.add(file);
+    }
+
+    private static boolean contains (List<TdApi.File> files, int fileId) {
+      for (TdApi.File file : files) {
+        if (file.id == fileId) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  @TdlibThread
+  static Files findFiles (Tdlib tdlib, long chatId, boolean isMention, @Nullable TdApi.Notification[] notifications) {
+    Files files = new Files();
+    if (notifications == null || notifications.length == 0) {
+      return files;
+    }
+    TdApi.Chat chat = tdlib.chat(chatId);
+    if (chat == null) {
+      return files;
+    }
+    if (!tdlib.isSelfChat(chat) && chat.photo != null) {
+      files.add(files.avatars, chat.photo.small);
+    }
+    boolean needContentPreview = tdlib.notifications().needContentPreview(chatId, isMention);
+    boolean isMultiChat = TD.isMultiChat(chat);
+    for (TdApi.Notification notification : notifications) {
+      if (isMultiChat && notification.type.getConstructor() == TdApi.NotificationTypeNewMessage.CONSTRUCTOR) {
+        files.add(files.avatars, findSenderPhoto(tdlib, ((TdApi.NotificationTypeNewMessage) notification.type).message.senderId));
+      }
+      if (needContentPreview) {
+        TdlibNotificationMediaFile mediaFile = TdlibNotificationMediaFile.newFile(tdlib, chat, notification.type);
+        if (mediaFile != null) {
+          files.add(files.media, mediaFile.file);
+        }
+      }
+    }
+    return files;
+  }
+
+  @Nullable
+  private static TdApi.File findSenderPhoto (Tdlib tdlib, TdApi.MessageSender senderId) {
+    long senderChatId = Td.getSenderId(senderId);
+    if (ChatId.isUserChat(senderChatId)) {
+      TdApi.User user = tdlib.cache().user(ChatId.toUserId(senderChatId));
+      return user != null && user.profilePhoto != null ? user.profilePhoto.small : null;
+    }
+    TdApi.Chat senderChat = tdlib.chat(senderChatId);
+    return senderChat != null && senderChat.photo != null ? senderChat.photo.small : null;
+  }
+
+  /**
+   * Downloads all {@code files} in parallel.
+   *
+   * @param after Called once all files are downloaded with {@code false},
+   *              or after {@code timeoutMs} with {@code true}. Remaining downloads are cancelled in the latter case.
+   */
+  static void preload (Tdlib tdlib, @NonNull Files files, long timeoutMs, @NonNull RunnableBool after) {
+    if (files.isEmpty()) {
+      after.runWithBool(false);
+      return;
+    }
+    final int count = files.avatars.size() + files.media.size();
+    final AtomicBoolean isDone = new AtomicBoolean();
+    final AtomicInteger remaining = new AtomicInteger(count);
+    // CancellationSignal holds a single listener, so a separate signal is used for each file
+    final CancellationSignal[] signals = new CancellationSignal[count];
+    for (int i = 0; i < count; i++) {
+      signals[i] = new CancellationSignal();
+    }
+    tdlib.runOnTdlibThread(() -> {
+      if (!isDone.getAndSet(true)) {
+        for (CancellationSignal signal : signals) {
+          signal.cancel();
+        }
+        after.runWithBool(true);
+      }
+    }, (double) timeoutMs / 1000.0, false);
+    final RunnableData<TdApi.File> onDone = downloadedFile -> {
+      if (remaining.decrementAndGet() == 0 && !isDone.getAndSet(true)) {
+        after.runWithBool(false);
+      }
+    };
+    int index = 0;
+    for (TdApi.File file : files.avatars) {
+      tdlib.files().downloadFileAsync(file, TdlibFilesManager.PRIORITY_NOTIFICATION_AVATAR, 0, null, signals[index++], onDone);
+    }
+    for (TdApi.File file : files.media) {
+      tdlib.files().downloadFileAsync(file, TdlibFilesManager.PRIORITY_NOTIFICATION_MEDIA, 0, null, signals[index++], onDone);
+    }
+  }
+}
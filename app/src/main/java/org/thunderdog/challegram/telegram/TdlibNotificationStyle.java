@@ -318,8 +318,10 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
       TdlibNotificationMediaFile photo = TdlibNotificationMediaFile.newFile(tdlib, chat, singleNotification.getNotificationContent());
       TdApi.File file = photo != null ? photo.file : null;
       if (file != null) {
-        if (!TD.isFileLoaded(file)) {
-          tdlib.files().syncFile(file, null, SYNC_FILE_TIMEOUT);
+        if (isRebuild && !TD.isFileLoaded(file)) {
+          // Rebuilds don't download media below, so only refresh file state.
+          // Notification is rebuilt again once the file turns out to be loaded.
+          syncFile(file, group.getId());
         }
         if (!TD.isFileLoaded(file)) {
           cloudReferences = new ArrayList<>(1);
@@ -504,7 +506,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
 
       if (photoFile != null) {
         if (!isRebuild) {
-          downloadFile(photoFile, TdlibFilesManager.PRIORITY_NOTIFICATION_MEDIA, TdlibNotificationStyle.MEDIA_LOAD_TIMEOUT);
+          downloadFile(photoFile, TdlibFilesManager.PRIORITY_NOTIFICATION_MEDIA, TdlibNotificationStyle.MEDIA_LOAD_TIMEOUT, group.getId());
         }
         if (TD.isFileLoaded(photoFile)) {
           Bitmap result = null;
@@ -710,6 +712,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
         if (Config.TEST_NOTIFICATION_PROBLEM_RESOLUTION)
           throw new RuntimeException();
         manager.notify(notificationId, notification);
+        tdlib.notifications().onNotificationPosted();
         state = DISPLAY_STATE_OK;
       } catch (Throwable t) {
         Log.e("Cannot display notification", t);
@@ -821,6 +824,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
         if (Config.TEST_NOTIFICATION_PROBLEM_RESOLUTION)
           throw new RuntimeException();
         manager.notify(notificationId, notification);
+        tdlib.notifications().onNotificationPosted();
         tdlib.settings().forgetNotificationProblems();
       } catch (Throwable t) {
         Log.e("Unable to display common notification", t);
@@ -915,11 +919,41 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
     }
   }
 
-  private void downloadFile (TdApi.File file, int priority, long timeout) {
+  /**
+   * Waits for media preview, so notification is posted along with it.
+   *
+   * If preparation stage already waited for the file, doesn't block again:
+   * notification is posted without the preview and rebuilt once the download finishes.
+   */
+  private void downloadFile (TdApi.File file, int priority, long timeout, int groupId) {
+    if (TD.isFileLoaded(file)) {
+      return;
+    }
     CancellationSignal cancellationSignal = new CancellationSignal();
     pendingDownloadOperations.offer(cancellationSignal);
-    tdlib.files().downloadFileSync(file, priority, timeout, null, null, cancellationSignal);
-    pendingDownloadOperations.remove(cancellationSignal);
+    if (!tdlib.notifications().isMediaPrepared(file.id)) {
+      tdlib.files().downloadFileSync(file, priority, timeout, null, null, cancellationSignal);
+      pendingDownloadOperations.remove(cancellationSignal);
+      return;
+    }
+    // file is read by notification thread meanwhile, so download state goes into a separate instance
+    TdApi.File downloadingFile = Td.copyOf(file);
+    tdlib.files().downloadFileAsync(downloadingFile, priority, timeout, null, cancellationSignal, downloadedFile -> {
+      pendingDownloadOperations.remove(cancellationSignal);
+      if (TD.isFileLoaded(downloadedFile) && !cancellationSignal.isCanceled()) {
+        context.rebuildNotificationGroup(groupId, () -> Td.copyTo(downloadedFile, file));
+      }
+    });
+  }
+
+  private void syncFile (TdApi.File file, int groupId) {
+    // Same as above: state is applied to file on notification thread, right before the rebuild
+    TdApi.File syncingFile = Td.copyOf(file);
+    tdlib.files().syncFileAsync(syncingFile, null, SYNC_FILE_TIMEOUT, null, syncedFile -> {
+      if (TD.isFileLoaded(syncedFile)) {
+        context.rebuildNotificationGroup(groupId, () -> Td.copyTo(syncedFile, file));
+      }
+    });
   }
 
   private void addMessage (NotificationCompat.MessagingStyle style, CharSequence messageText, Person person, TdApi.Chat chat, TdlibNotification notification, long loadTimeout, boolean isRebuild, boolean isExclusivelyScheduled, boolean isExclusivelySilent, boolean isOnlyPinned) {
@@ -930,7 +964,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
       TdlibNotificationMediaFile file = TdlibNotificationMediaFile.newFile(tdlib, chat, notification.getNotificationContent());
       if (file != null) {
         if (!isRebuild) {
-          downloadFile(file.file, TdlibFilesManager.PRIORITY_NOTIFICATION_MEDIA, loadTimeout);
+          downloadFile(file.file, TdlibFilesManager.PRIORITY_NOTIFICATION_MEDIA, loadTimeout, notification.group().getId());
         }
         if (TD.isFileLoaded(file.file)) {
           Uri uri = null;
@@ -959,6 +993,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
                       }
                       case TdApi.Error.CONSTRUCTOR: {
                         Log.e("Cannot generate sticker preview (2): %s, path: %s", TD.toErrorString(downloadedFile), file.file.local.path);
+                        latch.countDown();
                         break;
                       }
                     }
@@ -967,6 +1002,7 @@ public class TdlibNotificationStyle implements TdlibNotificationStyleDelegate, F
                 }
                 case TdApi.Error.CONSTRUCTOR: {
                   Log.e("Cannot generate sticker preview: %s, path: %s", TD.toErrorString(result), file.file.local.path);
+                  latch.countDown();
                   break;
                 }
               }
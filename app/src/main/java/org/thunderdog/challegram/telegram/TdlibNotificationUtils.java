@@ -27,6 +27,7 @@ import android.text.TextPaint;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.os.CancellationSignal;
 
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.Log;
@@ -53,6 +54,9 @@ import org.thunderdog.challegram.util.DeviceTokenType;
 import org.thunderdog.challegram.util.TokenRetriever;
 import org.thunderdog.challegram.util.text.Letters;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import tgx.td.Td;
 
 public class TdlibNotificationUtils {
@@ -135,17 +139,34 @@ public class TdlibNotificationUtils {
 
   public static Bitmap buildLargeIcon (Tdlib tdlib, TdApi.File rawFile, TdlibAccentColor accentColor, Letters letters, boolean allowSyncDownload, boolean allowDownload) {
     Bitmap avatarBitmap = null;
+    ImageFile cachedAvatarFile = null;
+    Bitmap cachedAvatarBitmap = null;
     if (rawFile != null) {
-      tdlib.files().syncFile(rawFile, null, 500);
-      boolean fileLoaded = TD.isFileLoadedAndExists(rawFile);
-      if (!fileLoaded && allowSyncDownload && allowDownload) {
-        tdlib.files().downloadFileSync(rawFile, TdlibFilesManager.PRIORITY_NOTIFICATION_AVATAR, 1000, null, null, null);
-        fileLoaded = TD.isFileLoadedAndExists(rawFile);
+      // Sync and download run as one chain, so the caller waits once
+      final CountDownLatch latch = new CountDownLatch(1);
+      final CancellationSignal cancellationSignal = new CancellationSignal();
+      // Avatar may have been already downloaded (or timed out) in the preparation stage
+      final boolean needDownload = allowSyncDownload && allowDownload && !tdlib.notifications().isMediaPrepared(rawFile.id);
+      tdlib.files().syncFileAsync(rawFile, null, 500, cancellationSignal, syncedFile -> {
+        if (!TD.isFileLoaded(syncedFile) && needDownload && !cancellationSignal.isCanceled()) {
+          tdlib.files().downloadFileAsync(syncedFile, TdlibFilesManager.PRIORITY_NOTIFICATION_AVATAR, 1000, null, cancellationSignal, downloadedFile -> latch.countDown());
+        } else {
+          latch.countDown();
+        }
+      });
+      try {
+        if (!latch.await(1500, TimeUnit.MILLISECONDS)) {
+          cancellationSignal.cancel();
+        }
+      } catch (InterruptedException e) {
+        cancellationSignal.cancel();
       }
+      boolean fileLoaded = TD.isFileLoadedAndExists(rawFile);
       if (fileLoaded) {
         ImageFile file = new ImageFile(tdlib, rawFile);
         file.setSize(iconSize());
-        avatarBitmap = ImageCache.instance().getBitmap(file);
+        cachedAvatarFile = file;
+        avatarBitmap = cachedAvatarBitmap = ImageCache.instance().getBitmapWithReference(file);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && avatarBitmap != null) {
           if (avatarBitmap.getConfig() == Bitmap.Config.HARDWARE) {
             avatarBitmap = null;
@@ -223,6 +244,10 @@ public class TdlibNotificationUtils {
       }
     }
 
+    if (cachedAvatarBitmap != null) {
+      ImageCache.instance().removeReference(cachedAvatarFile, cachedAvatarBitmap);
+    }
+
     return bitmap;
   }
 
@@ -0,0 +1,139 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.telegram;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.TDLib;
+import org.thunderdog.challegram.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Brings accounts up at application start.
+ *
+ * Preferred account is launched right away, and all other accounts are launched
+ * once it is initialized, most recently used first. Launch and initialization
+ * timings of each account are recorded, see {@link #getTimings()}.
+ */
+public final class TdlibStartupScheduler {
+  /**
+   * Startup timings of a single account, relative to the moment startup began.
+   */
+  public static final class Timing {
+    public final int accountId;
+    public final boolean isPreferred;
+    public long queuedMs; // time until launch started
+    public long launchMs; // time spent creating Tdlib instance
+    public long initializedMs = -1; // time until initialization finished, or -1, if it didn't yet
+
+    private Timing (int accountId, boolean isPreferred) {
+      this.accountId = accountId;
+      this.isPreferred = isPreferred;
+    }
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "accountId:" + accountId +
+        (isPreferred ? " (preferred)" : "") +
+        ", queued:" + queuedMs + "ms" +
+        ", launch:" + launchMs + "ms" +
+        ", initialized:" + (initializedMs != -1 ? initializedMs + "ms" : "pending");
+    }
+  }
+
+  private final TdlibManager manager;
+  private final ArrayList<Timing> timings = new ArrayList<>(); // guarded by timings
+  private long startTime;
+
+  TdlibStartupScheduler (TdlibManager manager) {
+    this.manager = manager;
+  }
+
+  void start (TdlibAccount preferredAccount, boolean forcePreferred, List<TdlibAccount> accounts, Comparator<TdlibAccount> order) {
+    this.startTime = SystemClock.uptimeMillis();
+    final ArrayList<TdlibAccount> backgroundAccounts = new ArrayList<>(accounts.size());
+    for (TdlibAccount account : accounts) {
+      if (account != preferredAccount) {
+        backgroundAccounts.add(account);
+      }
+    }
+    Collections.sort(backgroundAccounts, order);
+
+    final Timing timing = new Timing(preferredAccount.id, true);
+    if (preferredAccount.launch(forcePreferred)) {
+      timing.launchMs = SystemClock.uptimeMillis() - startTime;
+      addTiming(timing);
+      preferredAccount.tdlib().awaitInitialization(() -> {
+        onInitialized(timing);
+        launchBackgroundAccounts(backgroundAccounts);
+      });
+    } else {
+      launchBackgroundAccounts(backgroundAccounts);
+    }
+  }
+
+  private void launchBackgroundAccounts (List<TdlibAccount> accounts) {
+    for (TdlibAccount account : accounts) {
+      final Timing timing = new Timing(account.id, false);
+      final long launchStartTime = SystemClock.uptimeMillis();
+      timing.queuedMs = launchStartTime - startTime;
+      if (!account.launch(false)) {
+        continue;
+      }
+      timing.launchMs = SystemClock.uptimeMillis() - launchStartTime;
+      addTiming(timing);
+      account.tdlib().awaitInitialization(() -> onInitialized(timing));
+    }
+    onLaunchedAll();
+  }
+
+  private void onLaunchedAll () {
+    if (Config.NEED_TDLIB_CLEANUP) {
+      manager.cleanupLoggedOutAccounts();
+    }
+  }
+
+  private void addTiming (Timing timing) {
+    synchronized (timings) {
+      timings.add(timing);
+    }
+  }
+
+  private void onInitialized (Timing timing) {
+    synchronized (timings) {
+      timing.initializedMs = SystemClock.uptimeMillis() - startTime;
+    }
+    TDLib.Tag.td_init("Account initialized, %s", timing);
+  }
+
+  public List<Timing> getTimings () {
+    ArrayList<Timing> result = new ArrayList<>();
+    synchronized (timings) {
+      for (Timing timing : timings) {
+        Timing copy = new Timing(timing.accountId, timing.isPreferred);
+        copy.queuedMs = timing.queuedMs;
+        copy.launchMs = timing.launchMs;
+        copy.initializedMs = timing.initializedMs;
+        result.add(copy);
+      }
+    }
+    return result;
+  }
+}
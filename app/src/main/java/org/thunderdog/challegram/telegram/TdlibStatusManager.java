@@ -14,6 +14,9 @@
  */
 package org.thunderdog.challegram.telegram;
 
+import android.os.SystemClock;
+import android.view.Choreographer;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
@@ -38,8 +41,6 @@ import java.util.List;
 import java.util.Map;
 
 import me.vkryl.android.AnimatorUtils;
-import me.vkryl.android.animator.BoolAnimator;
-import me.vkryl.android.animator.FactorAnimator;
 import me.vkryl.core.StringUtils;
 import me.vkryl.core.reference.ReferenceMap;
 import tgx.td.ChatId;
@@ -64,21 +65,49 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
     }
   }
 
-  public static class ChatState implements FactorAnimator.Target {
+  private static final class ChatKey {
+    private long chatId, messageThreadId;
+
+    ChatKey (long chatId, long messageThreadId) {
+      this.chatId = chatId;
+      this.messageThreadId = messageThreadId;
+    }
+
+    ChatKey set (long chatId, long messageThreadId) {
+      this.chatId = chatId;
+      this.messageThreadId = messageThreadId;
+      return this;
+    }
+
+    @Override
+    public boolean equals (Object obj) {
+      if (!(obj instanceof ChatKey))
+        return false;
+      ChatKey other = (ChatKey) obj;
+      return other.chatId == chatId && other.messageThreadId == messageThreadId;
+    }
+
+    @Override
+    public int hashCode () {
+      return 31 * (int) (chatId ^ (chatId >>> 32)) + (int) (messageThreadId ^ (messageThreadId >>> 32));
+    }
+  }
+
+  public static class ChatState {
     private final ArrayList<Action> actions = new ArrayList<>();
     private final TdlibStatusManager context;
     private final Tdlib tdlib;
 
     private final long chatId, messageThreadId;
-    private final String key;
+    private final ChatKey key;
     private final boolean isUser;
 
-    public ChatState (TdlibStatusManager context, Tdlib tdlib, long chatId, long messageThreadId) {
+    private ChatState (TdlibStatusManager context, Tdlib tdlib, ChatKey key) {
       this.context = context;
       this.tdlib = tdlib;
-      this.chatId = chatId;
-      this.messageThreadId = messageThreadId;
-      this.key = makeKey(chatId, messageThreadId);
+      this.chatId = key.chatId;
+      this.messageThreadId = key.messageThreadId;
+      this.key = key;
       this.isUser = ChatId.isUserChat(chatId);
     }
 
@@ -87,10 +116,14 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
     }
 
     private boolean isVisible;
-    private BoolAnimator visibleAnimator;
 
     private static final long ANIMATION_DURATION = 180l;
 
+    // Driven by TdlibStatusManager frame callback
+    private float fromVisibilityFactor;
+    private long animationStartTime = -1;
+    private int pendingChangeFlags;
+
     private void setVisibilityFactor (float factor) {
       if (this.visibilityFactor != factor) {
         this.visibilityFactor = factor;
@@ -98,6 +131,24 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
       }
     }
 
+    /**
+     * @return true, if animation is still running
+     */
+    private boolean onFrame (long now) {
+      float toFactor = isVisible ? 1f : 0f;
+      float fraction = Math.min(1f, (float) (now - animationStartTime) / (float) ANIMATION_DURATION);
+      if (fraction < 0f) {
+        fraction = 0f;
+      }
+      float factor = fromVisibilityFactor + (toFactor - fromVisibilityFactor) * AnimatorUtils.DECELERATE_INTERPOLATOR.getInterpolation(fraction);
+      setVisibilityFactor(fraction == 1f ? toFactor : factor);
+      if (fraction == 1f) {
+        animationStartTime = -1;
+        return false;
+      }
+      return true;
+    }
+
     public boolean needsLooping () {
       return !actions.isEmpty() && visibilityFactor == 1f && effectiveAction != null && DrawAlgorithms.supportsStatus(effectiveAction);
     }
@@ -106,27 +157,21 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
       if (this.isVisible != isVisible || !animated) {
         this.isVisible = isVisible;
         if (animated) {
-          if (visibleAnimator == null) {
-            visibleAnimator = new BoolAnimator(0, this, AnimatorUtils.DECELERATE_INTERPOLATOR, ANIMATION_DURATION, !isVisible);
+          fromVisibilityFactor = visibilityFactor;
+          if (animationStartTime == -1) {
+            context.startAnimation(this);
           }
-          visibleAnimator.setValue(isVisible, true);
+          animationStartTime = SystemClock.uptimeMillis();
         } else {
-          if (visibleAnimator != null) {
-            visibleAnimator.setValue(isVisible, false);
+          if (animationStartTime != -1) {
+            animationStartTime = -1;
+            context.stopAnimation(this);
           }
           setVisibilityFactor(isVisible ? 1f : 0f);
         }
       }
     }
 
-    @Override
-    public void onFactorChanged (int id, float factor, float fraction, FactorAnimator callee) {
-      setVisibilityFactor(factor);
-    }
-
-    @Override
-    public void onFactorChangeFinished (int id, float finalFactor, FactorAnimator callee) { }
-
     private String effectiveText;
     private float visibilityFactor;
     private TdApi.ChatAction effectiveAction;
@@ -273,21 +318,22 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
       this.effectiveText = isUser ? Lang.getString(res) : Lang.getString(res, prefix);
     }
 
-    public void setAll (TdApi.ChatAction action) {
+    private void setAll (TdApi.ChatAction action) {
       int size = actions.size();
       int changeFlags = 0;
       for (int i = size - 1; i >= 0; i--) {
         changeFlags |= setActionAt(i, actions.get(i).senderId, action);
       }
-      applyChanges(changeFlags);
+      addPendingChanges(changeFlags);
     }
 
-    public void setAction (TdApi.MessageSender senderId, TdApi.ChatAction action) {
+    private void setAction (TdApi.MessageSender senderId, TdApi.ChatAction action) {
       int foundIndex = -1;
       int i = 0;
       for (Action pendingAction : actions) {
         if (Td.equalsTo(senderId, pendingAction.senderId)) {
           if (Td.equalsTo(pendingAction.action, action)) {
+            context.duplicateUpdateCount++;
             return;
           }
           foundIndex = i;
@@ -296,6 +342,23 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
         i++;
       }
       int changeFlags = setActionAt(foundIndex, senderId, action);
+      addPendingChanges(changeFlags);
+    }
+
+    private void addPendingChanges (int changeFlags) {
+      if (changeFlags == 0)
+        return;
+      if (pendingChangeFlags == 0) {
+        context.scheduleChanges(this);
+      } else {
+        context.coalescedUpdateCount++;
+      }
+      pendingChangeFlags |= changeFlags;
+    }
+
+    private void applyPendingChanges () {
+      int changeFlags = pendingChangeFlags;
+      pendingChangeFlags = 0;
       applyChanges(changeFlags);
     }
 
@@ -337,6 +400,7 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
       if (this.isVisible != isVisible) {
         setIsVisible(isVisible, context.canAnimate(chatId, messageThreadId, key, this));
       }
+      context.dispatchedUpdateCount++;
       notifyChatActionsChanged(chatId, messageThreadId, this, changeFlags, context.listeners.iterator(key));
     }
   }
@@ -474,8 +538,9 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
   }
 
   private final Tdlib tdlib;
-  private final HashMap<String, ChatState> chatStates = new HashMap<>();
-  private final ReferenceMap<String, ChatStateListener> listeners = new ReferenceMap<>();
+  private final HashMap<ChatKey, ChatState> chatStates = new HashMap<>();
+  private final ReferenceMap<ChatKey, ChatStateListener> listeners = new ReferenceMap<>();
+  private final ChatKey lookupKey = new ChatKey(0, 0); // UI thread
 
   TdlibStatusManager (Tdlib tdlib) {
     this.tdlib = tdlib;
@@ -498,7 +563,7 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
     tdlib.ui().post(() -> {
       if (!chatStates.isEmpty()) {
         TdApi.ChatAction action = new TdApi.ChatActionCancel();
-        for (Map.Entry<String, ChatState> entry : chatStates.entrySet()) {
+        for (Map.Entry<ChatKey, ChatState> entry : chatStates.entrySet()) {
           entry.getValue().setAll(action);
         }
       }
@@ -507,24 +572,28 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
 
   // Status
 
+  @UiThread
   private void addListener (long chatId, long messageThreadId, ChatStateListener listener) {
-    listeners.add(makeKey(chatId, messageThreadId), listener);
+    listeners.add(new ChatKey(chatId, messageThreadId), listener);
   }
 
+  @UiThread
   private void removeListener (long chatId, long messageThreadId, ChatStateListener listener) {
-    listeners.remove(makeKey(chatId, messageThreadId), listener);
+    listeners.remove(lookupKey.set(chatId, messageThreadId), listener);
   }
 
+  @UiThread
   public @Nullable ChatState state (long chatId, long messageThreadId) {
-    return chatStates.get(makeKey(chatId, messageThreadId));
+    return chatStates.get(lookupKey.set(chatId, messageThreadId));
   }
 
+  @UiThread
   public boolean hasStatus (long chatId, long messageThreadId) {
-    ChatState state = chatStates.get(makeKey(chatId, messageThreadId));
+    ChatState state = chatStates.get(lookupKey.set(chatId, messageThreadId));
     return state != null && !state.actions.isEmpty();
   }
 
-  private boolean canAnimate (long chatId, long messageThreadId, String key, ChatState state) {
+  private boolean canAnimate (long chatId, long messageThreadId, ChatKey key, ChatState state) {
     boolean animated = false;
     Iterator<ChatStateListener> itr = listeners.iterator(key);
     if (itr != null) {
@@ -537,28 +606,115 @@ public class TdlibStatusManager implements CleanupStartupDelegate {
     return animated;
   }
 
-  private static String makeKey (long chatId, long messageThreadId) {
-    return messageThreadId != 0 ? chatId + "_" + messageThreadId : Long.toString(chatId);
-  }
-
   @UiThread
   void onUpdateChatUserAction (TdApi.UpdateChatAction update) {
     if (update.action.getConstructor() == TdApi.ChatActionWatchingAnimations.CONSTRUCTOR) {
       // TODO?
       return;
     }
-    String key = makeKey(update.chatId, update.messageThreadId);
-    ChatState state = chatStates.get(key);
+    receivedUpdateCount++;
+    ChatState state = chatStates.get(lookupKey.set(update.chatId, update.messageThreadId));
     if (state == null) {
       if (update.action.getConstructor() == TdApi.ChatActionCancel.CONSTRUCTOR) {
         return;
       }
-      state = new ChatState(this, tdlib, update.chatId, update.messageThreadId);
+      ChatKey key = new ChatKey(update.chatId, update.messageThreadId);
+      state = new ChatState(this, tdlib, key);
       chatStates.put(key, state);
     }
     state.setAction(update.senderId, update.action);
   }
 
+  // Frame callback
+
+  /*
+   * Action updates are applied to ChatState right away, while text layout and listener notifications
+   * happen once per frame for all changed states. Visibility animations of all states
+   * are driven by the same frame callback instead of an animator per state.
+   */
+
+  private final ArrayList<ChatState> changedStates = new ArrayList<>();
+  private final ArrayList<ChatState> animatingStates = new ArrayList<>();
+  private final Choreographer.FrameCallback frameCallback = this::onFrame;
+  private boolean isFrameScheduled;
+
+  private void scheduleChanges (ChatState state) {
+    changedStates.add(state);
+    scheduleFrame();
+  }
+
+  private void startAnimation (ChatState state) {
+    animatingStates.add(state);
+    scheduleFrame();
+  }
+
+  private void stopAnimation (ChatState state) {
+    animatingStates.remove(state);
+  }
+
+  private void scheduleFrame () {
+    if (!isFrameScheduled) {
+      isFrameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+  }
+
+  @UiThread
+  private void onFrame (long frameTimeNanos) {
+    isFrameScheduled = false;
+    if (!changedStates.isEmpty()) {
+      // Applying changes may start new animations, but never schedules more changes
+      for (int i = 0; i < changedStates.size(); i++) {
+        changedStates.get(i).applyPendingChanges();
+      }
+      changedStates.clear();
+    }
+    if (!animatingStates.isEmpty()) {
+      final long now = SystemClock.uptimeMillis();
+      for (int i = animatingStates.size() - 1; i >= 0; i--) {
+        if (!animatingStates.get(i).onFrame(now)) {
+          animatingStates.remove(i);
+        }
+      }
+      if (!animatingStates.isEmpty()) {
+        scheduleFrame();
+      }
+    }
+  }
+
+  // Diagnostics
+
+  private int receivedUpdateCount, duplicateUpdateCount, coalescedUpdateCount, dispatchedUpdateCount; // UI thread
+
+  public static class Stats {
+    public int receivedUpdateCount;
+    public int duplicateUpdateCount;
+    public int coalescedUpdateCount;
+    public int dispatchedUpdateCount;
+    public int chatStateCount;
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "received = " + receivedUpdateCount +
+        ", duplicate = " + duplicateUpdateCount +
+        ", coalesced = " + coalescedUpdateCount +
+        ", dispatched = " + dispatchedUpdateCount +
+        ", states = " + chatStateCount;
+    }
+  }
+
+  @UiThread
+  public Stats getStats () {
+    Stats stats = new Stats();
+    stats.receivedUpdateCount = receivedUpdateCount;
+    stats.duplicateUpdateCount = duplicateUpdateCount;
+    stats.coalescedUpdateCount = coalescedUpdateCount;
+    stats.dispatchedUpdateCount = dispatchedUpdateCount;
+    stats.chatStateCount = chatStates.size();
+    return stats;
+  }
+
   private static void notifyChatActionsChanged (long chatId, long messageThreadId, ChatState chatState, int changeFlags, @Nullable Iterator<ChatStateListener> list) {
     if (list != null) {
       while (list.hasNext()) {
@@ -31,6 +31,7 @@ import org.thunderdog.challegram.core.Background;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.data.TGStorageStats;
 import org.thunderdog.challegram.data.TGStorageStatsFast;
+import org.thunderdog.challegram.loader.ImageDiskCache;
 import org.thunderdog.challegram.loader.ImageLoader;
 import org.thunderdog.challegram.mediaview.paint.PaintState;
 import org.thunderdog.challegram.navigation.DoubleHeaderView;
@@ -723,6 +724,7 @@ public class SettingsCacheController extends RecyclerViewController<SettingsData
     if (setIsBusy(true, chatIds, entry)) {
       getRecyclerView().setItemAnimator(null);
       ImageLoader.instance().clear(tdlib.id(), false);
+      ImageDiskCache.instance().clearForAccount(tdlib.id());
       needShowAllChats = false;
       tdlib.client().send(new TdApi.OptimizeStorage(0, 0, 0, 0, fileTypesRaw, chatIds, excludeChatIds, false, 0), stats -> {
         processStorageStats(stats, true);
@@ -257,6 +257,17 @@ public abstract class SettingsCloudController<T extends Settings.CloudSetting> e
     updateFile(file, false);
   }
 
+  @Override
+  public void onFilesLoadProgress (TdApi.File[] files) {
+    tdlib.ui().post(() -> {
+      if (!isDestroyed()) {
+        for (TdApi.File file : files) {
+          updateFileImpl(file, false);
+        }
+      }
+    });
+  }
+
   @Override
   public void onFileLoadStateChanged (Tdlib tdlib, int fileId, int state, @Nullable TdApi.File downloadedFile) {
     if (downloadedFile != null) {
@@ -280,24 +291,28 @@ public abstract class SettingsCloudController<T extends Settings.CloudSetting> e
   private void updateFile (TdApi.File file, boolean allowSubscribe) {
     tdlib.ui().post(() -> {
       if (!isDestroyed()) {
-        T setting = findSetting(file.id);
-        if (setting == null)
-          return;
-        Td.copyTo(file, setting.getFile());
-        if (TD.isFileLoaded(file)) {
-          tdlib.files().unsubscribe(file.id, this);
-          tdlib.files().removeCloudReference(setting.getFile(), this);
-          if (installingSetting != null && installingSetting.getFile() != null && installingSetting.getFile().id == file.id) {
-            install(installingSetting);
-          }
-        } else if (allowSubscribe) {
-          tdlib.files().subscribe(file, this);
-        }
-        updateSetting(setting);
+        updateFileImpl(file, allowSubscribe);
       }
     });
   }
 
+  private void updateFileImpl (TdApi.File file, boolean allowSubscribe) {
+    T setting = findSetting(file.id);
+    if (setting == null)
+      return;
+    Td.copyTo(file, setting.getFile());
+    if (TD.isFileLoaded(file)) {
+      tdlib.files().unsubscribe(file.id, this);
+      tdlib.files().removeCloudReference(setting.getFile(), this);
+      if (installingSetting != null && installingSetting.getFile() != null && installingSetting.getFile().id == file.id) {
+        install(installingSetting);
+      }
+    } else if (allowSubscribe) {
+      tdlib.files().subscribe(file, this);
+    }
+    updateSetting(setting);
+  }
+
   private CancellationSignal installationSignal;
 
   private void downloadAndInstall (T setting) {
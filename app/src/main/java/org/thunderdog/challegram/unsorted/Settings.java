@@ -84,6 +84,7 @@ import org.thunderdog.challegram.util.DeviceStorageError;
 import org.thunderdog.challegram.util.DeviceTokenType;
 import org.thunderdog.challegram.util.FeatureAvailability;
 import org.thunderdog.challegram.util.StringList;
+import org.thunderdog.challegram.util.text.TextLayoutCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -2780,6 +2781,7 @@ public class Settings {
 
   public void setUseSystemFonts (boolean useSystemFonts) {
     setSetting(FLAG_OTHER_USE_SYSTEM_FONTS, useSystemFonts);
+    TextLayoutCache.instance().clear();
   }
 
   public boolean useBigEmoji () {
@@ -0,0 +1,220 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-mostly variant of {@link LongObjectMap}: readers never block and never allocate,
+ * while writers must be serialized by the caller (e.g. hold a lock).
+ *
+ * Values are published with release semantics after their key is written,
+ * and a slot's key never changes once published: removals leave tombstones
+ * instead of shifting entries, and are purged when the table is rebuilt.
+ * Rebuilt tables are published through a volatile field, so a reader always
+ * works with a consistent table, possibly missing writes that happened after it started.
+ *
+ * Only the map itself is safe for concurrent reads: if a writer mutates a value in place
+ * instead of putting a new one, readers may observe that value partially updated.
+ */
+public final class ConcurrentLongObjectMap<V> {
+  private static final Object TOMBSTONE = new Object();
+  private static final float LOAD_FACTOR = .75f;
+
+  private static final class Table {
+    final long[] keys;
+    final AtomicReferenceArray<Object> values;
+    final int mask;
+    final int threshold;
+
+    Table (int capacity) {
+      this.keys = new long[capacity];
+      this.values = new AtomicReferenceArray<>(capacity);
+      this.mask = capacity - 1;
+      this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+  }
+
+  private volatile Table table;
+  private volatile int size;
+  private int usedSlots; // live entries + tombstones, guarded by writer
+
+  public ConcurrentLongObjectMap () {
+    this(16);
+  }
+
+  public ConcurrentLongObjectMap (int expectedSize) {
+    this.table = new Table(LongObjectMap.tableSizeFor(expectedSize));
+  }
+
+  public int size () {
+    return size;
+  }
+
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  // Readers
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V get (long key) {
+    final Table table = this.table;
+    final AtomicReferenceArray<Object> values = table.values;
+    int index = LongObjectMap.hash(key) & table.mask;
+    Object value;
+    while ((value = values.get(index)) != null) {
+      if (table.keys[index] == key) {
+        return value != TOMBSTONE ? (V) value : null;
+      }
+      index = (index + 1) & table.mask;
+    }
+    return null;
+  }
+
+  public boolean containsKey (long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * @return Weakly consistent view of values: reflects the table at the moment iteration began.
+   */
+  public Iterable<V> values () {
+    return ValueIterator::new;
+  }
+
+  private final class ValueIterator implements Iterator<V> {
+    private final AtomicReferenceArray<Object> values = table.values;
+    private int index = -1;
+    private Object next;
+
+    ValueIterator () {
+      advance();
+    }
+
+    private void advance () {
+      next = null;
+      while (++index < values.length()) {
+        Object value = values.get(index);
+        if (value != null && value != TOMBSTONE) {
+          next = value;
+          break;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext () {
+      return next != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V next () {
+      if (next == null)
+        throw new NoSuchElementException();
+      V value = (V) next;
+      advance();
+      return value;
+    }
+  }
+
+  // Writers (must be externally synchronized)
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V put (long key, @NonNull V value) {
+    if (value == null)
+      throw new IllegalArgumentException();
+    final Table table = this.table;
+    final AtomicReferenceArray<Object> values = table.values;
+    int index = LongObjectMap.hash(key) & table.mask;
+    Object existing;
+    while ((existing = values.get(index)) != null) {
+      if (table.keys[index] == key) {
+        values.lazySet(index, value);
+        if (existing == TOMBSTONE) {
+          size++;
+          return null;
+        }
+        return (V) existing;
+      }
+      index = (index + 1) & table.mask;
+    }
+    table.keys[index] = key;
+    values.lazySet(index, value);
+    size++;
+    if (++usedSlots > table.threshold) {
+      rebuild();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V remove (long key) {
+    final Table table = this.table;
+    final AtomicReferenceArray<Object> values = table.values;
+    int index = LongObjectMap.hash(key) & table.mask;
+    Object existing;
+    while ((existing = values.get(index)) != null) {
+      if (table.keys[index] == key) {
+        if (existing == TOMBSTONE)
+          return null;
+        values.lazySet(index, TOMBSTONE);
+        size--;
+        return (V) existing;
+      }
+      index = (index + 1) & table.mask;
+    }
+    return null;
+  }
+
+  public void clear () {
+    this.table = new Table(LongObjectMap.tableSizeFor(0));
+    this.size = 0;
+    this.usedSlots = 0;
+  }
+
+  private void rebuild () {
+    final Table oldTable = this.table;
+    final int liveCount = size;
+    // Grow only when table is mostly occupied by live entries, otherwise just purge tombstones
+    int capacity = oldTable.keys.length;
+    if (liveCount > capacity / 2) {
+      capacity <<= 1;
+    }
+    final Table newTable = new Table(capacity);
+    final AtomicReferenceArray<Object> oldValues = oldTable.values;
+    for (int i = 0; i < oldValues.length(); i++) {
+      Object value = oldValues.get(i);
+      if (value != null && value != TOMBSTONE) {
+        long key = oldTable.keys[i];
+        int index = LongObjectMap.hash(key) & newTable.mask;
+        while (newTable.values.get(index) != null) {
+          index = (index + 1) & newTable.mask;
+        }
+        newTable.keys[index] = key;
+        newTable.values.lazySet(index, value);
+      }
+    }
+    this.usedSlots = liveCount;
+    this.table = newTable; // volatile write publishes the whole table
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from {@code long} to {@code int}, without boxing of either.
+ *
+ * Same layout and probing as {@link LongObjectMap}. Not thread-safe.
+ */
+public final class LongIntMap {
+  private static final float LOAD_FACTOR = .75f;
+
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int mask;
+  private int size, threshold;
+
+  public LongIntMap () {
+    this(16);
+  }
+
+  public LongIntMap (int expectedSize) {
+    allocate(LongObjectMap.tableSizeFor(expectedSize));
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int indexOf (long key) {
+    int index = LongObjectMap.hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key)
+        return index;
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int size () {
+    return size;
+  }
+
+  public boolean containsKey (long key) {
+    return indexOf(key) != -1;
+  }
+
+  public int get (long key, int defaultValue) {
+    int index = indexOf(key);
+    return index != -1 ? values[index] : defaultValue;
+  }
+
+  public void put (long key, int value) {
+    int index = LongObjectMap.hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key) {
+        values[index] = value;
+        return;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    used[index] = true;
+    if (++size > threshold) {
+      rehash(keys.length << 1);
+    }
+  }
+
+  public boolean remove (long key) {
+    int index = indexOf(key);
+    if (index == -1)
+      return false;
+    int gap = index;
+    int next = (gap + 1) & mask;
+    while (used[next]) {
+      int ideal = LongObjectMap.hash(keys[next]) & mask;
+      if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = 0;
+    values[gap] = 0;
+    used[gap] = false;
+    size--;
+    return true;
+  }
+
+  public void clear () {
+    if (size > 0) {
+      Arrays.fill(used, false);
+      size = 0;
+    }
+  }
+
+  private void rehash (int newCapacity) {
+    final long[] oldKeys = this.keys;
+    final int[] oldValues = this.values;
+    final boolean[] oldUsed = this.used;
+    allocate(newCapacity);
+    for (int i = 0; i < oldUsed.length; i++) {
+      if (oldUsed[i]) {
+        int index = LongObjectMap.hash(oldKeys[i]) & mask;
+        while (used[index]) {
+          index = (index + 1) & mask;
+        }
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+        used[index] = true;
+      }
+    }
+  }
+}
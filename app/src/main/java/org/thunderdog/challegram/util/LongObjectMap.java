@@ -0,0 +1,247 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing hash map with primitive {@code long} keys.
+ *
+ * Uses linear probing with backward-shift deletion, so there are no tombstones
+ * and lookups never allocate. Compared to {@code HashMap<Long, V>}, each entry
+ * costs one {@code long} and one reference slot (~16-24 bytes at 0.5-0.75 load)
+ * instead of a {@code Long} box, a {@code HashMap.Node} and a table slot (~48-56 bytes).
+ *
+ * Not thread-safe. Null values are not allowed.
+ */
+public final class LongObjectMap<V> {
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = .75f;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size, threshold;
+  private int modCount;
+
+  public LongObjectMap () {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongObjectMap (int expectedSize) {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  static int tableSizeFor (int expectedSize) {
+    int capacity = (int) Math.ceil(Math.max(expectedSize, 2) / LOAD_FACTOR);
+    return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(capacity - 1) << 1);
+  }
+
+  static int hash (long key) {
+    // Fibonacci hashing spreads sequential and sparse ids equally well
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int indexOf (long key) {
+    final long[] keys = this.keys;
+    final Object[] values = this.values;
+    int index = hash(key) & mask;
+    while (values[index] != null) {
+      if (keys[index] == key)
+        return index;
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int size () {
+    return size;
+  }
+
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  public boolean containsKey (long key) {
+    return indexOf(key) != -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V get (long key) {
+    final long[] keys = this.keys;
+    final Object[] values = this.values;
+    int index = hash(key) & mask;
+    Object value;
+    while ((value = values[index]) != null) {
+      if (keys[index] == key)
+        return (V) value;
+      index = (index + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * @return Previous value associated with {@code key}, or null
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V put (long key, @NonNull V value) {
+    if (value == null)
+      throw new IllegalArgumentException();
+    int index = hash(key) & mask;
+    Object existing;
+    while ((existing = values[index]) != null) {
+      if (keys[index] == key) {
+        values[index] = value;
+        return (V) existing;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    modCount++;
+    if (++size > threshold) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return Removed value, or null, if there was none
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V remove (long key) {
+    int index = indexOf(key);
+    if (index == -1)
+      return null;
+    V value = (V) values[index];
+    removeAt(index);
+    return value;
+  }
+
+  private void removeAt (int index) {
+    final long[] keys = this.keys;
+    final Object[] values = this.values;
+    // Shift following entries of the same cluster back, so probing never meets a hole
+    int gap = index;
+    int next = (gap + 1) & mask;
+    while (values[next] != null) {
+      int ideal = hash(keys[next]) & mask;
+      if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = 0;
+    values[gap] = null;
+    size--;
+    modCount++;
+  }
+
+  public void clear () {
+    if (size > 0) {
+      Arrays.fill(keys, 0);
+      Arrays.fill(values, null);
+      size = 0;
+      modCount++;
+    }
+  }
+
+  private void rehash (int newCapacity) {
+    final long[] oldKeys = this.keys;
+    final Object[] oldValues = this.values;
+    allocate(newCapacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      Object value = oldValues[i];
+      if (value != null) {
+        int index = hash(oldKeys[i]) & mask;
+        while (values[index] != null) {
+          index = (index + 1) & mask;
+        }
+        keys[index] = oldKeys[i];
+        values[index] = value;
+      }
+    }
+  }
+
+  /**
+   * @return Snapshot of all keys in no particular order
+   */
+  public long[] keys () {
+    long[] result = new long[size];
+    int count = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        result[count++] = keys[i];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return Live view of values. Map must not be modified while iterating.
+   */
+  public Iterable<V> values () {
+    return ValueIterator::new;
+  }
+
+  private final class ValueIterator implements Iterator<V> {
+    private final int expectedModCount = modCount;
+    private int index = -1;
+
+    ValueIterator () {
+      advance();
+    }
+
+    private void advance () {
+      do {
+        index++;
+      } while (index < values.length && values[index] == null);
+    }
+
+    @Override
+    public boolean hasNext () {
+      return index < values.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V next () {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (index >= values.length)
+        throw new NoSuchElementException();
+      V value = (V) values[index];
+      advance();
+      return value;
+    }
+  }
+}
@@ -83,6 +83,7 @@ import me.vkryl.android.animator.FactorAnimator;
 import me.vkryl.android.animator.ListAnimator;
 import me.vkryl.android.util.SingleViewProvider;
 import me.vkryl.android.util.ViewProvider;
+import me.vkryl.core.ArrayUtils;
 import me.vkryl.core.BitwiseUtils;
 import me.vkryl.core.ColorUtils;
 import me.vkryl.core.StringUtils;
@@ -921,6 +922,11 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
       return;
     }
 
+    final TextLayoutCache.Key layoutCacheKey = newLayoutCacheKey(in);
+    if (layoutCacheKey != null && restoreLayout(layoutCacheKey)) {
+      return;
+    }
+
     final ArrayList<TextPart> out = new ArrayList<>(10);
     final Emoji.Callback emojiCallback = (input, code, info, position, length) -> {
       if (position > emojiStart) {
@@ -1027,6 +1033,10 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
     bidiClear();
     buildQuotes();
 
+    if (layoutCacheKey != null) {
+      storeLayout(layoutCacheKey);
+    }
+
     if (BuildConfig.DEBUG) {
       int partCount = parts.size();
       for (int i = 0; i < partCount; i++) {
@@ -1035,6 +1045,90 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
     }
   }
 
+  // Layout cache
+
+  private static final int PUBLIC_FLAGS_MASK = (1 << 22) - 1;
+
+  @Nullable
+  private TextLayoutCache.Key newLayoutCacheKey (String in) {
+    if (lineWidthProvider != null || lineMarginProvider != null || !TextLayoutCache.isEligible(in, maxWidth))
+      return null;
+    TextPaint paint = getTextPaint(null);
+    return new TextLayoutCache.Key(in, maxWidth, textFlags & PUBLIC_FLAGS_MASK, maxLineCount, textStyleProvider, textStyleProvider.getTextSizeInPixels(), paint.getTypeface(), suffix, TextLayoutCache.entitySignature(entities));
+  }
+
+  private boolean needBackground () {
+    if (pickTheme(null, null).backgroundId(false) != 0)
+      return true;
+    if (entities != null) {
+      for (TextEntity entity : entities) {
+        if (pickTheme(null, entity).backgroundId(false) != 0)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean restoreLayout (TextLayoutCache.Key key) {
+    TextLayoutCache.Layout layout = TextLayoutCache.instance().get(key);
+    // Color set is not a part of the key, and backgrounds are never cached
+    if (layout == null || needBackground())
+      return false;
+    ArrayList<TextPart> out = new ArrayList<>(layout.parts.length);
+    for (TextLayoutCache.Part part : layout.parts) {
+      out.add(part.restore(this, entities));
+    }
+    if (lineSizes == null) {
+      lineSizes = new ArrayList<>(layout.lineSizes.length / 2);
+    }
+    for (int i = 0; i < layout.lineSizes.length; i += 2) {
+      lineSizes.add(new int[] {layout.lineSizes[i], layout.lineSizes[i + 1]});
+    }
+    textFlags |= layout.runtimeFlags;
+    builtInEmojiCount = layout.builtInEmojiCount;
+    paragraphCount = layout.paragraphCount;
+    currentX = layout.currentX;
+    currentY = layout.currentY;
+    currentWidth = layout.currentWidth;
+    maxPartHeight = layout.maxPartHeight;
+    this.parts = out;
+    if (this.pressHighlights != null)
+      this.pressHighlights.clear();
+    return true;
+  }
+
+  private void storeLayout (TextLayoutCache.Key key) {
+    if ((textFlags & (FLAG_NEED_BACKGROUND | FLAG_HAS_SPOILERS | FLAG_ABORT_PROCESS)) != 0 || !quotes.isEmpty() || (media != null && !media.isEmpty()) || parts == null)
+      return;
+    TextLayoutCache.Part[] cachedParts = new TextLayoutCache.Part[parts.size()];
+    for (int i = 0; i < cachedParts.length; i++) {
+      TextPart part = parts.get(i);
+      if (part.hasMedia())
+        return;
+      int entityIndex = -1;
+      TextEntity entity = part.getEntity();
+      if (entity != null) {
+        entityIndex = entities != null ? ArrayUtils.indexOf(entities, entity) : -1;
+        if (entityIndex == -1)
+          return;
+      }
+      cachedParts[i] = new TextLayoutCache.Part(part, entityIndex);
+    }
+    int lineCount = getLineCount();
+    int[] cachedLineSizes = new int[lineCount * 2];
+    for (int i = 0; i < lineCount; i++) {
+      int[] lineSize = lineSizes.get(i);
+      cachedLineSizes[i * 2] = lineSize[0];
+      cachedLineSizes[i * 2 + 1] = lineSize[1];
+    }
+    TextLayoutCache.instance().put(key, new TextLayoutCache.Layout(
+      cachedParts, cachedLineSizes,
+      textFlags & (FLAG_FULL_RTL | FLAG_ELLIPSIZED),
+      builtInEmojiCount, paragraphCount,
+      currentX, currentY, currentWidth, maxPartHeight
+    ));
+  }
+
   private static int findMoreSpaces (String in, int start) {
     final int length = in.length();
     int c = 0;
@@ -0,0 +1,313 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.thunderdog.challegram.util.text;
+
+import android.graphics.Typeface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thunderdog.challegram.emoji.EmojiInfo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Process-wide cache of measured {@link Text} layouts.
+ *
+ * Messages are usually laid out for the first time on loader threads,
+ * so when the same text with the same width and style is laid out again
+ * (chat reopened, orientation flipped back, list rebound) the result is
+ * restored without measuring it again.
+ *
+ * Only self-contained layouts are stored: texts with media, spoilers, quotes,
+ * backgrounds or custom line width providers are always measured.
+ * Thread-safe.
+ */
+public final class TextLayoutCache {
+  private static volatile TextLayoutCache instance;
+
+  public static TextLayoutCache instance () {
+    if (instance == null) {
+      synchronized (TextLayoutCache.class) {
+        if (instance == null) {
+          instance = new TextLayoutCache(MAX_ENTRY_COUNT, MAX_PART_COUNT);
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static final int MAX_ENTRY_COUNT = 1024;
+  private static final int MAX_PART_COUNT = 32768;
+  private static final int MAX_TEXT_LENGTH = 4096;
+
+  static boolean isEligible (String in, int maxWidth) {
+    return maxWidth > 0 && in.length() <= MAX_TEXT_LENGTH;
+  }
+
+  static final class Key {
+    private final String text;
+    private final int maxWidth, textFlags, maxLineCount;
+    private final TextStyleProvider textStyleProvider;
+    private final int textSizeInPixels;
+    private final @Nullable Typeface typeface;
+    private final @Nullable String suffix;
+    private final @Nullable int[] entitySignature;
+    private final int hashCode;
+
+    Key (String text, int maxWidth, int textFlags, int maxLineCount, TextStyleProvider textStyleProvider, int textSizeInPixels, @Nullable Typeface typeface, @Nullable String suffix, @Nullable int[] entitySignature) {
+      this.text = text;
+      this.maxWidth = maxWidth;
+      this.textFlags = textFlags;
+      this.maxLineCount = maxLineCount;
+      this.textStyleProvider = textStyleProvider;
+      this.textSizeInPixels = textSizeInPixels;
+      this.typeface = typeface;
+      this.suffix = suffix;
+      this.entitySignature = entitySignature;
+      int result = text.hashCode();
+      result = 31 * result + maxWidth;
+      result = 31 * result + textFlags;
+      result = 31 * result + maxLineCount;
+      result = 31 * result + System.identityHashCode(textStyleProvider);
+      result = 31 * result + textSizeInPixels;
+      result = 31 * result + System.identityHashCode(typeface);
+      result = 31 * result + (suffix != null ? suffix.hashCode() : 0);
+      result = 31 * result + Arrays.hashCode(entitySignature);
+      this.hashCode = result;
+    }
+
+    @Override
+    public boolean equals (Object obj) {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key b = (Key) obj;
+      return hashCode == b.hashCode &&
+        maxWidth == b.maxWidth &&
+        textFlags == b.textFlags &&
+        maxLineCount == b.maxLineCount &&
+        textStyleProvider == b.textStyleProvider &&
+        textSizeInPixels == b.textSizeInPixels &&
+        typeface == b.typeface &&
+        Objects.equals(suffix, b.suffix) &&
+        Arrays.equals(entitySignature, b.entitySignature) &&
+        text.equals(b.text);
+    }
+
+    @Override
+    public int hashCode () {
+      return hashCode;
+    }
+  }
+
+  /**
+   * Layout-relevant properties of entities, so entries can be shared
+   * between different {@link TextEntity} instances describing the same formatting.
+   *
+   * @return null, if there are no entities
+   */
+  @Nullable
+  static int[] entitySignature (@Nullable TextEntity[] entities) {
+    if (entities == null || entities.length == 0)
+      return null;
+    final int stride = 5;
+    int[] signature = new int[entities.length * stride];
+    int index = 0;
+    for (TextEntity entity : entities) {
+      int flags = 0;
+      if (entity.isBold()) flags |= 1;
+      if (entity.isItalic()) flags |= 1 << 1;
+      if (entity.isMonospace()) flags |= 1 << 2;
+      if (entity.isSmall()) flags |= 1 << 3;
+      if (entity.isFullWidth()) flags |= 1 << 4;
+      if (entity.isCustomEmoji()) flags |= 1 << 5;
+      if (entity.hasMedia()) flags |= 1 << 6;
+      if (entity.isIcon()) flags |= 1 << 7;
+      if (entity.isQuote()) flags |= 1 << 8;
+      if (entity.getSpoiler() != null) flags |= 1 << 9;
+      if (entity.isClickable()) flags |= 1 << 10;
+      signature[index++] = entity.getStart();
+      signature[index++] = entity.getEnd();
+      signature[index++] = entity.getType();
+      signature[index++] = flags;
+      signature[index++] = Float.floatToIntBits(entity.getBaselineShift());
+    }
+    return signature;
+  }
+
+  static final class Part {
+    final String line;
+    final int start, end;
+    final int lineIndex, paragraphIndex;
+    final int x, y;
+    final float width;
+    final int height;
+    final int bidiEntity;
+    final int entityIndex;
+    final @Nullable EmojiInfo emojiInfo;
+
+    Part (TextPart part, int entityIndex) {
+      this.line = part.getLine();
+      this.start = part.getStart();
+      this.end = part.getEnd();
+      this.lineIndex = part.getLineIndex();
+      this.paragraphIndex = part.getParagraphIndex();
+      this.x = part.getX();
+      this.y = part.getY();
+      this.width = part.getWidth();
+      this.height = part.getHeight();
+      this.bidiEntity = part.getBidiEntity();
+      this.entityIndex = entityIndex;
+      this.emojiInfo = part.getEmojiInfo();
+    }
+
+    TextPart restore (Text source, @Nullable TextEntity[] entities) {
+      TextPart part = new TextPart(source, line, start, end, lineIndex, paragraphIndex);
+      part.setXY(x, y);
+      part.setWidth(width);
+      part.setHeight(height);
+      part.setBidiEntity(bidiEntity);
+      if (entityIndex != -1) {
+        part.setEntity(entities[entityIndex]);
+      }
+      part.setEmoji(emojiInfo);
+      return part;
+    }
+  }
+
+  static final class Layout {
+    final Part[] parts;
+    final int[] lineSizes; // width, height pairs
+    final int runtimeFlags;
+    final int builtInEmojiCount, paragraphCount;
+    final int currentX, currentY, currentWidth, maxPartHeight;
+
+    Layout (Part[] parts, int[] lineSizes, int runtimeFlags, int builtInEmojiCount, int paragraphCount, int currentX, int currentY, int currentWidth, int maxPartHeight) {
+      this.parts = parts;
+      this.lineSizes = lineSizes;
+      this.runtimeFlags = runtimeFlags;
+      this.builtInEmojiCount = builtInEmojiCount;
+      this.paragraphCount = paragraphCount;
+      this.currentX = currentX;
+      this.currentY = currentY;
+      this.currentWidth = currentWidth;
+      this.maxPartHeight = maxPartHeight;
+    }
+  }
+
+  private final int maxEntryCount, maxPartCount;
+  private final LinkedHashMap<Key, Layout> entries = new LinkedHashMap<>(64, .75f, true);
+  private int partCount;
+  private long hitCount, missCount, putCount, evictionCount;
+
+  private TextLayoutCache (int maxEntryCount, int maxPartCount) {
+    this.maxEntryCount = maxEntryCount;
+    this.maxPartCount = maxPartCount;
+  }
+
+  @Nullable
+  Layout get (Key key) {
+    synchronized (entries) {
+      Layout layout = entries.get(key);
+      if (layout != null) {
+        hitCount++;
+      } else {
+        missCount++;
+      }
+      return layout;
+    }
+  }
+
+  void put (Key key, Layout layout) {
+    if (layout.parts.length > maxPartCount / 16)
+      return;
+    synchronized (entries) {
+      Layout prev = entries.put(key, layout);
+      if (prev != null) {
+        partCount -= prev.parts.length;
+      }
+      partCount += layout.parts.length;
+      putCount++;
+      trimToSize();
+    }
+  }
+
+  private void trimToSize () {
+    Iterator<Map.Entry<Key, Layout>> itr = entries.entrySet().iterator();
+    while ((entries.size() > maxEntryCount || partCount > maxPartCount) && itr.hasNext()) {
+      Layout layout = itr.next().getValue();
+      itr.remove();
+      partCount -= layout.parts.length;
+      evictionCount++;
+    }
+  }
+
+  /**
+   * Must be called when something not covered by the key affects measurement,
+   * e.g. emoji or font settings.
+   */
+  public void clear () {
+    synchronized (entries) {
+      entries.clear();
+      partCount = 0;
+    }
+  }
+
+  // Diagnostics
+
+  public static class Stats {
+    public int entryCount, partCount;
+    public long hitCount, missCount, putCount, evictionCount;
+
+    public float hitRate () {
+      long total = hitCount + missCount;
+      return total != 0 ? (float) hitCount / (float) total : 0f;
+    }
+
+    @Override
+    @NonNull
+    public String toString () {
+      return "entries = " + entryCount +
+        ", parts = " + partCount +
+        ", hits = " + hitCount +
+        ", misses = " + missCount +
+        ", puts = " + putCount +
+        ", evictions = " + evictionCount;
+    }
+  }
+
+  public Stats getStats () {
+    Stats stats = new Stats();
+    synchronized (entries) {
+      stats.entryCount = entries.size();
+      stats.partCount = partCount;
+      stats.hitCount = hitCount;
+      stats.missCount = missCount;
+      stats.putCount = putCount;
+      stats.evictionCount = evictionCount;
+    }
+    return stats;
+  }
+
+  @Override
+  @NonNull
+  public String toString () {
+    return "TextLayoutCache { " + getStats() + " }";
+  }
+}
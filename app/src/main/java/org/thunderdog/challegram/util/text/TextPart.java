@@ -206,6 +206,11 @@ public class TextPart {
     this.emojiInfo = emoji;
   }
 
+  @Nullable
+  EmojiInfo getEmojiInfo () {
+    return emojiInfo;
+  }
+
   @Nullable
   TextMedia getMedia () {
     return media;